@@ -1,83 +1,111 @@
-public class AstPrinter implements Expr.Visitor<String> {
-  String print(Expr expr) {
-    return expr.accept(this);
-  }
-
-  public String visitBinaryExpr(Expr.Binary expr) {
-    return parenthesize(expr.operator.lexeme, expr.left, expr.right);
-  }
-
-  public String visitGroupingExpr(Expr.Grouping expr) {
-    return parenthesize("group", expr.expression);
-  }
-
-  public String visitLiteralExpr(Expr.Literal expr) {
-    if (expr.value == null)
-      return "nil";
-
-    return expr.value.toString();
-  }
-
-  public String visitUnaryExpr(Expr.Unary expr) {
-    return parenthesize(expr.operator.lexeme, expr.right);
-  }
-
-  public String visitVariableExpr(Expr.Variable expr) {
-    return expr.name.lexeme;
-  }
-
-  public String visitAssignExpr(Expr.Assign expr) {
-    return expr.name.lexeme + " = " + expr.value.accept(this);
-  }
-
-  public String visitLogicalExpr(Expr.Logical expr) {
-    return parenthesize(expr.operator.lexeme, expr.left, expr.right);
-  }
-
-  public String visitCallExpr(Expr.Call expr) {
-    return "TODO";
-  }
-
-  public String visitGetExpr(Expr.Get expr) {
-    return "TODO";
-  }
-
-  public String visitSetExpr(Expr.Set expr) {
-    return "TODO";
-  }
-
-  public String visitThisExpr(Expr.This expr) {
-    return "TODO";
-  }
-
-  public String visitSuperExpr(Expr.Super expr) {
-    return "TODO";
-  }
-
-  private String parenthesize(String name, Expr... exprs) {
-    StringBuilder builder = new StringBuilder();
-
-    builder.append("(").append(name);
-
-    for (Expr expr : exprs) {
-      builder.append(" ");
-      builder.append(expr.accept(this));
-    }
-
-    builder.append(")");
-
-    return builder.toString();
-  }
-
-  public static void main(String[] args) {
-    Expr expression = new Expr.Binary(
-        new Expr.Unary(
-            new Token(TokenType.MINUS, "-", null, 1),
-            new Expr.Literal(123)),
-        new Token(TokenType.STAR, "*", null, 1),
-        new Expr.Grouping(
-            new Expr.Literal(45.67)));
-
-    System.out.println(new AstPrinter().print(expression));
-  }
-}
+public class AstPrinter implements Expr.Visitor<String> {
+  String print(Expr expr) {
+    switch (expr.kind) {
+      case Expr.ASSIGN:
+        return visitAssignExpr((Expr.Assign) expr);
+      case Expr.BINARY:
+        return visitBinaryExpr((Expr.Binary) expr);
+      case Expr.CALL:
+        return visitCallExpr((Expr.Call) expr);
+      case Expr.GET:
+        return visitGetExpr((Expr.Get) expr);
+      case Expr.GROUPING:
+        return visitGroupingExpr((Expr.Grouping) expr);
+      case Expr.LITERAL:
+        return visitLiteralExpr((Expr.Literal) expr);
+      case Expr.LOGICAL:
+        return visitLogicalExpr((Expr.Logical) expr);
+      case Expr.SET:
+        return visitSetExpr((Expr.Set) expr);
+      case Expr.SUPER:
+        return visitSuperExpr((Expr.Super) expr);
+      case Expr.THIS:
+        return visitThisExpr((Expr.This) expr);
+      case Expr.UNARY:
+        return visitUnaryExpr((Expr.Unary) expr);
+      case Expr.VARIABLE:
+        return visitVariableExpr((Expr.Variable) expr);
+
+      default:
+        throw new IllegalStateException("Unknown expression kind " + expr.kind + ".");
+    }
+  }
+
+  public String visitBinaryExpr(Expr.Binary expr) {
+    return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+  }
+
+  public String visitGroupingExpr(Expr.Grouping expr) {
+    return parenthesize("group", expr.expression);
+  }
+
+  public String visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null)
+      return "nil";
+
+    return expr.value.toString();
+  }
+
+  public String visitUnaryExpr(Expr.Unary expr) {
+    return parenthesize(expr.operator.lexeme, expr.right);
+  }
+
+  public String visitVariableExpr(Expr.Variable expr) {
+    return expr.name.lexeme;
+  }
+
+  public String visitAssignExpr(Expr.Assign expr) {
+    return expr.name.lexeme + " = " + print(expr.value);
+  }
+
+  public String visitLogicalExpr(Expr.Logical expr) {
+    return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+  }
+
+  public String visitCallExpr(Expr.Call expr) {
+    return "TODO";
+  }
+
+  public String visitGetExpr(Expr.Get expr) {
+    return "TODO";
+  }
+
+  public String visitSetExpr(Expr.Set expr) {
+    return "TODO";
+  }
+
+  public String visitThisExpr(Expr.This expr) {
+    return "TODO";
+  }
+
+  public String visitSuperExpr(Expr.Super expr) {
+    return "TODO";
+  }
+
+  private String parenthesize(String name, Expr... exprs) {
+    StringBuilder builder = new StringBuilder();
+
+    builder.append("(").append(name);
+
+    for (Expr expr : exprs) {
+      builder.append(" ");
+      builder.append(print(expr));
+    }
+
+    builder.append(")");
+
+    return builder.toString();
+  }
+
+  public static void main(String[] args) {
+    Expr expression = new Expr.Binary(
+        new Expr.Unary(
+            new Token(TokenType.MINUS, "-", null, 1),
+            new Expr.Literal(123)),
+        new Token(TokenType.STAR, "*", null, 1),
+        new Expr.Grouping(
+            new Expr.Literal(45.67)));
+
+    System.out.println(new AstPrinter().print(expression));
+  }
+}
@@ -0,0 +1,750 @@
+import java.util.Arrays;
+import java.util.List;
+
+// Compiles the resolved syntax tree into chunks for the VM. The Resolver has
+// already reported scoping errors, so this pass only lays out stack slots and
+// upvalues the way the VM expects them.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  // As many as a two byte operand can number.
+  private static final int MAX_LOCALS = 65536;
+  private static final int MAX_UPVALUES = 65536;
+
+  private static class Local {
+    final String name;
+    int depth;
+    boolean isCaptured = false;
+
+    Local(String name, int depth) {
+      this.name = name;
+      this.depth = depth;
+    }
+  }
+
+  private static class Upvalue {
+    final int index;
+    final boolean isLocal;
+
+    Upvalue(int index, boolean isLocal) {
+      this.index = index;
+      this.isLocal = isLocal;
+    }
+  }
+
+  private static class FunctionState {
+    final FunctionState enclosing;
+    final Obj.Function function;
+    final FunctionType type;
+    Local[] locals = new Local[8];
+    int localCount = 0;
+    Upvalue[] upvalues = new Upvalue[8];
+    int scopeDepth = 0;
+
+    FunctionState(FunctionState enclosing, Obj.Function function, FunctionType type) {
+      this.enclosing = enclosing;
+      this.function = function;
+      this.type = type;
+    }
+
+    void add(Local local) {
+      if (localCount == locals.length)
+        locals = Arrays.copyOf(locals, localCount * 2);
+
+      locals[localCount++] = local;
+      function.slots = Math.max(function.slots, localCount);
+    }
+
+    int add(Upvalue upvalue) {
+      if (function.upvalueCount == upvalues.length)
+        upvalues = Arrays.copyOf(upvalues, function.upvalueCount * 2);
+
+      upvalues[function.upvalueCount] = upvalue;
+
+      return function.upvalueCount++;
+    }
+  }
+
+  private FunctionState current = null;
+  private Token token = null;
+
+  Obj.Function compile(List<Stmt> statements) {
+    beginFunction(new Obj.Function(null), FunctionType.NONE);
+
+    for (Stmt statement : statements) {
+      compile(statement);
+    }
+
+    return endFunction();
+  }
+
+  Obj.Function compileExpr(Expr expression) {
+    beginFunction(new Obj.Function(null), FunctionType.NONE);
+
+    compile(expression);
+    emitByte(OpCode.RETURN);
+
+    return endFunction();
+  }
+
+  private void compile(Stmt statement) {
+    statement.accept(this);
+  }
+
+  private void compile(Expr expression) {
+    expression.accept(this);
+  }
+
+  // Every instruction is attributed to the line of the token that last
+  // positioned the compiler, which is the token runtime errors report.
+  private void at(Token token) {
+    this.token = token;
+  }
+
+  private int line() {
+    return token == null ? 0 : token.line;
+  }
+
+  private Chunk chunk() {
+    return current.function.chunk;
+  }
+
+  private void beginFunction(Obj.Function function, FunctionType type) {
+    current = new FunctionState(current, function, type);
+
+    // Slot zero holds the receiver in methods and the callee otherwise.
+    String name = type == FunctionType.METHOD || type == FunctionType.INITIALIZER ? "this" : "";
+
+    current.add(new Local(name, 0));
+  }
+
+  private Obj.Function endFunction() {
+    emitReturn();
+
+    Obj.Function function = current.function;
+    function.constants = function.chunk.constants();
+
+    current = current.enclosing;
+
+    return function;
+  }
+
+  private void beginScope() {
+    current.scopeDepth++;
+  }
+
+  private void endScope() {
+    current.scopeDepth--;
+
+    while (current.localCount > 0 && current.locals[current.localCount - 1].depth > current.scopeDepth) {
+      if (current.locals[current.localCount - 1].isCaptured) {
+        emitByte(OpCode.CLOSE_UPVALUE);
+      } else {
+        emitByte(OpCode.POP);
+      }
+
+      current.localCount--;
+    }
+  }
+
+  private void emitByte(int value) {
+    chunk().write(value, line());
+  }
+
+  private void emitBytes(int first, int second) {
+    emitByte(first);
+    emitByte(second);
+  }
+
+  private void emitShort(int value) {
+    emitByte((value >> 8) & 0xff);
+    emitByte(value & 0xff);
+  }
+
+  // A local or upvalue instruction, in its long form when the slot or
+  // index doesn't fit in a byte.
+  private void emitSlotOp(int op, int longOp, int slot) {
+    if (slot > 0xff) {
+      emitByte(longOp);
+      emitShort(slot);
+    } else {
+      emitBytes(op, slot);
+    }
+  }
+
+  private void emitConstantOp(int op, int constant) {
+    emitByte(op);
+    emitShort(constant);
+  }
+
+  private void emitReturn() {
+    if (current.type == FunctionType.INITIALIZER) {
+      emitBytes(OpCode.GET_LOCAL, 0);
+    } else {
+      emitByte(OpCode.NIL);
+    }
+
+    emitByte(OpCode.RETURN);
+  }
+
+  private int emitJump(int op) {
+    emitByte(op);
+    emitShort(0xffff);
+
+    return chunk().count - 2;
+  }
+
+  private void patchJump(int offset) {
+    // -2 to adjust for the jump offset itself.
+    int jump = chunk().count - offset - 2;
+
+    if (jump > 0xffff) {
+      Lox.errors.error(token, "Too much code to jump over.");
+    }
+
+    chunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+    chunk().code[offset + 1] = (byte) (jump & 0xff);
+  }
+
+  private void emitLoop(int loopStart) {
+    emitByte(OpCode.LOOP);
+
+    int offset = chunk().count - loopStart + 2;
+
+    if (offset > 0xffff) {
+      Lox.errors.error(token, "Loop body too large.");
+    }
+
+    emitShort(offset);
+  }
+
+  private int makeConstant(Object value) {
+    int constant = chunk().addConstant(value);
+
+    if (constant > 0xffff) {
+      Lox.errors.error(token, "Too many constants in one chunk.");
+
+      return 0;
+    }
+
+    return constant;
+  }
+
+  private int identifierConstant(Token name) {
+    return makeConstant(name.lexeme);
+  }
+
+  private void declareLocal(Token name) {
+    if (current.localCount == MAX_LOCALS) {
+      Lox.errors.error(name, "Too many local variables in function.");
+
+      return;
+    }
+
+    current.add(new Local(name.lexeme, -1));
+  }
+
+  private void addLocal(String name) {
+    if (current.localCount == MAX_LOCALS) {
+      Lox.errors.error(token, "Too many local variables in function.");
+
+      return;
+    }
+
+    current.add(new Local(name, current.scopeDepth));
+  }
+
+  private void markInitialized() {
+    if (current.scopeDepth == 0)
+      return;
+
+    current.locals[current.localCount - 1].depth = current.scopeDepth;
+  }
+
+  private void defineVariable(Token name) {
+    if (current.scopeDepth > 0) {
+      markInitialized();
+
+      return;
+    }
+
+    at(name);
+    emitConstantOp(OpCode.DEFINE_GLOBAL, identifierConstant(name));
+  }
+
+  private static int resolveLocal(FunctionState state, String name) {
+    for (int i = state.localCount - 1; i >= 0; i--) {
+      if (state.locals[i].name.equals(name)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private int resolveUpvalue(FunctionState state, String name) {
+    if (state.enclosing == null)
+      return -1;
+
+    int local = resolveLocal(state.enclosing, name);
+
+    if (local != -1) {
+      state.enclosing.locals[local].isCaptured = true;
+
+      return addUpvalue(state, local, true);
+    }
+
+    int upvalue = resolveUpvalue(state.enclosing, name);
+
+    if (upvalue != -1) {
+      return addUpvalue(state, upvalue, false);
+    }
+
+    return -1;
+  }
+
+  private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+    int upvalueCount = state.function.upvalueCount;
+
+    for (int i = 0; i < upvalueCount; i++) {
+      Upvalue upvalue = state.upvalues[i];
+
+      if (upvalue.index == index && upvalue.isLocal == isLocal) {
+        return i;
+      }
+    }
+
+    if (upvalueCount == MAX_UPVALUES) {
+      Lox.errors.error(token, "Too many closure variables in function.");
+
+      return 0;
+    }
+
+    return state.add(new Upvalue(index, isLocal));
+  }
+
+  private void namedVariable(Token name, boolean assign) {
+    at(name);
+
+    int arg = resolveLocal(current, name.lexeme);
+
+    if (arg != -1) {
+      if (assign)
+        emitSlotOp(OpCode.SET_LOCAL, OpCode.SET_LOCAL_LONG, arg);
+      else
+        emitSlotOp(OpCode.GET_LOCAL, OpCode.GET_LOCAL_LONG, arg);
+    } else if ((arg = resolveUpvalue(current, name.lexeme)) != -1) {
+      if (assign)
+        emitSlotOp(OpCode.SET_UPVALUE, OpCode.SET_UPVALUE_LONG, arg);
+      else
+        emitSlotOp(OpCode.GET_UPVALUE, OpCode.GET_UPVALUE_LONG, arg);
+    } else {
+      emitConstantOp(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL, identifierConstant(name));
+    }
+  }
+
+  private void function(Stmt.Function stmt, FunctionType type) {
+    beginFunction(new Obj.Function(stmt.name.lexeme), type);
+    beginScope();
+
+    for (Token param : stmt.params) {
+      current.function.arity++;
+
+      declareLocal(param);
+      markInitialized();
+    }
+
+    for (Stmt statement : stmt.body) {
+      compile(statement);
+    }
+
+    FunctionState state = current;
+    Obj.Function function = endFunction();
+
+    at(stmt.name);
+    emitConstantOp(OpCode.CLOSURE, makeConstant(function));
+
+    for (int i = 0; i < function.upvalueCount; i++) {
+      emitByte(state.upvalues[i].isLocal ? 1 : 0);
+      emitShort(state.upvalues[i].index);
+    }
+  }
+
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+
+    namedVariable(expr.name, true);
+
+    return null;
+  }
+
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    compile(expr.left);
+    compile(expr.right);
+
+    at(expr.operator);
+
+    switch (expr.operator.type) {
+      case BANG_EQUAL:
+        emitByte(OpCode.NOT_EQUAL);
+        break;
+      case EQUAL_EQUAL:
+        emitByte(OpCode.EQUAL);
+        break;
+      case GREATER:
+        emitByte(OpCode.GREATER);
+        break;
+      case GREATER_EQUAL:
+        emitByte(OpCode.GREATER_EQUAL);
+        break;
+      case LESS:
+        emitByte(OpCode.LESS);
+        break;
+      case LESS_EQUAL:
+        emitByte(OpCode.LESS_EQUAL);
+        break;
+      case PLUS:
+        emitByte(OpCode.ADD);
+        break;
+      case MINUS:
+        emitByte(OpCode.SUBTRACT);
+        break;
+      case STAR:
+        emitByte(OpCode.MULTIPLY);
+        break;
+      case SLASH:
+        emitByte(OpCode.DIVIDE);
+        break;
+
+      default:
+        // Unreachable.
+        break;
+    }
+
+    return null;
+  }
+
+  public Void visitCallExpr(Expr.Call expr) {
+    call(expr, false);
+
+    return null;
+  }
+
+  private void call(Expr.Call expr, boolean tail) {
+    if (expr.callee instanceof Expr.Get) {
+      // Look the method up before evaluating the arguments, exactly as the
+      // tree-walker does, but without allocating a bound method.
+      Expr.Get get = (Expr.Get) expr.callee;
+
+      compile(get.object);
+
+      at(get.name);
+      emitConstantOp(OpCode.GET_METHOD, identifierConstant(get.name));
+    } else if (expr.callee instanceof Expr.Super) {
+      Expr.Super superExpr = (Expr.Super) expr.callee;
+
+      namedVariable(new Token(TokenType.THIS, "this", null, superExpr.keyword.line), false);
+      namedVariable(superExpr.keyword, false);
+
+      at(superExpr.method);
+      emitConstantOp(OpCode.GET_SUPER_METHOD, identifierConstant(superExpr.method));
+    } else {
+      compile(expr.callee);
+    }
+
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+
+    at(expr.paren);
+
+    boolean isInvoke = expr.callee instanceof Expr.Get || expr.callee instanceof Expr.Super;
+
+    if (isInvoke)
+      emitBytes(tail ? OpCode.TAIL_CALL_METHOD : OpCode.CALL_METHOD, expr.arguments.size());
+    else
+      emitBytes(tail ? OpCode.TAIL_CALL : OpCode.CALL, expr.arguments.size());
+  }
+
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+
+    at(expr.name);
+    emitConstantOp(OpCode.GET_PROPERTY, identifierConstant(expr.name));
+
+    return null;
+  }
+
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+
+    return null;
+  }
+
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emitByte(OpCode.NIL);
+    } else if (expr.value.equals(true)) {
+      emitByte(OpCode.TRUE);
+    } else if (expr.value.equals(false)) {
+      emitByte(OpCode.FALSE);
+    } else {
+      emitConstantOp(OpCode.CONSTANT, makeConstant(expr.value));
+    }
+
+    return null;
+  }
+
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+
+    if (expr.operator.type == TokenType.OR) {
+      int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+      int endJump = emitJump(OpCode.JUMP);
+
+      patchJump(elseJump);
+      emitByte(OpCode.POP);
+
+      compile(expr.right);
+      patchJump(endJump);
+    } else {
+      int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+
+      emitByte(OpCode.POP);
+
+      compile(expr.right);
+      patchJump(endJump);
+    }
+
+    return null;
+  }
+
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    compile(expr.value);
+
+    at(expr.name);
+    emitConstantOp(OpCode.SET_PROPERTY, identifierConstant(expr.name));
+
+    return null;
+  }
+
+  public Void visitSuperExpr(Expr.Super expr) {
+    namedVariable(new Token(TokenType.THIS, "this", null, expr.keyword.line), false);
+    namedVariable(expr.keyword, false);
+
+    at(expr.method);
+    emitConstantOp(OpCode.GET_SUPER, identifierConstant(expr.method));
+
+    return null;
+  }
+
+  public Void visitThisExpr(Expr.This expr) {
+    namedVariable(expr.keyword, false);
+
+    return null;
+  }
+
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+
+    at(expr.operator);
+
+    if (expr.operator.type == TokenType.BANG) {
+      emitByte(OpCode.NOT);
+    } else {
+      emitByte(OpCode.NEGATE);
+    }
+
+    return null;
+  }
+
+  public Void visitVariableExpr(Expr.Variable expr) {
+    namedVariable(expr.name, false);
+
+    return null;
+  }
+
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+
+    endScope();
+
+    return null;
+  }
+
+  public Void visitClassStmt(Stmt.Class stmt) {
+    at(stmt.name);
+
+    int nameConstant = identifierConstant(stmt.name);
+    int classSlot = -1;
+
+    if (current.scopeDepth > 0) {
+      classSlot = current.localCount;
+
+      declareLocal(stmt.name);
+
+      // Keep the class's slot below the "super" local pushed next.
+      if (stmt.superclass != null) {
+        emitByte(OpCode.NIL);
+      }
+    }
+
+    if (stmt.superclass != null) {
+      // The superclass is evaluated before the class exists, like in the
+      // tree-walker, and lives on as the "super" local its methods capture.
+      compile(stmt.superclass);
+
+      beginScope();
+      addLocal("super");
+    }
+
+    at(stmt.name);
+    emitConstantOp(OpCode.CLASS, nameConstant);
+
+    if (stmt.superclass != null) {
+      at(stmt.superclass.name);
+      emitByte(OpCode.INHERIT);
+    }
+
+    for (Stmt.Function method : stmt.methods) {
+      FunctionType type = method.name.lexeme.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+
+      function(method, type);
+
+      emitConstantOp(OpCode.METHOD, identifierConstant(method.name));
+    }
+
+    if (stmt.superclass == null) {
+      defineVariable(stmt.name);
+
+      return null;
+    }
+
+    // Store the class before "super" goes out of scope underneath it.
+    if (classSlot != -1) {
+      emitSlotOp(OpCode.SET_LOCAL, OpCode.SET_LOCAL_LONG, classSlot);
+      emitByte(OpCode.POP);
+    } else {
+      at(stmt.name);
+      emitConstantOp(OpCode.DEFINE_GLOBAL, nameConstant);
+    }
+
+    endScope();
+
+    if (classSlot != -1) {
+      markInitialized();
+    }
+
+    return null;
+  }
+
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+
+    emitByte(OpCode.POP);
+
+    return null;
+  }
+
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    if (current.scopeDepth > 0) {
+      // Mark it initialized right away so the body can refer to itself.
+      declareLocal(stmt.name);
+      markInitialized();
+    }
+
+    function(stmt, FunctionType.FUNCTION);
+
+    defineVariable(stmt.name);
+
+    return null;
+  }
+
+  public Void visitIfStmt(Stmt.If stmt) {
+    compile(stmt.condition);
+
+    int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+
+    emitByte(OpCode.POP);
+    compile(stmt.thenBranch);
+
+    int elseJump = emitJump(OpCode.JUMP);
+
+    patchJump(thenJump);
+    emitByte(OpCode.POP);
+
+    if (stmt.elseBranch != null) {
+      compile(stmt.elseBranch);
+    }
+
+    patchJump(elseJump);
+
+    return null;
+  }
+
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    at(stmt.keyword);
+
+    if (stmt.value == null) {
+      emitReturn();
+
+      return null;
+    }
+
+    // Initializers always hand back the instance, whatever they return.
+    if (current.type == FunctionType.INITIALIZER) {
+      compile(stmt.value);
+      emitByte(OpCode.POP);
+      emitReturn();
+
+      return null;
+    }
+
+    // As in the tree-walker, a returned call doesn't grow the stack. The
+    // RETURN after it is reached when the callee was a native or a class.
+    if (stmt.value instanceof Expr.Call)
+      call((Expr.Call) stmt.value, true);
+    else
+      compile(stmt.value);
+
+    emitByte(OpCode.RETURN);
+
+    return null;
+  }
+
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (current.scopeDepth > 0) {
+      declareLocal(stmt.name);
+    }
+
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      emitByte(OpCode.NIL);
+    }
+
+    defineVariable(stmt.name);
+
+    return null;
+  }
+
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int loopStart = chunk().count;
+
+    compile(stmt.condition);
+
+    int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+
+    emitByte(OpCode.POP);
+    compile(stmt.body);
+    emitLoop(loopStart);
+
+    patchJump(exitJump);
+    emitByte(OpCode.POP);
+
+    return null;
+  }
+}
@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class Chunk {
+  byte[] code = new byte[16];
+  int count = 0;
+
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndices = new HashMap<>();
+
+  // Run-length encoded line table: lineStarts[i] is the first offset that
+  // belongs to lineNumbers[i].
+  private int[] lineStarts = new int[4];
+  private int[] lineNumbers = new int[4];
+  private int lineCount = 0;
+
+  void write(int value, int line) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+    }
+
+    if (lineCount == 0 || lineNumbers[lineCount - 1] != line) {
+      if (lineCount == lineStarts.length) {
+        lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+        lineNumbers = Arrays.copyOf(lineNumbers, lineCount * 2);
+      }
+
+      lineStarts[lineCount] = count;
+      lineNumbers[lineCount] = line;
+      lineCount++;
+    }
+
+    code[count++] = (byte) value;
+  }
+
+  int addConstant(Object value) {
+    // Functions are compared by identity, everything else can be shared.
+    if (value instanceof Obj) {
+      constants.add(value);
+
+      return constants.size() - 1;
+    }
+
+    Integer index = constantIndices.get(value);
+
+    if (index == null) {
+      index = constants.size();
+
+      constants.add(value);
+      constantIndices.put(value, index);
+    }
+
+    return index;
+  }
+
+  int constantCount() {
+    return constants.size();
+  }
+
+  Object[] constants() {
+    return constants.toArray();
+  }
+
+  int getLine(int offset) {
+    int low = 0;
+    int high = lineCount - 1;
+
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+
+      if (lineStarts[mid] <= offset) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    return lineNumbers[low];
+  }
+}
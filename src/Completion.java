@@ -0,0 +1,13 @@
+// How a statement finished. Statements that can end a function early report
+// it through their result instead of unwinding the Java stack; the value of a
+// return travels in Interpreter.returnValue. Other abrupt completions such as
+// break or continue would be added here.
+//
+// TAIL_CALL is a return whose value is a call to a Lox function. The call is
+// parked on the Interpreter and made by LoxFunction.invoke once the returning
+// function's frame is gone, so tail recursion runs in constant Java stack.
+enum Completion {
+  NORMAL,
+  RETURN,
+  TAIL_CALL
+}
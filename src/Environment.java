@@ -1,71 +1,158 @@
-import java.util.HashMap;
-import java.util.Map;
-
-public class Environment {
-  final Environment enclosing;
-
-  Environment() {
-    enclosing = null;
-  }
-
-  Environment(Environment enclosing) {
-    this.enclosing = enclosing;
-  }
-
-  private final Map<String, Object> values = new HashMap<>();
-
-  Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
-      Object value = values.get(name.lexeme);
-
-      if (value == null)
-        throw new RuntimeError(name, "Uninitialized variable '" + name.lexeme + "'.");
-
-      return value;
-    }
-
-    // Recursively search the enclosing environment.
-    if (enclosing != null)
-      return enclosing.get(name);
-
-    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-  }
-
-  Object getAt(Integer distance, String name) {
-    return ancestor(distance).values.get(name);
-  }
-
-  Environment ancestor(Integer distance) {
-    Environment environment = this;
-
-    for (int i = 0; i < distance; i++) {
-      environment = environment.enclosing;
-    }
-
-    return environment;
-  }
-
-  void define(String name, Object value) {
-    values.put(name, value);
-  }
-
-  void assign(Token name, Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
-
-      return;
-    }
-
-    if (enclosing != null) {
-      enclosing.assign(name, value);
-
-      return;
-    }
-
-    throw new RuntimeError(null, "Undefined variable '" + name + "'.");
-  }
-
-  public void assignAt(Integer distance, Token name, Object value) {
-    ancestor(distance).values.put(name.lexeme, value);
-  }
-}
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class Environment {
+  // A captured variable, shared by the frame that declared it and every
+  // closure that refers to it.
+  static final class Cell {
+    Object value;
+
+    Cell(Object value) {
+      this.value = value;
+    }
+  }
+
+  private static final Cell[] NO_UPVALUES = new Cell[0];
+
+  // Only the global environment is keyed by name. A frame stores its
+  // variables in the slots the Resolver assigned them.
+  private final Map<String, Object> values;
+  private final Object[] slots;
+  // The running closure's upvalues, on a frame.
+  Cell[] upvalues = null;
+
+  // The node backend keeps numbers unboxed: such a slot holds NUMBER and its
+  // value lives in numbers, which is only allocated once it is needed.
+  private static final Object NUMBER = new Object();
+  private double[] numbers = null;
+
+  Environment() {
+    values = new HashMap<>();
+    slots = null;
+  }
+
+  Environment(int size) {
+    values = null;
+    slots = new Object[size];
+  }
+
+  Object get(Token name) {
+    if (values.containsKey(name.lexeme)) {
+      Object value = values.get(name.lexeme);
+
+      if (value == null)
+        throw new RuntimeError(name, "Uninitialized variable '" + name.lexeme + "'.");
+
+      return value;
+    }
+
+    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+  }
+
+  Object getAt(int access, int index) {
+    if (access == FrameLayout.SLOT)
+      return getLocal(index);
+
+    return cell(access, index).value;
+  }
+
+  Object getLocal(int slot) {
+    Object value = slots[slot];
+
+    if (value == NUMBER)
+      return numbers[slot];
+
+    return value;
+  }
+
+  // Reads a frame slot that holds no number and clears it.
+  Object takeLocal(int slot) {
+    Object value = slots[slot];
+
+    slots[slot] = null;
+
+    return value;
+  }
+
+  Cell cell(int access, int index) {
+    if (access == FrameLayout.CELL)
+      return (Cell) slots[index];
+
+    return upvalues[index];
+  }
+
+  boolean isNumber(int slot) {
+    return slots[slot] == NUMBER;
+  }
+
+  double number(int slot) {
+    return numbers[slot];
+  }
+
+  void define(String name, Object value) {
+    values.put(name, value);
+  }
+
+  void defineLocal(int slot, Object value) {
+    slots[slot] = value;
+  }
+
+  // Gives a captured local a new cell, so closures created from now on share
+  // it while the ones created before keep the cell they had.
+  void defineCell(int slot, Object value) {
+    slots[slot] = new Cell(value);
+  }
+
+  void assign(Token name, Object value) {
+    if (values.containsKey(name.lexeme)) {
+      values.put(name.lexeme, value);
+
+      return;
+    }
+
+    throw new RuntimeError(null, "Undefined variable '" + name + "'.");
+  }
+
+  void assignAt(int access, int index, Object value) {
+    if (access == FrameLayout.SLOT)
+      slots[index] = value;
+    else
+      cell(access, index).value = value;
+  }
+
+  void assignNumber(int slot, double value) {
+    if (numbers == null)
+      numbers = new double[slots.length];
+
+    numbers[slot] = value;
+    slots[slot] = NUMBER;
+  }
+
+  // The upvalues of a closure created in this frame.
+  Cell[] capture(FrameLayout layout) {
+    int count = layout.upvalueAccess.length;
+
+    if (count == 0)
+      return NO_UPVALUES;
+
+    Cell[] cells = new Cell[count];
+
+    for (int i = 0; i < count; i++) {
+      cells[i] = cell(layout.upvalueAccess[i], layout.upvalueIndex[i]);
+    }
+
+    return cells;
+  }
+
+  int capacity() {
+    return slots.length;
+  }
+
+  // Readies a frame for its next call, without keeping the last one's
+  // values alive.
+  void clear(int size) {
+    Arrays.fill(slots, 0, size, null);
+    upvalues = null;
+  }
+}
@@ -0,0 +1,42 @@
+import java.util.List;
+
+// Where the scanner, parser, resolver and bytecode compiler report the errors
+// they find. The command line's reporter prints them as they come, while a
+// host compiling sources of its own gives each compile a reporter that keeps
+// that compile's messages, so compiles don't share any error state.
+final class ErrorReporter {
+  // Null when errors are printed.
+  private final List<String> messages;
+  boolean hadError = false;
+
+  ErrorReporter() {
+    this.messages = null;
+  }
+
+  ErrorReporter(List<String> messages) {
+    this.messages = messages;
+  }
+
+  void error(int line, String message) {
+    report(line, "", message);
+  }
+
+  void error(Token token, String message) {
+    if (token.type == TokenType.EOF) {
+      report(token.line, " at end", message);
+    } else {
+      report(token.line, " at '" + token.lexeme + "'", message);
+    }
+  }
+
+  private void report(int line, String where, String message) {
+    String error = "[line " + line + "] Error" + where + ": " + message;
+
+    if (messages == null)
+      System.err.println(error);
+    else
+      messages.add(error);
+
+    hadError = true;
+  }
+}
@@ -1,211 +1,262 @@
-import java.util.List;
-
-abstract class Expr {
-  interface Visitor<R> {
-    R visitAssignExpr(Assign expr);
-
-    R visitBinaryExpr(Binary expr);
-
-    R visitCallExpr(Call expr);
-
-    R visitGetExpr(Get expr);
-
-    R visitGroupingExpr(Grouping expr);
-
-    R visitLiteralExpr(Literal expr);
-
-    R visitLogicalExpr(Logical expr);
-
-    R visitSetExpr(Set expr);
-
-    R visitSuperExpr(Super expr);
-
-    R visitThisExpr(This expr);
-
-    R visitUnaryExpr(Unary expr);
-
-    R visitVariableExpr(Variable expr);
-  }
-
-  static class Assign extends Expr {
-    Assign(Token name, Expr value) {
-      this.name = name;
-      this.value = value;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitAssignExpr(this);
-    }
-
-    final Token name;
-    final Expr value;
-  }
-
-  static class Binary extends Expr {
-    Binary(Expr left, Token operator, Expr right) {
-      this.left = left;
-      this.operator = operator;
-      this.right = right;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitBinaryExpr(this);
-    }
-
-    final Expr left;
-    final Token operator;
-    final Expr right;
-  }
-
-  static class Call extends Expr {
-    Call(Expr callee, Token paren, List<Expr> arguments) {
-      this.callee = callee;
-      this.paren = paren;
-      this.arguments = arguments;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitCallExpr(this);
-    }
-
-    final Expr callee;
-    final Token paren;
-    final List<Expr> arguments;
-  }
-
-  static class Get extends Expr {
-    Get(Expr object, Token name) {
-      this.object = object;
-      this.name = name;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitGetExpr(this);
-    }
-
-    final Expr object;
-    final Token name;
-  }
-
-  static class Grouping extends Expr {
-    Grouping(Expr expression) {
-      this.expression = expression;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitGroupingExpr(this);
-    }
-
-    final Expr expression;
-  }
-
-  static class Literal extends Expr {
-    Literal(Object value) {
-      this.value = value;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitLiteralExpr(this);
-    }
-
-    final Object value;
-  }
-
-  static class Logical extends Expr {
-    Logical(Expr left, Token operator, Expr right) {
-      this.left = left;
-      this.operator = operator;
-      this.right = right;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitLogicalExpr(this);
-    }
-
-    final Expr left;
-    final Token operator;
-    final Expr right;
-  }
-
-  static class Set extends Expr {
-    Set(Expr object, Token name, Expr value) {
-      this.object = object;
-      this.name = name;
-      this.value = value;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitSetExpr(this);
-    }
-
-    final Expr object;
-    final Token name;
-    final Expr value;
-  }
-
-  static class Super extends Expr {
-    Super(Token keyword, Token method) {
-      this.keyword = keyword;
-      this.method = method;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitSuperExpr(this);
-    }
-
-    final Token keyword;
-    final Token method;
-  }
-
-  static class This extends Expr {
-    This(Token keyword) {
-      this.keyword = keyword;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitThisExpr(this);
-    }
-
-    final Token keyword;
-  }
-
-  static class Unary extends Expr {
-    Unary(Token operator, Expr right) {
-      this.operator = operator;
-      this.right = right;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitUnaryExpr(this);
-    }
-
-    final Token operator;
-    final Expr right;
-  }
-
-  static class Variable extends Expr {
-    Variable(Token name) {
-      this.name = name;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitVariableExpr(this);
-    }
-
-    final Token name;
-  }
-
-  abstract <R> R accept(Visitor<R> visitor);
-}
+import java.util.List;
+
+abstract sealed class Expr {
+  // The kind of each node class, to switch on.
+  static final int ASSIGN = 0;
+  static final int BINARY = 1;
+  static final int CALL = 2;
+  static final int GET = 3;
+  static final int GROUPING = 4;
+  static final int LITERAL = 5;
+  static final int LOGICAL = 6;
+  static final int SET = 7;
+  static final int SUPER = 8;
+  static final int THIS = 9;
+  static final int UNARY = 10;
+  static final int VARIABLE = 11;
+
+  interface Visitor<R> {
+    R visitAssignExpr(Assign expr);
+
+    R visitBinaryExpr(Binary expr);
+
+    R visitCallExpr(Call expr);
+
+    R visitGetExpr(Get expr);
+
+    R visitGroupingExpr(Grouping expr);
+
+    R visitLiteralExpr(Literal expr);
+
+    R visitLogicalExpr(Logical expr);
+
+    R visitSetExpr(Set expr);
+
+    R visitSuperExpr(Super expr);
+
+    R visitThisExpr(This expr);
+
+    R visitUnaryExpr(Unary expr);
+
+    R visitVariableExpr(Variable expr);
+  }
+
+  // Which of the classes below this node is, as one of the constants above.
+  final int kind;
+
+  private Expr(int kind) {
+    this.kind = kind;
+  }
+
+  static final class Assign extends Expr {
+    Assign(Token name, Expr value) {
+      super(ASSIGN);
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitAssignExpr(this);
+    }
+
+    final Token name;
+    final Expr value;
+
+    int access = FrameLayout.GLOBAL;
+    int index;
+  }
+
+  static final class Binary extends Expr {
+    Binary(Expr left, Token operator, Expr right) {
+      super(BINARY);
+      this.left = left;
+      this.operator = operator;
+      this.right = right;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitBinaryExpr(this);
+    }
+
+    final Expr left;
+    final Token operator;
+    final Expr right;
+  }
+
+  static final class Call extends Expr {
+    Call(Expr callee, Token paren, List<Expr> arguments) {
+      super(CALL);
+      this.callee = callee;
+      this.paren = paren;
+      this.arguments = arguments;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCallExpr(this);
+    }
+
+    final Expr callee;
+    final Token paren;
+    final List<Expr> arguments;
+  }
+
+  static final class Get extends Expr {
+    Get(Expr object, Token name) {
+      super(GET);
+      this.object = object;
+      this.name = name;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitGetExpr(this);
+    }
+
+    final Expr object;
+    final Token name;
+
+    PropertyCache cache = new PropertyCache();
+  }
+
+  static final class Grouping extends Expr {
+    Grouping(Expr expression) {
+      super(GROUPING);
+      this.expression = expression;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitGroupingExpr(this);
+    }
+
+    final Expr expression;
+  }
+
+  static final class Literal extends Expr {
+    Literal(Object value) {
+      super(LITERAL);
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLiteralExpr(this);
+    }
+
+    final Object value;
+  }
+
+  static final class Logical extends Expr {
+    Logical(Expr left, Token operator, Expr right) {
+      super(LOGICAL);
+      this.left = left;
+      this.operator = operator;
+      this.right = right;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLogicalExpr(this);
+    }
+
+    final Expr left;
+    final Token operator;
+    final Expr right;
+  }
+
+  static final class Set extends Expr {
+    Set(Expr object, Token name, Expr value) {
+      super(SET);
+      this.object = object;
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitSetExpr(this);
+    }
+
+    final Expr object;
+    final Token name;
+    final Expr value;
+
+    PropertyCache cache = new PropertyCache();
+  }
+
+  static final class Super extends Expr {
+    Super(Token keyword, Token method) {
+      super(SUPER);
+      this.keyword = keyword;
+      this.method = method;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitSuperExpr(this);
+    }
+
+    final Token keyword;
+    final Token method;
+
+    int access;
+    int index;
+    int receiverAccess;
+    int receiverIndex;
+  }
+
+  static final class This extends Expr {
+    This(Token keyword) {
+      super(THIS);
+      this.keyword = keyword;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitThisExpr(this);
+    }
+
+    final Token keyword;
+
+    int access;
+    int index;
+  }
+
+  static final class Unary extends Expr {
+    Unary(Token operator, Expr right) {
+      super(UNARY);
+      this.operator = operator;
+      this.right = right;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitUnaryExpr(this);
+    }
+
+    final Token operator;
+    final Expr right;
+  }
+
+  static final class Variable extends Expr {
+    Variable(Token name) {
+      super(VARIABLE);
+      this.name = name;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitVariableExpr(this);
+    }
+
+    final Token name;
+
+    int access = FrameLayout.GLOBAL;
+    int index;
+  }
+
+  abstract <R> R accept(Visitor<R> visitor);
+}
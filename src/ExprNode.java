@@ -0,0 +1,1038 @@
+import java.util.function.Supplier;
+
+// Executable expression nodes built once by NodeCompiler. Each node already
+// knows its operator and where its variables live, so evaluating one is a
+// direct call instead of a visitor dispatch plus a switch.
+abstract class ExprNode {
+  // Implemented by every node that owns expression children, so that a child
+  // can rewrite itself in place.
+  interface Parent {
+    void replaceChild(ExprNode child, ExprNode replacement);
+  }
+
+  // Thrown by evaluateDouble() when the value turns out not to be a number.
+  // It carries the value so the caller can carry on without evaluating the
+  // node again.
+  static final class UnexpectedType extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final Object value;
+
+    UnexpectedType(Object value) {
+      super(null, null, false, false);
+
+      this.value = value;
+    }
+  }
+
+  private Parent parent = null;
+  // Set once the node has been swapped out of the tree.
+  private boolean replaced = false;
+
+  abstract Object evaluate(Environment environment);
+
+  // Numeric nodes override this to hand their result to a numeric parent
+  // without boxing it.
+  double evaluateDouble(Environment environment) {
+    Object value = evaluate(environment);
+
+    if (value instanceof Double)
+      return (double) value;
+
+    throw new UnexpectedType(value);
+  }
+
+  // Used where the result is discarded, so assignments need not box it.
+  void evaluateVoid(Environment environment) {
+    evaluate(environment);
+  }
+
+  // Used where the result is the value of a return statement. Call nodes
+  // override this to park the call instead of making it.
+  Completion evaluateReturn(Interpreter interpreter, Environment environment) {
+    return interpreter.returnWith(evaluate(environment));
+  }
+
+  static <T extends ExprNode> T adopt(Parent parent, T child) {
+    if (child != null)
+      ((ExprNode) child).parent = parent;
+
+    return child;
+  }
+
+  static ExprNode[] adopt(Parent parent, ExprNode[] children) {
+    for (ExprNode child : children) {
+      adopt(parent, child);
+    }
+
+    return children;
+  }
+
+  // Swaps this node in the tree for the one replacement makes, which adopts
+  // this node's children. A recursive call can swap a node out while an
+  // outer evaluation of it is still running, and the outer one then leaves
+  // the tree and the children where they are. A root node has no parent to
+  // update and simply keeps re-specializing.
+  void replace(Supplier<ExprNode> replacement) {
+    if (parent == null || replaced)
+      return;
+
+    replaced = true;
+    parent.replaceChild(this, adopt(parent, replacement.get()));
+  }
+
+  static final class Literal extends ExprNode {
+    private final Object value;
+    private final double number;
+
+    Literal(Object value) {
+      this.value = value;
+      this.number = value instanceof Double ? (double) value : 0;
+    }
+
+    Object evaluate(Environment environment) {
+      return value;
+    }
+
+    double evaluateDouble(Environment environment) {
+      if (value instanceof Double)
+        return number;
+
+      throw new UnexpectedType(value);
+    }
+  }
+
+  static final class Local extends ExprNode {
+    private final int slot;
+
+    Local(int slot) {
+      this.slot = slot;
+    }
+
+    Object evaluate(Environment environment) {
+      return environment.getLocal(slot);
+    }
+
+    double evaluateDouble(Environment environment) {
+      if (environment.isNumber(slot))
+        return environment.number(slot);
+
+      return super.evaluateDouble(environment);
+    }
+  }
+
+  // A variable held in a cell, in the frame or among the closure's upvalues.
+  static final class Captured extends ExprNode {
+    private final int access;
+    private final int index;
+
+    Captured(int access, int index) {
+      this.access = access;
+      this.index = index;
+    }
+
+    Object evaluate(Environment environment) {
+      return environment.cell(access, index).value;
+    }
+  }
+
+  static final class Global extends ExprNode {
+    private final Environment globals;
+    private final Token name;
+
+    Global(Environment globals, Token name) {
+      this.globals = globals;
+      this.name = name;
+    }
+
+    Object evaluate(Environment environment) {
+      return globals.get(name);
+    }
+  }
+
+  static final class AssignLocal extends ExprNode implements Parent {
+    private final int slot;
+    private ExprNode value;
+
+    AssignLocal(int slot, ExprNode value) {
+      this.slot = slot;
+      this.value = adopt(this, value);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (value == child)
+        value = replacement;
+    }
+
+    // Stores numbers unboxed from then on if the first value is a number.
+    Object evaluate(Environment environment) {
+      Object result = value.evaluate(environment);
+
+      environment.defineLocal(slot, result);
+
+      if (result instanceof Double)
+        replace(() -> new AssignLocalNumber(slot, value));
+      else
+        replace(() -> new AssignLocalGeneric(slot, value));
+
+      return result;
+    }
+  }
+
+  static final class AssignLocalNumber extends ExprNode implements Parent {
+    private final int slot;
+    private ExprNode value;
+
+    AssignLocalNumber(int slot, ExprNode value) {
+      this.slot = slot;
+      this.value = adopt(this, value);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (value == child)
+        value = replacement;
+    }
+
+    Object evaluate(Environment environment) {
+      try {
+        return evaluateDouble(environment);
+      } catch (UnexpectedType error) {
+        return error.value;
+      }
+    }
+
+    double evaluateDouble(Environment environment) {
+      double result;
+
+      try {
+        result = value.evaluateDouble(environment);
+      } catch (UnexpectedType error) {
+        replace(() -> new AssignLocalGeneric(slot, value));
+        environment.defineLocal(slot, error.value);
+
+        throw error;
+      }
+
+      environment.assignNumber(slot, result);
+
+      return result;
+    }
+
+    void evaluateVoid(Environment environment) {
+      try {
+        evaluateDouble(environment);
+      } catch (UnexpectedType error) {
+        // Already stored boxed.
+      }
+    }
+  }
+
+  static final class AssignLocalGeneric extends ExprNode implements Parent {
+    private final int slot;
+    private ExprNode value;
+
+    AssignLocalGeneric(int slot, ExprNode value) {
+      this.slot = slot;
+      this.value = adopt(this, value);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (value == child)
+        value = replacement;
+    }
+
+    Object evaluate(Environment environment) {
+      Object result = value.evaluate(environment);
+
+      environment.defineLocal(slot, result);
+
+      return result;
+    }
+  }
+
+  static final class AssignCaptured extends ExprNode implements Parent {
+    private final int access;
+    private final int index;
+    private ExprNode value;
+
+    AssignCaptured(int access, int index, ExprNode value) {
+      this.access = access;
+      this.index = index;
+      this.value = adopt(this, value);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (value == child)
+        value = replacement;
+    }
+
+    Object evaluate(Environment environment) {
+      Object result = value.evaluate(environment);
+
+      environment.cell(access, index).value = result;
+
+      return result;
+    }
+  }
+
+  static final class AssignGlobal extends ExprNode implements Parent {
+    private final Environment globals;
+    private final Token name;
+    private ExprNode value;
+
+    AssignGlobal(Environment globals, Token name, ExprNode value) {
+      this.globals = globals;
+      this.name = name;
+      this.value = adopt(this, value);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (value == child)
+        value = replacement;
+    }
+
+    Object evaluate(Environment environment) {
+      Object result = value.evaluate(environment);
+
+      globals.assign(name, result);
+
+      return result;
+    }
+  }
+
+  static final class Negate extends ExprNode implements Parent {
+    private final Token operator;
+    private ExprNode right;
+
+    Negate(Token operator, ExprNode right) {
+      this.operator = operator;
+      this.right = adopt(this, right);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (right == child)
+        right = replacement;
+    }
+
+    Object evaluate(Environment environment) {
+      return evaluateDouble(environment);
+    }
+
+    double evaluateDouble(Environment environment) {
+      try {
+        return -right.evaluateDouble(environment);
+      } catch (UnexpectedType error) {
+        throw new RuntimeError(operator, "Operand must be a number.");
+      }
+    }
+  }
+
+  static final class Not extends ExprNode implements Parent {
+    private ExprNode right;
+
+    Not(ExprNode right) {
+      this.right = adopt(this, right);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (right == child)
+        right = replacement;
+    }
+
+    Object evaluate(Environment environment) {
+      return !Interpreter.isTruthy(right.evaluate(environment));
+    }
+  }
+
+  abstract static class Binary extends ExprNode implements Parent {
+    final Token operator;
+    ExprNode left;
+    ExprNode right;
+
+    Binary(Token operator, ExprNode left, ExprNode right) {
+      this.operator = operator;
+      this.left = adopt(this, left);
+      this.right = adopt(this, right);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (left == child)
+        left = replacement;
+      else if (right == child)
+        right = replacement;
+    }
+
+    // Operands of number-only operators are read unboxed. The type error is
+    // only reported once the right operand has been evaluated as well, like
+    // the interpreter does.
+    double leftNumber(Environment environment) {
+      try {
+        return left.evaluateDouble(environment);
+      } catch (UnexpectedType error) {
+        right.evaluate(environment);
+
+        throw new RuntimeError(operator, "Operands must be numbers.");
+      }
+    }
+
+    double rightNumber(Environment environment) {
+      try {
+        return right.evaluateDouble(environment);
+      } catch (UnexpectedType error) {
+        throw new RuntimeError(operator, "Operands must be numbers.");
+      }
+    }
+  }
+
+  // "+" starts out uninitialized and rewrites itself for the operand types it
+  // sees first. A specialization whose guard fails falls back to the generic
+  // node for good, so a site never flips back and forth.
+  static final class Add extends Binary {
+    Add(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+
+      if (a instanceof Double && b instanceof Double) {
+        replace(() -> new AddNumbers(operator, left, right));
+
+        return (double) a + (double) b;
+      }
+
+      if (a instanceof String && b instanceof String) {
+        replace(() -> new AddStrings(operator, left, right));
+
+        return (String) a + (String) b;
+      }
+
+      replace(() -> new AddGeneric(operator, left, right));
+
+      return AddGeneric.add(operator, a, b);
+    }
+  }
+
+  static final class AddNumbers extends Binary {
+    AddNumbers(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    Object evaluate(Environment environment) {
+      try {
+        return evaluateDouble(environment);
+      } catch (UnexpectedType error) {
+        return error.value;
+      }
+    }
+
+    double evaluateDouble(Environment environment) {
+      double a;
+
+      try {
+        a = left.evaluateDouble(environment);
+      } catch (UnexpectedType error) {
+        throw generic(error.value, right.evaluate(environment));
+      }
+
+      try {
+        return a + right.evaluateDouble(environment);
+      } catch (UnexpectedType error) {
+        throw generic(a, error.value);
+      }
+    }
+
+    // Hands the boxed result of the generic node back to the caller.
+    private UnexpectedType generic(Object a, Object b) {
+      replace(() -> new AddGeneric(operator, left, right));
+
+      return new UnexpectedType(AddGeneric.add(operator, a, b));
+    }
+  }
+
+  static final class AddStrings extends Binary {
+    AddStrings(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+
+      if (a instanceof String && b instanceof String)
+        return (String) a + (String) b;
+
+      replace(() -> new AddGeneric(operator, left, right));
+
+      return AddGeneric.add(operator, a, b);
+    }
+  }
+
+  static final class AddGeneric extends Binary {
+    AddGeneric(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    Object evaluate(Environment environment) {
+      return add(operator, left.evaluate(environment), right.evaluate(environment));
+    }
+
+    static Object add(Token operator, Object a, Object b) {
+      if (a instanceof Double && b instanceof Double)
+        return (double) a + (double) b;
+
+      if (a instanceof String && b instanceof String)
+        return (String) a + (String) b;
+
+      throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+  }
+
+  static final class Subtract extends Binary {
+    Subtract(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    Object evaluate(Environment environment) {
+      return evaluateDouble(environment);
+    }
+
+    double evaluateDouble(Environment environment) {
+      return leftNumber(environment) - rightNumber(environment);
+    }
+  }
+
+  static final class Multiply extends Binary {
+    Multiply(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    Object evaluate(Environment environment) {
+      return evaluateDouble(environment);
+    }
+
+    double evaluateDouble(Environment environment) {
+      return leftNumber(environment) * rightNumber(environment);
+    }
+  }
+
+  static final class Divide extends Binary {
+    Divide(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    Object evaluate(Environment environment) {
+      return evaluateDouble(environment);
+    }
+
+    double evaluateDouble(Environment environment) {
+      return leftNumber(environment) / rightNumber(environment);
+    }
+  }
+
+  static final class Less extends Binary {
+    Less(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    Object evaluate(Environment environment) {
+      return leftNumber(environment) < rightNumber(environment);
+    }
+  }
+
+  static final class LessEqual extends Binary {
+    LessEqual(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    Object evaluate(Environment environment) {
+      return leftNumber(environment) <= rightNumber(environment);
+    }
+  }
+
+  static final class Greater extends Binary {
+    Greater(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    Object evaluate(Environment environment) {
+      return leftNumber(environment) > rightNumber(environment);
+    }
+  }
+
+  static final class GreaterEqual extends Binary {
+    GreaterEqual(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    Object evaluate(Environment environment) {
+      return leftNumber(environment) >= rightNumber(environment);
+    }
+  }
+
+  // "==" and "!=" specialize the same way as "+". Numbers are compared by
+  // their bits to keep Double.equals semantics for NaN and negative zero.
+  static final class Equal extends Binary {
+    private final boolean negated;
+
+    Equal(Token operator, ExprNode left, ExprNode right, boolean negated) {
+      super(operator, left, right);
+
+      this.negated = negated;
+    }
+
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+
+      if (a instanceof Double && b instanceof Double) {
+        replace(() -> new EqualNumbers(operator, left, right, negated));
+      } else if (a instanceof String && b instanceof String) {
+        replace(() -> new EqualStrings(operator, left, right, negated));
+      } else {
+        replace(() -> new EqualGeneric(operator, left, right, negated));
+      }
+
+      return Interpreter.isEqual(a, b) != negated;
+    }
+  }
+
+  static final class EqualNumbers extends Binary {
+    private final boolean negated;
+
+    EqualNumbers(Token operator, ExprNode left, ExprNode right, boolean negated) {
+      super(operator, left, right);
+
+      this.negated = negated;
+    }
+
+    Object evaluate(Environment environment) {
+      double a;
+      double b;
+
+      try {
+        a = left.evaluateDouble(environment);
+      } catch (UnexpectedType error) {
+        return generic(error.value, right.evaluate(environment));
+      }
+
+      try {
+        b = right.evaluateDouble(environment);
+      } catch (UnexpectedType error) {
+        return generic(a, error.value);
+      }
+
+      return (Double.doubleToLongBits(a) == Double.doubleToLongBits(b)) != negated;
+    }
+
+    private Object generic(Object a, Object b) {
+      replace(() -> new EqualGeneric(operator, left, right, negated));
+
+      return Interpreter.isEqual(a, b) != negated;
+    }
+  }
+
+  static final class EqualStrings extends Binary {
+    private final boolean negated;
+
+    EqualStrings(Token operator, ExprNode left, ExprNode right, boolean negated) {
+      super(operator, left, right);
+
+      this.negated = negated;
+    }
+
+    Object evaluate(Environment environment) {
+      Object a = left.evaluate(environment);
+      Object b = right.evaluate(environment);
+
+      if (a instanceof String && b instanceof String)
+        return a.equals(b) != negated;
+
+      replace(() -> new EqualGeneric(operator, left, right, negated));
+
+      return Interpreter.isEqual(a, b) != negated;
+    }
+  }
+
+  static final class EqualGeneric extends Binary {
+    private final boolean negated;
+
+    EqualGeneric(Token operator, ExprNode left, ExprNode right, boolean negated) {
+      super(operator, left, right);
+
+      this.negated = negated;
+    }
+
+    Object evaluate(Environment environment) {
+      return Interpreter.isEqual(left.evaluate(environment), right.evaluate(environment)) != negated;
+    }
+  }
+
+  static final class And extends ExprNode implements Parent {
+    private ExprNode left;
+    private ExprNode right;
+
+    And(ExprNode left, ExprNode right) {
+      this.left = adopt(this, left);
+      this.right = adopt(this, right);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (left == child)
+        left = replacement;
+      else if (right == child)
+        right = replacement;
+    }
+
+    Object evaluate(Environment environment) {
+      Object value = left.evaluate(environment);
+
+      if (!Interpreter.isTruthy(value))
+        return value;
+
+      return right.evaluate(environment);
+    }
+  }
+
+  static final class Or extends ExprNode implements Parent {
+    private ExprNode left;
+    private ExprNode right;
+
+    Or(ExprNode left, ExprNode right) {
+      this.left = adopt(this, left);
+      this.right = adopt(this, right);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (left == child)
+        left = replacement;
+      else if (right == child)
+        right = replacement;
+    }
+
+    Object evaluate(Environment environment) {
+      Object value = left.evaluate(environment);
+
+      if (Interpreter.isTruthy(value))
+        return value;
+
+      return right.evaluate(environment);
+    }
+  }
+
+  static final class Call extends ExprNode implements Parent {
+    private final Interpreter interpreter;
+    private ExprNode callee;
+    private final Token paren;
+    private final ExprNode[] arguments;
+
+    Call(Interpreter interpreter, ExprNode callee, Token paren, ExprNode[] arguments) {
+      this.interpreter = interpreter;
+      this.callee = adopt(this, callee);
+      this.paren = paren;
+      this.arguments = adopt(this, arguments);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (callee == child) {
+        callee = replacement;
+
+        return;
+      }
+
+      for (int i = 0; i < arguments.length; i++) {
+        if (arguments[i] == child)
+          arguments[i] = replacement;
+      }
+    }
+
+    Object evaluate(Environment environment) {
+      Object function = callee.evaluate(environment);
+
+      return call(interpreter, paren, function, null, arguments, environment);
+    }
+
+    Completion evaluateReturn(Interpreter interpreter, Environment environment) {
+      Object function = callee.evaluate(environment);
+
+      return returnCall(interpreter, paren, function, null, arguments, environment);
+    }
+
+    // Evaluates the arguments and makes the call, passing up to four of them
+    // one by one rather than in an array. Shared with the invoke nodes.
+    static Object call(Interpreter interpreter, Token paren, Object function,
+        LoxInstance receiver, ExprNode[] arguments, Environment environment) {
+      switch (arguments.length) {
+        case 0:
+          return interpreter.call(paren, function, receiver);
+
+        case 1:
+          return interpreter.call(paren, function, receiver, arguments[0].evaluate(environment));
+
+        case 2: {
+          Object a = arguments[0].evaluate(environment);
+          Object b = arguments[1].evaluate(environment);
+
+          return interpreter.call(paren, function, receiver, a, b);
+        }
+
+        case 3: {
+          Object a = arguments[0].evaluate(environment);
+          Object b = arguments[1].evaluate(environment);
+          Object c = arguments[2].evaluate(environment);
+
+          return interpreter.call(paren, function, receiver, a, b, c);
+        }
+
+        case 4: {
+          Object a = arguments[0].evaluate(environment);
+          Object b = arguments[1].evaluate(environment);
+          Object c = arguments[2].evaluate(environment);
+          Object d = arguments[3].evaluate(environment);
+
+          return interpreter.call(paren, function, receiver, a, b, c, d);
+        }
+
+        default:
+          return interpreter.call(paren, function, receiver, evaluateAll(arguments, environment));
+      }
+    }
+
+    static Completion returnCall(Interpreter interpreter, Token paren, Object function,
+        LoxInstance receiver, ExprNode[] arguments, Environment environment) {
+      switch (arguments.length) {
+        case 0:
+          return interpreter.returnCall(paren, function, receiver);
+
+        case 1:
+          return interpreter.returnCall(paren, function, receiver,
+              arguments[0].evaluate(environment));
+
+        case 2: {
+          Object a = arguments[0].evaluate(environment);
+          Object b = arguments[1].evaluate(environment);
+
+          return interpreter.returnCall(paren, function, receiver, a, b);
+        }
+
+        case 3: {
+          Object a = arguments[0].evaluate(environment);
+          Object b = arguments[1].evaluate(environment);
+          Object c = arguments[2].evaluate(environment);
+
+          return interpreter.returnCall(paren, function, receiver, a, b, c);
+        }
+
+        case 4: {
+          Object a = arguments[0].evaluate(environment);
+          Object b = arguments[1].evaluate(environment);
+          Object c = arguments[2].evaluate(environment);
+          Object d = arguments[3].evaluate(environment);
+
+          return interpreter.returnCall(paren, function, receiver, a, b, c, d);
+        }
+
+        default:
+          return interpreter.returnCall(paren, function, receiver,
+              evaluateAll(arguments, environment));
+      }
+    }
+
+    private static Object[] evaluateAll(ExprNode[] arguments, Environment environment) {
+      Object[] values = new Object[arguments.length];
+
+      for (int i = 0; i < values.length; i++) {
+        values[i] = arguments[i].evaluate(environment);
+      }
+
+      return values;
+    }
+  }
+
+  // obj.method(...): the method is looked up unbound and invoked with obj as
+  // its receiver, so no bound copy is allocated.
+  static final class Invoke extends ExprNode implements Parent {
+    private final Interpreter interpreter;
+    private ExprNode object;
+    private final Token name;
+    private final Token paren;
+    private final ExprNode[] arguments;
+    private final PropertyCache cache = new PropertyCache();
+
+    Invoke(Interpreter interpreter, ExprNode object, Token name, Token paren, ExprNode[] arguments) {
+      this.interpreter = interpreter;
+      this.object = adopt(this, object);
+      this.name = name;
+      this.paren = paren;
+      this.arguments = adopt(this, arguments);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (object == child) {
+        object = replacement;
+
+        return;
+      }
+
+      for (int i = 0; i < arguments.length; i++) {
+        if (arguments[i] == child)
+          arguments[i] = replacement;
+      }
+    }
+
+    Object evaluate(Environment environment) {
+      LoxInstance receiver = receiver(environment);
+      Object function = cache.lookup(receiver, name);
+
+      return Call.call(interpreter, paren, function, receiver, arguments, environment);
+    }
+
+    Completion evaluateReturn(Interpreter interpreter, Environment environment) {
+      LoxInstance receiver = receiver(environment);
+      Object function = cache.lookup(receiver, name);
+
+      return Call.returnCall(interpreter, paren, function, receiver, arguments, environment);
+    }
+
+    private LoxInstance receiver(Environment environment) {
+      Object value = object.evaluate(environment);
+
+      if (!(value instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances have properties.");
+      }
+
+      return (LoxInstance) value;
+    }
+  }
+
+  static final class SuperInvoke extends ExprNode implements Parent {
+    private final Interpreter interpreter;
+    private final Super method;
+    private final Token paren;
+    private final ExprNode[] arguments;
+
+    SuperInvoke(Interpreter interpreter, Super method, Token paren, ExprNode[] arguments) {
+      this.interpreter = interpreter;
+      this.method = method;
+      this.paren = paren;
+      this.arguments = adopt(this, arguments);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      for (int i = 0; i < arguments.length; i++) {
+        if (arguments[i] == child)
+          arguments[i] = replacement;
+      }
+    }
+
+    Object evaluate(Environment environment) {
+      LoxFunction function = method.find(environment);
+      LoxInstance receiver = method.receiver(environment);
+
+      return Call.call(interpreter, paren, function, receiver, arguments, environment);
+    }
+
+    Completion evaluateReturn(Interpreter interpreter, Environment environment) {
+      LoxFunction function = method.find(environment);
+      LoxInstance receiver = method.receiver(environment);
+
+      return Call.returnCall(interpreter, paren, function, receiver, arguments, environment);
+    }
+  }
+
+  static final class Get extends ExprNode implements Parent {
+    private ExprNode object;
+    private final Token name;
+    private final PropertyCache cache = new PropertyCache();
+
+    Get(ExprNode object, Token name) {
+      this.object = adopt(this, object);
+      this.name = name;
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (object == child)
+        object = replacement;
+    }
+
+    Object evaluate(Environment environment) {
+      Object value = object.evaluate(environment);
+
+      if (value instanceof LoxInstance) {
+        return ((LoxInstance) value).get(name, cache);
+      }
+
+      throw new RuntimeError(name, "Only instances have properties.");
+    }
+  }
+
+  static final class Set extends ExprNode implements Parent {
+    private ExprNode object;
+    private final Token name;
+    private ExprNode value;
+    private final PropertyCache cache = new PropertyCache();
+
+    Set(ExprNode object, Token name, ExprNode value) {
+      this.object = adopt(this, object);
+      this.name = name;
+      this.value = adopt(this, value);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (object == child)
+        object = replacement;
+      else if (value == child)
+        value = replacement;
+    }
+
+    Object evaluate(Environment environment) {
+      Object target = object.evaluate(environment);
+
+      if (!(target instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances have fields.");
+      }
+
+      Object result = value.evaluate(environment);
+
+      ((LoxInstance) target).set(name, result, cache);
+
+      return result;
+    }
+  }
+
+  static final class Super extends ExprNode {
+    private final int access;
+    private final int index;
+    private final int receiverAccess;
+    private final int receiverIndex;
+    private final Token method;
+
+    Super(int access, int index, int receiverAccess, int receiverIndex, Token method) {
+      this.access = access;
+      this.index = index;
+      this.receiverAccess = receiverAccess;
+      this.receiverIndex = receiverIndex;
+      this.method = method;
+    }
+
+    Object evaluate(Environment environment) {
+      return find(environment).bind(receiver(environment));
+    }
+
+    LoxFunction find(Environment environment) {
+      LoxClass superclass = (LoxClass) environment.getAt(access, index);
+      LoxFunction function = superclass.findMethod(method.lexeme);
+
+      if (function == null) {
+        throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+      }
+
+      return function;
+    }
+
+    LoxInstance receiver(Environment environment) {
+      return (LoxInstance) environment.getAt(receiverAccess, receiverIndex);
+    }
+  }
+}
@@ -0,0 +1,521 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A resolved program packed into one int array, for keeping many parsed
+// scripts resident. Each node is a record at some offset in code: its kind
+// (an Expr or Stmt kind, told apart by where the node is used), then its
+// operands, which are the offsets of child nodes (-1 for none), indexes
+// into the side tables, and what the Resolver worked out. Children come
+// before their parent, and the program's top-level block is at root.
+//
+// Nothing in a FlatAst changes once it is made, so one can be run by any
+// number of interpreters at once. Each run has its own property caches,
+// as a cache filled by one run only holds shapes that run made.
+//
+//   ASSIGN     name, value, location
+//   BINARY     operator, left, right
+//   CALL       paren, callee, count, arguments...
+//   GET        name, object, cache
+//   LITERAL    constant
+//   LOGICAL    operator, left, right
+//   SET        name, object, value, cache
+//   SUPER      keyword, method, location, receiver location
+//   THIS       keyword, location
+//   UNARY      operator, right
+//   VARIABLE   name, location
+//
+//   BLOCK      count, statements...
+//   CLASS      name, declaration, superclass, superclass slot, count, methods...
+//   EXPRESSION expression
+//   FUNCTION   name, declaration, layout, count, parameters..., count, body...
+//   IF         condition, then, else
+//   RETURN     keyword, value
+//   VAR        name, declaration, initializer
+//   WHILE      condition, body
+//
+// Groupings are left out, as they only matter to the parser. FlatInterpreter
+// runs the encoding, decode() turns it back into a tree, and ScriptCache
+// keeps it on disk.
+final class FlatAst {
+  final int[] code;
+  final int root;
+  // Slots the top-level code needs in the script's frame.
+  final int frameSize;
+  final Object[] constants;
+  final Token[] tokens;
+  final FrameLayout[] layouts;
+  // How many Get and Set sites there are. A GET or SET record holds its
+  // site's number, and each run makes a PropertyCache per site.
+  final int caches;
+
+  FlatAst(int[] code, int root, int frameSize, Object[] constants, Token[] tokens,
+      FrameLayout[] layouts, int caches) {
+    this.code = code;
+    this.root = root;
+    this.frameSize = frameSize;
+    this.constants = constants;
+    this.tokens = tokens;
+    this.layouts = layouts;
+    this.caches = caches;
+  }
+
+  // A variable's location packs its access kind into the low two bits of
+  // its slot or upvalue index, or is -1 for a global.
+  static int location(int access, int index) {
+    return access == FrameLayout.GLOBAL ? -1 : index << 2 | access;
+  }
+
+  static int access(int location) {
+    return location & 3;
+  }
+
+  static int index(int location) {
+    return location >> 2;
+  }
+
+  // A declaration packs whether it is captured into the low bit of its
+  // slot, which may be GLOBAL.
+  static int slot(int declaration) {
+    return declaration >> 1;
+  }
+
+  static boolean captured(int declaration) {
+    return (declaration & 1) != 0;
+  }
+
+  static FlatAst encode(List<Stmt> statements, int frameSize) {
+    Encoder encoder = new Encoder();
+
+    return encoder.finish(encoder.block(statements), frameSize);
+  }
+
+  static FlatAst encode(Expr expression) {
+    Encoder encoder = new Encoder();
+
+    return encoder.finish(encoder.encode(expression), 0);
+  }
+
+  // The statements of the top-level block, as a resolved tree that any of
+  // the backends can run. Every Get and Set gets a new PropertyCache.
+  List<Stmt> decode() {
+    return new Decoder().block(root).statements;
+  }
+
+  private static final class Encoder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+    private int[] code = new int[256];
+    private int size = 0;
+    private final Map<Object, Integer> constants = new HashMap<>();
+    private final Map<Token, Integer> tokens = new IdentityHashMap<>();
+    private final Map<FrameLayout, Integer> layouts = new IdentityHashMap<>();
+    private int caches = 0;
+
+    FlatAst finish(int root, int frameSize) {
+      Object[] constantTable = new Object[constants.size()];
+      Token[] tokenTable = new Token[tokens.size()];
+      FrameLayout[] layoutTable = new FrameLayout[layouts.size()];
+
+      for (Map.Entry<Object, Integer> entry : constants.entrySet()) {
+        constantTable[entry.getValue()] = entry.getKey();
+      }
+
+      for (Map.Entry<Token, Integer> entry : tokens.entrySet()) {
+        tokenTable[entry.getValue()] = entry.getKey();
+      }
+
+      for (Map.Entry<FrameLayout, Integer> entry : layouts.entrySet()) {
+        layoutTable[entry.getValue()] = entry.getKey();
+      }
+
+      return new FlatAst(Arrays.copyOf(code, size), root, frameSize, constantTable, tokenTable,
+          layoutTable, caches);
+    }
+
+    private int encode(Expr expression) {
+      return expression == null ? -1 : expression.accept(this);
+    }
+
+    private int encode(Stmt statement) {
+      return statement == null ? -1 : statement.accept(this);
+    }
+
+    private int[] encodeAll(List<? extends Stmt> statements) {
+      int[] offsets = new int[statements.size()];
+
+      for (int i = 0; i < offsets.length; i++) {
+        offsets[i] = encode(statements.get(i));
+      }
+
+      return offsets;
+    }
+
+    private int block(List<Stmt> statements) {
+      int[] offsets = encodeAll(statements);
+      int node = emit(Stmt.BLOCK, offsets.length);
+
+      emitAll(offsets);
+
+      return node;
+    }
+
+    // Starts a record, returning its offset.
+    private int emit(int kind, int... operands) {
+      int node = size;
+
+      append(kind);
+      emitAll(operands);
+
+      return node;
+    }
+
+    private void emitAll(int[] operands) {
+      for (int operand : operands) {
+        append(operand);
+      }
+    }
+
+    private void append(int value) {
+      if (size == code.length)
+        code = Arrays.copyOf(code, size * 2);
+
+      code[size++] = value;
+    }
+
+    private int constant(Object value) {
+      Integer index = constants.get(value);
+
+      if (index == null) {
+        index = constants.size();
+        constants.put(value, index);
+      }
+
+      return index;
+    }
+
+    private int token(Token token) {
+      Integer index = tokens.get(token);
+
+      if (index == null) {
+        index = tokens.size();
+        tokens.put(token, index);
+      }
+
+      return index;
+    }
+
+    private int layout(FrameLayout layout) {
+      Integer index = layouts.get(layout);
+
+      if (index == null) {
+        index = layouts.size();
+        layouts.put(layout, index);
+      }
+
+      return index;
+    }
+
+    private static int declaration(int slot, boolean captured) {
+      return slot << 1 | (captured ? 1 : 0);
+    }
+
+    public Integer visitAssignExpr(Expr.Assign expr) {
+      int value = encode(expr.value);
+
+      return emit(Expr.ASSIGN, token(expr.name), value, location(expr.access, expr.index));
+    }
+
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+      int left = encode(expr.left);
+      int right = encode(expr.right);
+
+      return emit(Expr.BINARY, token(expr.operator), left, right);
+    }
+
+    public Integer visitCallExpr(Expr.Call expr) {
+      int callee = encode(expr.callee);
+      int[] arguments = new int[expr.arguments.size()];
+
+      for (int i = 0; i < arguments.length; i++) {
+        arguments[i] = encode(expr.arguments.get(i));
+      }
+
+      int node = emit(Expr.CALL, token(expr.paren), callee, arguments.length);
+
+      emitAll(arguments);
+
+      return node;
+    }
+
+    public Integer visitGetExpr(Expr.Get expr) {
+      int object = encode(expr.object);
+
+      return emit(Expr.GET, token(expr.name), object, caches++);
+    }
+
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+      return encode(expr.expression);
+    }
+
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+      return emit(Expr.LITERAL, constant(expr.value));
+    }
+
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+      int left = encode(expr.left);
+      int right = encode(expr.right);
+
+      return emit(Expr.LOGICAL, token(expr.operator), left, right);
+    }
+
+    public Integer visitSetExpr(Expr.Set expr) {
+      int object = encode(expr.object);
+      int value = encode(expr.value);
+
+      return emit(Expr.SET, token(expr.name), object, value, caches++);
+    }
+
+    public Integer visitSuperExpr(Expr.Super expr) {
+      return emit(Expr.SUPER, token(expr.keyword), token(expr.method),
+          location(expr.access, expr.index), location(expr.receiverAccess, expr.receiverIndex));
+    }
+
+    public Integer visitThisExpr(Expr.This expr) {
+      return emit(Expr.THIS, token(expr.keyword), location(expr.access, expr.index));
+    }
+
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+      int right = encode(expr.right);
+
+      return emit(Expr.UNARY, token(expr.operator), right);
+    }
+
+    public Integer visitVariableExpr(Expr.Variable expr) {
+      return emit(Expr.VARIABLE, token(expr.name), location(expr.access, expr.index));
+    }
+
+    public Integer visitBlockStmt(Stmt.Block stmt) {
+      return block(stmt.statements);
+    }
+
+    public Integer visitClassStmt(Stmt.Class stmt) {
+      int superclass = encode(stmt.superclass);
+      int[] methods = encodeAll(stmt.methods);
+      int node = emit(Stmt.CLASS, token(stmt.name), declaration(stmt.slot, stmt.captured),
+          superclass, stmt.superclassSlot, methods.length);
+
+      emitAll(methods);
+
+      return node;
+    }
+
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
+      return emit(Stmt.EXPRESSION, encode(stmt.expression));
+    }
+
+    public Integer visitFunctionStmt(Stmt.Function stmt) {
+      int[] body = encodeAll(stmt.body);
+      int node = emit(Stmt.FUNCTION, token(stmt.name), declaration(stmt.slot, stmt.captured),
+          layout(stmt.layout), stmt.params.size());
+
+      for (Token param : stmt.params) {
+        append(token(param));
+      }
+
+      append(body.length);
+      emitAll(body);
+
+      return node;
+    }
+
+    public Integer visitIfStmt(Stmt.If stmt) {
+      int condition = encode(stmt.condition);
+      int thenBranch = encode(stmt.thenBranch);
+      int elseBranch = encode(stmt.elseBranch);
+
+      return emit(Stmt.IF, condition, thenBranch, elseBranch);
+    }
+
+    public Integer visitReturnStmt(Stmt.Return stmt) {
+      return emit(Stmt.RETURN, token(stmt.keyword), encode(stmt.value));
+    }
+
+    public Integer visitVarStmt(Stmt.Var stmt) {
+      int initializer = encode(stmt.initializer);
+
+      return emit(Stmt.VAR, token(stmt.name), declaration(stmt.slot, stmt.captured), initializer);
+    }
+
+    public Integer visitWhileStmt(Stmt.While stmt) {
+      int condition = encode(stmt.condition);
+      int body = encode(stmt.body);
+
+      return emit(Stmt.WHILE, condition, body);
+    }
+  }
+
+  private final class Decoder {
+    private Expr expression(int node) {
+      switch (code[node]) {
+        case Expr.ASSIGN: {
+          Expr.Assign expr = new Expr.Assign(tokens[code[node + 1]], expression(code[node + 2]));
+
+          expr.access = accessOf(code[node + 3]);
+          expr.index = indexOf(code[node + 3]);
+
+          return expr;
+        }
+        case Expr.BINARY:
+          return new Expr.Binary(expression(code[node + 2]), tokens[code[node + 1]],
+              expression(code[node + 3]));
+        case Expr.CALL: {
+          List<Expr> arguments = new ArrayList<>(code[node + 3]);
+
+          for (int i = 0; i < code[node + 3]; i++) {
+            arguments.add(expression(code[node + 4 + i]));
+          }
+
+          return new Expr.Call(expression(code[node + 2]), tokens[code[node + 1]], arguments);
+        }
+        case Expr.GET:
+          return new Expr.Get(expression(code[node + 2]), tokens[code[node + 1]]);
+        case Expr.LITERAL:
+          return new Expr.Literal(constants[code[node + 1]]);
+        case Expr.LOGICAL:
+          return new Expr.Logical(expression(code[node + 2]), tokens[code[node + 1]],
+              expression(code[node + 3]));
+        case Expr.SET:
+          return new Expr.Set(expression(code[node + 2]), tokens[code[node + 1]],
+              expression(code[node + 3]));
+        case Expr.SUPER: {
+          Expr.Super expr = new Expr.Super(tokens[code[node + 1]], tokens[code[node + 2]]);
+
+          expr.access = accessOf(code[node + 3]);
+          expr.index = indexOf(code[node + 3]);
+          expr.receiverAccess = accessOf(code[node + 4]);
+          expr.receiverIndex = indexOf(code[node + 4]);
+
+          return expr;
+        }
+        case Expr.THIS: {
+          Expr.This expr = new Expr.This(tokens[code[node + 1]]);
+
+          expr.access = accessOf(code[node + 2]);
+          expr.index = indexOf(code[node + 2]);
+
+          return expr;
+        }
+        case Expr.UNARY:
+          return new Expr.Unary(tokens[code[node + 1]], expression(code[node + 2]));
+        case Expr.VARIABLE: {
+          Expr.Variable expr = new Expr.Variable(tokens[code[node + 1]]);
+
+          expr.access = accessOf(code[node + 2]);
+          expr.index = indexOf(code[node + 2]);
+
+          return expr;
+        }
+
+        default:
+          throw new IllegalStateException("Unknown expression kind " + code[node] + ".");
+      }
+    }
+
+    private Expr expressionOrNull(int node) {
+      return node == -1 ? null : expression(node);
+    }
+
+    private Stmt statement(int node) {
+      switch (code[node]) {
+        case Stmt.BLOCK:
+          return block(node);
+        case Stmt.CLASS: {
+          int superclassNode = code[node + 3];
+          Expr.Variable superclass = superclassNode != -1
+              ? (Expr.Variable) expression(superclassNode)
+              : null;
+          List<Stmt.Function> methods = new ArrayList<>(code[node + 5]);
+
+          for (int i = 0; i < code[node + 5]; i++) {
+            methods.add(function(code[node + 6 + i]));
+          }
+
+          Stmt.Class stmt = new Stmt.Class(tokens[code[node + 1]], superclass, methods);
+
+          stmt.slot = slot(code[node + 2]);
+          stmt.captured = captured(code[node + 2]);
+          stmt.superclassSlot = code[node + 4];
+
+          return stmt;
+        }
+        case Stmt.EXPRESSION:
+          return new Stmt.Expression(expression(code[node + 1]));
+        case Stmt.FUNCTION:
+          return function(node);
+        case Stmt.IF:
+          return new Stmt.If(expression(code[node + 1]), statement(code[node + 2]),
+              code[node + 3] != -1 ? statement(code[node + 3]) : null);
+        case Stmt.RETURN:
+          return new Stmt.Return(tokens[code[node + 1]], expressionOrNull(code[node + 2]));
+        case Stmt.VAR: {
+          Stmt.Var stmt = new Stmt.Var(tokens[code[node + 1]], expressionOrNull(code[node + 3]));
+
+          stmt.slot = slot(code[node + 2]);
+          stmt.captured = captured(code[node + 2]);
+
+          return stmt;
+        }
+        case Stmt.WHILE:
+          return new Stmt.While(expression(code[node + 1]), statement(code[node + 2]));
+
+        default:
+          throw new IllegalStateException("Unknown statement kind " + code[node] + ".");
+      }
+    }
+
+    Stmt.Block block(int node) {
+      return new Stmt.Block(statements(node + 1));
+    }
+
+    // The statements listed at list, a count followed by their offsets.
+    private List<Stmt> statements(int list) {
+      List<Stmt> statements = new ArrayList<>(code[list]);
+
+      for (int i = 0; i < code[list]; i++) {
+        statements.add(statement(code[list + 1 + i]));
+      }
+
+      return statements;
+    }
+
+    private Stmt.Function function(int node) {
+      int parameterCount = code[node + 4];
+      List<Token> params = new ArrayList<>(parameterCount);
+
+      for (int i = 0; i < parameterCount; i++) {
+        params.add(tokens[code[node + 5 + i]]);
+      }
+
+      Stmt.Function stmt = new Stmt.Function(tokens[code[node + 1]], params,
+          statements(node + 5 + parameterCount));
+
+      stmt.slot = slot(code[node + 2]);
+      stmt.captured = captured(code[node + 2]);
+      stmt.layout = layouts[code[node + 3]];
+
+      return stmt;
+    }
+
+    // As access() and index(), but a global's location gives GLOBAL, which
+    // is what the Resolver leaves on a reference it didn't resolve.
+    private int accessOf(int location) {
+      return location == -1 ? FrameLayout.GLOBAL : access(location);
+    }
+
+    private int indexOf(int location) {
+      return location == -1 ? 0 : index(location);
+    }
+  }
+}
@@ -0,0 +1,358 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// Runs a FlatAst by walking its records in place. Calls, frames and the
+// runtime objects are the tree-walker's, so functions declared here are
+// ordinary LoxFunctions whose body is a record of this encoding.
+final class FlatInterpreter {
+  private final Interpreter interpreter;
+  private final Environment globals;
+  private final int[] code;
+  private final Object[] constants;
+  private final Token[] tokens;
+  private final FrameLayout[] layouts;
+  private final PropertyCache[] caches;
+
+  FlatInterpreter(Interpreter interpreter, FlatAst ast) {
+    this.interpreter = interpreter;
+    this.globals = interpreter.globals;
+    this.code = ast.code;
+    this.constants = ast.constants;
+    this.tokens = ast.tokens;
+    this.layouts = ast.layouts;
+    this.caches = new PropertyCache[ast.caches];
+
+    for (int i = 0; i < caches.length; i++) {
+      caches[i] = new PropertyCache();
+    }
+  }
+
+  Completion execute(int node, Environment frame) {
+    switch (code[node]) {
+      case Stmt.BLOCK:
+        return executeAll(node + 1, frame);
+      case Stmt.CLASS:
+        return classDeclaration(node, frame);
+      case Stmt.EXPRESSION:
+        evaluate(code[node + 1], frame);
+
+        return Completion.NORMAL;
+      case Stmt.FUNCTION:
+        return functionDeclaration(node, frame);
+      case Stmt.IF:
+        if (Interpreter.isTruthy(evaluate(code[node + 1], frame)))
+          return execute(code[node + 2], frame);
+        else if (code[node + 3] != -1)
+          return execute(code[node + 3], frame);
+
+        return Completion.NORMAL;
+      case Stmt.RETURN:
+        return returnStatement(code[node + 2], frame);
+      case Stmt.VAR:
+        return varDeclaration(node, frame);
+      case Stmt.WHILE:
+        while (Interpreter.isTruthy(evaluate(code[node + 1], frame))) {
+          Completion completion = execute(code[node + 2], frame);
+
+          if (completion != Completion.NORMAL)
+            return completion;
+        }
+
+        return Completion.NORMAL;
+
+      default:
+        throw new IllegalStateException("Unknown statement kind " + code[node] + ".");
+    }
+  }
+
+  // Runs the statements listed at list, a count followed by their offsets.
+  private Completion executeAll(int list, Environment frame) {
+    int end = list + code[list];
+
+    for (int i = list + 1; i <= end; i++) {
+      Completion completion = execute(code[i], frame);
+
+      if (completion != Completion.NORMAL)
+        return completion;
+    }
+
+    return Completion.NORMAL;
+  }
+
+  // Runs the body of the function declared by the record at function, which
+  // comes after its parameters.
+  Completion executeBody(int function, Environment frame) {
+    return executeAll(function + 5 + code[function + 4], frame);
+  }
+
+  Object evaluate(int node, Environment frame) {
+    switch (code[node]) {
+      case Expr.ASSIGN:
+        return assign(node, frame);
+      case Expr.BINARY:
+        return Interpreter.binary(tokens[code[node + 1]], evaluate(code[node + 2], frame),
+            evaluate(code[node + 3], frame));
+      case Expr.CALL:
+        return call(node, frame, false);
+      case Expr.GET:
+        return get(node, frame);
+      case Expr.LITERAL:
+        return constants[code[node + 1]];
+      case Expr.LOGICAL:
+        return logical(node, frame);
+      case Expr.SET:
+        return set(node, frame);
+      case Expr.SUPER:
+        return superMethod(node, frame).bind(superReceiver(node, frame));
+      case Expr.THIS:
+        return variable(code[node + 2], frame);
+      case Expr.UNARY:
+        return Interpreter.unary(tokens[code[node + 1]], evaluate(code[node + 2], frame));
+      case Expr.VARIABLE:
+        if (code[node + 2] == -1)
+          return globals.get(tokens[code[node + 1]]);
+
+        return variable(code[node + 2], frame);
+
+      default:
+        throw new IllegalStateException("Unknown expression kind " + code[node] + ".");
+    }
+  }
+
+  private static Object variable(int location, Environment frame) {
+    return frame.getAt(FlatAst.access(location), FlatAst.index(location));
+  }
+
+  private Object assign(int node, Environment frame) {
+    Object value = evaluate(code[node + 2], frame);
+    int location = code[node + 3];
+
+    if (location == -1)
+      globals.assign(tokens[code[node + 1]], value);
+    else
+      frame.assignAt(FlatAst.access(location), FlatAst.index(location), value);
+
+    return value;
+  }
+
+  private Object logical(int node, Environment frame) {
+    Object left = evaluate(code[node + 2], frame);
+
+    if (tokens[code[node + 1]].type == TokenType.OR) {
+      if (Interpreter.isTruthy(left))
+        return left;
+    } else {
+      if (!Interpreter.isTruthy(left))
+        return left;
+    }
+
+    return evaluate(code[node + 3], frame);
+  }
+
+  private Object get(int node, Environment frame) {
+    Token name = tokens[code[node + 1]];
+    Object object = evaluate(code[node + 2], frame);
+
+    if (object instanceof LoxInstance)
+      return ((LoxInstance) object).get(name, caches[code[node + 3]]);
+
+    throw new RuntimeError(name, "Only instances have properties.");
+  }
+
+  private Object set(int node, Environment frame) {
+    Token name = tokens[code[node + 1]];
+    Object object = evaluate(code[node + 2], frame);
+
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(name, "Only instances have fields.");
+    }
+
+    Object value = evaluate(code[node + 3], frame);
+
+    ((LoxInstance) object).set(name, value, caches[code[node + 4]]);
+
+    return value;
+  }
+
+  private LoxFunction superMethod(int node, Environment frame) {
+    Token method = tokens[code[node + 2]];
+    LoxClass superclass = (LoxClass) variable(code[node + 3], frame);
+    LoxFunction function = superclass.findMethod(method.lexeme);
+
+    if (function == null) {
+      throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+    }
+
+    return function;
+  }
+
+  private LoxInstance superReceiver(int node, Environment frame) {
+    return (LoxInstance) variable(code[node + 4], frame);
+  }
+
+  // As Interpreter's call(): in tail position the result is the return
+  // statement's Completion, and methods are called without binding them.
+  private Object call(int node, Environment frame, boolean tail) {
+    int calleeNode = code[node + 2];
+    Object callee;
+    LoxInstance receiver = null;
+
+    if (code[calleeNode] == Expr.GET) {
+      Token name = tokens[code[calleeNode + 1]];
+      Object object = evaluate(code[calleeNode + 2], frame);
+
+      if (!(object instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances have properties.");
+      }
+
+      receiver = (LoxInstance) object;
+      callee = caches[code[calleeNode + 3]].lookup(receiver, name);
+    } else if (code[calleeNode] == Expr.SUPER) {
+      callee = superMethod(calleeNode, frame);
+      receiver = superReceiver(calleeNode, frame);
+    } else {
+      callee = evaluate(calleeNode, frame);
+    }
+
+    Token paren = tokens[code[node + 1]];
+    int count = code[node + 3];
+    int arguments = node + 4;
+
+    switch (count) {
+      case 0:
+        return tail ? interpreter.returnCall(paren, callee, receiver)
+            : interpreter.call(paren, callee, receiver);
+
+      case 1: {
+        Object a = evaluate(code[arguments], frame);
+
+        return tail ? interpreter.returnCall(paren, callee, receiver, a)
+            : interpreter.call(paren, callee, receiver, a);
+      }
+
+      case 2: {
+        Object a = evaluate(code[arguments], frame);
+        Object b = evaluate(code[arguments + 1], frame);
+
+        return tail ? interpreter.returnCall(paren, callee, receiver, a, b)
+            : interpreter.call(paren, callee, receiver, a, b);
+      }
+
+      case 3: {
+        Object a = evaluate(code[arguments], frame);
+        Object b = evaluate(code[arguments + 1], frame);
+        Object c = evaluate(code[arguments + 2], frame);
+
+        return tail ? interpreter.returnCall(paren, callee, receiver, a, b, c)
+            : interpreter.call(paren, callee, receiver, a, b, c);
+      }
+
+      case 4: {
+        Object a = evaluate(code[arguments], frame);
+        Object b = evaluate(code[arguments + 1], frame);
+        Object c = evaluate(code[arguments + 2], frame);
+        Object d = evaluate(code[arguments + 3], frame);
+
+        return tail ? interpreter.returnCall(paren, callee, receiver, a, b, c, d)
+            : interpreter.call(paren, callee, receiver, a, b, c, d);
+      }
+
+      default: {
+        Object[] values = new Object[count];
+
+        for (int i = 0; i < count; i++) {
+          values[i] = evaluate(code[arguments + i], frame);
+        }
+
+        return tail ? interpreter.returnCall(paren, callee, receiver, values)
+            : interpreter.call(paren, callee, receiver, values);
+      }
+    }
+  }
+
+  private Completion returnStatement(int value, Environment frame) {
+    if (value == -1)
+      return interpreter.returnWith(null);
+
+    if (code[value] == Expr.CALL)
+      return (Completion) call(value, frame, true);
+
+    return interpreter.returnWith(evaluate(value, frame));
+  }
+
+  private Completion varDeclaration(int node, Environment frame) {
+    int initializer = code[node + 3];
+    Object value = initializer != -1 ? evaluate(initializer, frame) : null;
+
+    declare(node, frame);
+    define(node, frame, value);
+
+    return Completion.NORMAL;
+  }
+
+  private Completion functionDeclaration(int node, Environment frame) {
+    declare(node, frame);
+    define(node, frame, function(node, frame, FunctionType.FUNCTION));
+
+    return Completion.NORMAL;
+  }
+
+  private Completion classDeclaration(int node, Environment frame) {
+    int superclassNode = code[node + 3];
+    Object superclass = null;
+
+    if (superclassNode != -1) {
+      superclass = evaluate(superclassNode, frame);
+
+      if (!(superclass instanceof LoxClass)) {
+        throw new RuntimeError(tokens[code[superclassNode + 1]], "Superclass must be a class.");
+      }
+    }
+
+    declare(node, frame);
+
+    if (superclassNode != -1)
+      frame.defineCell(code[node + 4], superclass);
+
+    Map<String, LoxFunction> methods = new HashMap<>();
+    int end = node + 5 + code[node + 5];
+
+    for (int i = node + 6; i <= end; i++) {
+      String name = tokens[code[code[i] + 1]].lexeme;
+      FunctionType type = name.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+
+      methods.put(name, function(code[i], frame, type));
+    }
+
+    LoxClass loxClass = new LoxClass(tokens[code[node + 1]].lexeme, (LoxClass) superclass,
+        methods);
+
+    define(node, frame, loxClass);
+
+    return Completion.NORMAL;
+  }
+
+  // Creates a closure of the function declared at node, over the cells it
+  // uses from frame.
+  private LoxFunction function(int node, Environment frame, FunctionType type) {
+    FrameLayout layout = layouts[code[node + 3]];
+
+    return new LoxFunction(this, node, tokens[code[node + 1]], frame.capture(layout), layout,
+        type);
+  }
+
+  // The var, fn or class declared at node, as StmtNode declares and defines
+  // theirs.
+  private void declare(int node, Environment frame) {
+    int declaration = code[node + 2];
+
+    StmtNode.declare(frame, FlatAst.slot(declaration), FlatAst.captured(declaration));
+  }
+
+  private void define(int node, Environment frame, Object value) {
+    int declaration = code[node + 2];
+
+    StmtNode.define(frame, globals, FlatAst.slot(declaration), FlatAst.captured(declaration),
+        tokens[code[node + 1]].lexeme, value);
+  }
+}
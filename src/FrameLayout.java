@@ -0,0 +1,35 @@
+// Where a function's receiver, parameters and locals live, as worked out by
+// the Resolver. Every local has a slot in the call's frame. A local that a
+// nested function refers to holds a Cell in its slot instead of its value,
+// and each closure keeps just the cells its body uses, as its upvalues.
+final class FrameLayout {
+  // How a resolved variable is reached from the running frame: as a value in
+  // a frame slot, as a cell in a frame slot, or as one of the closure's
+  // upvalues.
+  static final int SLOT = 0;
+  static final int CELL = 1;
+  static final int UPVALUE = 2;
+  // Slot of a declaration at the top level.
+  static final int GLOBAL = -2;
+
+  final int frameSize;
+  // Slot of the receiver, or -1 in a function that isn't a method.
+  final int receiver;
+  final int[] parameters;
+  // Slots among the receiver's and the parameters' that hold cells.
+  final int[] cells;
+  // Where each upvalue comes from in the frame that creates the closure,
+  // as an access kind (CELL or UPVALUE) and a slot or upvalue index.
+  final int[] upvalueAccess;
+  final int[] upvalueIndex;
+
+  FrameLayout(int frameSize, int receiver, int[] parameters, int[] cells, int[] upvalueAccess,
+      int[] upvalueIndex) {
+    this.frameSize = frameSize;
+    this.receiver = receiver;
+    this.parameters = parameters;
+    this.cells = cells;
+    this.upvalueAccess = upvalueAccess;
+    this.upvalueIndex = upvalueIndex;
+  }
+}
@@ -0,0 +1,7 @@
+// The kind of function being resolved, compiled or called.
+enum FunctionType {
+  NONE,
+  FUNCTION,
+  METHOD,
+  INITIALIZER
+}
@@ -1,413 +1,856 @@
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-  final Environment globals = new Environment();
-  private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
-
-  Interpreter() {
-    globals.define("clock", new LoxCallable() {
-      public int arity() {
-        return 0;
-      }
-
-      public Object call(Interpreter interpreter, List<Object> arguments) {
-        return (double) System.currentTimeMillis() / 1000.0;
-      }
-
-      public String toString() {
-        return "<native fn>";
-      }
-    });
-
-    globals.define("print", new LoxCallable() {
-      public int arity() {
-        return 1;
-      }
-
-      public Object call(Interpreter interpreter, List<Object> arguments) {
-        System.out.println(stringify(arguments.get(0)));
-
-        return null;
-      }
-
-      public String toString() {
-        return "<native fn>";
-      }
-    });
-  }
-
-  public void interpret(List<Stmt> expression) {
-    try {
-      for (Stmt statement : expression) {
-        execute(statement);
-      }
-    } catch (RuntimeError error) {
-      Lox.runtimeError(error);
-    }
-  }
-
-  public void interpretExpr(Expr expression) {
-    try {
-      Object value = evaluate(expression);
-
-      System.out.println(stringify(value));
-    } catch (RuntimeError error) {
-      Lox.runtimeError(error);
-    }
-  }
-
-  private void execute(Stmt statement) {
-    statement.accept(this);
-  }
-
-  public void executeBlock(List<Stmt> statements, Environment environment) {
-    Environment previous = this.environment;
-
-    try {
-      this.environment = environment;
-
-      for (Stmt statement : statements) {
-        execute(statement);
-      }
-    } finally {
-      this.environment = previous;
-    }
-  }
-
-  public void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
-  }
-
-  public Object visitLiteralExpr(Expr.Literal expr) {
-    return expr.value;
-  }
-
-  public Object visitGroupingExpr(Expr.Grouping expr) {
-    return evaluate(expr.expression);
-  }
-
-  private Object evaluate(Expr expr) {
-    return expr.accept(this);
-  }
-
-  public Object visitUnaryExpr(Expr.Unary expr) {
-    Object right = evaluate(expr.right);
-
-    switch (expr.operator.type) {
-      case BANG:
-        return !isTruthy(right);
-      case MINUS:
-        checkNumberOperand(expr.operator, right);
-
-        return -(double) right;
-
-      default:
-        break;
-    }
-
-    // Unreachable.
-    return null;
-  }
-
-  public Object visitBinaryExpr(Expr.Binary expr) {
-    Object left = evaluate(expr.left);
-    Object right = evaluate(expr.right);
-
-    switch (expr.operator.type) {
-      case LESS:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left < (double) right;
-      case GREATER:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left > (double) right;
-      case GREATER_EQUAL:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left >= (double) right;
-      case LESS_EQUAL:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left <= (double) right;
-      case MINUS:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left - (double) right;
-      case PLUS:
-        if (left instanceof Double && right instanceof Double)
-          return (double) left + (double) right;
-
-        if (left instanceof String && right instanceof String)
-          return (String) left + (String) right;
-
-        throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
-      case SLASH:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left / (double) right;
-      case STAR:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left * (double) right;
-      case BANG_EQUAL:
-        return !isEqual(left, right);
-      case EQUAL_EQUAL:
-        return isEqual(left, right);
-
-      default:
-        break;
-    }
-
-    // Unreachable.
-    return null;
-  }
-
-  private void checkNumberOperand(Token operator, Object operand) throws RuntimeError {
-    if (operand instanceof Double)
-      return;
-
-    throw new RuntimeError(operator, "Operand must be a number.");
-  }
-
-  private void checkNumberOperands(Token operator, Object left, Object right) throws RuntimeError {
-    if (left instanceof Double && right instanceof Double)
-      return;
-
-    throw new RuntimeError(operator, "Operands must be numbers.");
-  }
-
-  private boolean isEqual(Object a, Object b) {
-    if (a == null && b == null)
-      return true;
-    if (a == null)
-      return false;
-
-    return a.equals(b);
-  }
-
-  private String stringify(Object object) {
-    if (object == null)
-      return "nil";
-
-    if (object instanceof Double) {
-      String text = object.toString();
-      if (text.endsWith(".0")) {
-        text = text.substring(0, text.length() - 2);
-      }
-
-      return text;
-    }
-
-    return object.toString();
-  }
-
-  private boolean isTruthy(Object object) {
-    if (object == null)
-      return false;
-    if (object instanceof Boolean)
-      return (boolean) object;
-
-    return true;
-  }
-
-  public Object visitSuperExpr(Expr.Super expr) {
-    int distance = locals.get(expr);
-
-    LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
-
-    LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
-
-    LoxFunction method = superclass.findMethod(expr.method.lexeme);
-
-    if (method == null) {
-      throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
-    }
-
-    return method.bind(object);
-  }
-
-  public Object visitSetExpr(Expr.Set expr) {
-    Object object = evaluate(expr.object);
-
-    if (!(object instanceof LoxInstance)) {
-      throw new RuntimeError(expr.name, "Only instances have fields.");
-    }
-
-    Object value = evaluate(expr.value);
-
-    ((LoxInstance) object).set(expr.name, value);
-
-    return value;
-  }
-
-  public Object visitGetExpr(Expr.Get expr) {
-    Object object = evaluate(expr.object);
-
-    if (object instanceof LoxInstance) {
-      return ((LoxInstance) object).get(expr.name);
-    }
-
-    throw new RuntimeError(expr.name, "Only instances have properties.");
-  }
-
-  public Object visitCallExpr(Expr.Call expr) {
-    Object callee = evaluate(expr.callee);
-    List<Object> arguments = new ArrayList<>();
-
-    for (Expr argument : expr.arguments) {
-      arguments.add(evaluate(argument));
-    }
-
-    if (!(callee instanceof LoxCallable)) {
-      throw new RuntimeError(expr.paren, "Can only call functions and classes.");
-    }
-
-    LoxCallable function = (LoxCallable) callee;
-
-    if (arguments.size() != function.arity()) {
-      throw new RuntimeError(expr.paren,
-          "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
-    }
-
-    return function.call(this, arguments);
-  }
-
-  public Object visitVariableExpr(Expr.Variable expr) {
-    return lookUpVariable(expr.name, expr);
-  }
-
-  public Object visitThisExpr(Expr.This expr) {
-    return lookUpVariable(expr.keyword, expr);
-  }
-
-  private Object lookUpVariable(Token name, Expr expr) {
-    Integer distance = locals.get(expr);
-
-    if (distance != null) {
-      return environment.getAt(distance, name.lexeme);
-    } else {
-      return globals.get(name);
-    }
-  }
-
-  public Object visitLogicalExpr(Expr.Logical expr) {
-    Object left = evaluate(expr.left);
-
-    if (expr.operator.type == TokenType.OR) {
-      if (isTruthy(left))
-        return left;
-    } else {
-      if (!isTruthy(left))
-        return left;
-    }
-
-    return evaluate(expr.right);
-  }
-
-  public Object visitAssignExpr(Expr.Assign expr) {
-    Object value = evaluate(expr.value);
-
-    Integer distance = locals.get(expr);
-
-    if (distance != null) {
-      environment.assignAt(distance, expr.name, value);
-    } else {
-      globals.assign(expr.name, value);
-    }
-
-    return value;
-  }
-
-  public Void visitExpressionStmt(Stmt.Expression stmt) {
-    evaluate(stmt.expression);
-
-    return null;
-  }
-
-  public Void visitVarStmt(Stmt.Var stmt) {
-    Object value = null;
-
-    if (stmt.initializer != null)
-      value = evaluate(stmt.initializer);
-
-    environment.define(stmt.name.lexeme, value);
-
-    return null;
-  }
-
-  public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
-
-    return null;
-  }
-
-  public Void visitIfStmt(Stmt.If stmt) {
-    if (isTruthy(evaluate(stmt.condition)))
-      execute(stmt.thenBranch);
-    else if (stmt.elseBranch != null)
-      execute(stmt.elseBranch);
-
-    return null;
-  }
-
-  public Void visitWhileStmt(Stmt.While stmt) {
-    while (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.body);
-    }
-
-    return null;
-  }
-
-  public Void visitFunctionStmt(Stmt.Function stmt) {
-    LoxFunction function = new LoxFunction(stmt, environment, false);
-
-    environment.define(stmt.name.lexeme, function);
-
-    return null;
-  }
-
-  public Void visitReturnStmt(Stmt.Return stmt) {
-    Object value = null;
-
-    if (stmt.value != null)
-      value = evaluate(stmt.value);
-
-    throw new Return(value);
-  }
-
-  public Void visitClassStmt(Stmt.Class stmt) {
-    Object superclass = null;
-
-    if (stmt.superclass != null) {
-      superclass = evaluate(stmt.superclass);
-
-      if (!(superclass instanceof LoxClass)) {
-        throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
-      }
-    }
-
-    environment.define(stmt.name.lexeme, null);
-
-    if (stmt.superclass != null) {
-      environment = new Environment(environment);
-      environment.define("super", superclass);
-    }
-
-    Map<String, LoxFunction> methods = new HashMap<>();
-
-    for (Stmt.Function method : stmt.methods) {
-      LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
-
-      methods.put(method.name.lexeme, function);
-    }
-
-    LoxClass loxClass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
-
-    if (superclass != null) {
-      environment = environment.enclosing;
-    }
-
-    environment.assign(stmt.name, loxClass);
-
-    return null;
-  }
-
-}
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
+  static final int DEFAULT_MAX_DEPTH = 10000;
+
+  final Environment globals = new Environment();
+  // The frame of the running call, or of the script at the top level.
+  private Environment environment = globals;
+  // Set by a return statement that completes with Completion.RETURN.
+  private Object returnValue = null;
+  // Set by a return statement that completes with Completion.TAIL_CALL.
+  private LoxFunction tailFunction = null;
+  private LoxInstance tailReceiver = null;
+  // Reused from one tail call to the next, holding tailCount arguments.
+  private Object[] tailArguments = new Object[4];
+  private int tailCount = 0;
+  // Lox calls currently on the stack, and how many are allowed.
+  private int depth = 0;
+  int maxDepth = DEFAULT_MAX_DEPTH;
+  // Where each variable lives is kept on its node by the Resolver.
+  private int scriptFrameSize = 0;
+  // Frames by call depth, frame 0 being the script's. Captured locals are
+  // kept in cells rather than in the frame itself, so the next call at the
+  // same depth reuses it instead of allocating.
+  private Environment[] frames = new Environment[16];
+
+  Interpreter() {
+    globals.define("clock", new LoxCallable() {
+      public int arity() {
+        return 0;
+      }
+
+      public Object call(Interpreter interpreter, Object[] arguments) {
+        return call(interpreter);
+      }
+
+      public Object call(Interpreter interpreter) {
+        return (double) System.currentTimeMillis() / 1000.0;
+      }
+
+      public String toString() {
+        return "<native fn>";
+      }
+    });
+
+    globals.define("print", new LoxCallable() {
+      public int arity() {
+        return 1;
+      }
+
+      public Object call(Interpreter interpreter, Object[] arguments) {
+        return call(interpreter, arguments[0]);
+      }
+
+      public Object call(Interpreter interpreter, Object value) {
+        System.out.println(stringify(value));
+
+        return null;
+      }
+
+      public String toString() {
+        return "<native fn>";
+      }
+    });
+  }
+
+  public void interpret(List<Stmt> expression) {
+    Environment frame = frame(scriptFrameSize);
+
+    try {
+      executeBlock(expression, frame);
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    } finally {
+      frame.clear(scriptFrameSize);
+    }
+  }
+
+  public void interpretNodes(StmtNode[] program) {
+    Environment frame = frame(scriptFrameSize);
+
+    try {
+      StmtNode.executeAll(program, frame);
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    } finally {
+      frame.clear(scriptFrameSize);
+    }
+  }
+
+  public void interpretFlat(FlatAst program) {
+    Environment frame = frame(program.frameSize);
+
+    try {
+      new FlatInterpreter(this, program).execute(program.root, frame);
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    } finally {
+      frame.clear(program.frameSize);
+    }
+  }
+
+  public void interpretFlatExpr(FlatAst expression) {
+    try {
+      Object value = new FlatInterpreter(this, expression).evaluate(expression.root, globals);
+
+      System.out.println(stringify(value));
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  public void interpretNode(ExprNode expression) {
+    try {
+      Object value = expression.evaluate(globals);
+
+      System.out.println(stringify(value));
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  public void interpretExpr(Expr expression) {
+    try {
+      Object value = evaluate(expression);
+
+      System.out.println(stringify(value));
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  // Dispatches on the node's kind rather than through accept(), so each
+  // case is a direct call that HotSpot can inline.
+  private Completion execute(Stmt statement) {
+    switch (statement.kind) {
+      case Stmt.BLOCK:
+        return visitBlockStmt((Stmt.Block) statement);
+      case Stmt.CLASS:
+        return visitClassStmt((Stmt.Class) statement);
+      case Stmt.EXPRESSION:
+        return visitExpressionStmt((Stmt.Expression) statement);
+      case Stmt.FUNCTION:
+        return visitFunctionStmt((Stmt.Function) statement);
+      case Stmt.IF:
+        return visitIfStmt((Stmt.If) statement);
+      case Stmt.RETURN:
+        return visitReturnStmt((Stmt.Return) statement);
+      case Stmt.VAR:
+        return visitVarStmt((Stmt.Var) statement);
+      case Stmt.WHILE:
+        return visitWhileStmt((Stmt.While) statement);
+
+      default:
+        throw new IllegalStateException("Unknown statement kind " + statement.kind + ".");
+    }
+  }
+
+  public Completion executeBlock(List<Stmt> statements, Environment environment) {
+    Environment previous = this.environment;
+
+    try {
+      this.environment = environment;
+
+      return executeAll(statements);
+    } finally {
+      this.environment = previous;
+    }
+  }
+
+  private Completion executeAll(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      Completion completion = execute(statement);
+
+      if (completion != Completion.NORMAL)
+        return completion;
+    }
+
+    return Completion.NORMAL;
+  }
+
+  Completion returnWith(Object value) {
+    returnValue = value;
+
+    return Completion.RETURN;
+  }
+
+  // Hands the function the value its return statement left behind.
+  Object takeReturnValue() {
+    Object value = returnValue;
+
+    returnValue = null;
+
+    return value;
+  }
+
+  // Parks a call made in tail position for LoxFunction.invoke to make. The
+  // caller stores the count arguments in the buffer returned.
+  private Object[] tailCall(LoxFunction function, LoxInstance receiver, int count) {
+    tailFunction = function;
+    tailReceiver = receiver;
+    tailCount = count;
+
+    if (tailArguments.length < count)
+      tailArguments = new Object[count];
+
+    return tailArguments;
+  }
+
+  LoxFunction tailFunction() {
+    return tailFunction;
+  }
+
+  LoxInstance tailReceiver() {
+    return tailReceiver;
+  }
+
+  // Moves the arguments into the parameters' slots of the frame. Called
+  // last, so it also clears the parked call.
+  void takeTailArguments(Environment frame, int[] parameters) {
+    for (int i = 0; i < tailCount; i++) {
+      frame.defineLocal(parameters[i], tailArguments[i]);
+      tailArguments[i] = null;
+    }
+
+    tailFunction = null;
+    tailReceiver = null;
+    tailCount = 0;
+  }
+
+  // The frame for the call at the current depth, with room for size slots.
+  Environment frame(int size) {
+    if (depth == frames.length)
+      frames = Arrays.copyOf(frames, depth * 2);
+
+    Environment frame = frames[depth];
+
+    if (frame == null || frame.capacity() < size) {
+      frame = new Environment(Math.max(size, 8));
+      frames[depth] = frame;
+    }
+
+    return frame;
+  }
+
+  void enterCall(Token name) {
+    if (depth == maxDepth)
+      throw new RuntimeError(name, "Stack overflow.");
+
+    depth++;
+  }
+
+  void exitCall() {
+    depth--;
+  }
+
+  // Checks shared by every backend's call sites. A method invoked as
+  // obj.method(...) gets obj as its receiver without being bound. Calls with
+  // up to four arguments have a form each, so that the arguments reach the
+  // callee without being gathered into an array.
+  Object call(Token paren, Object callee, LoxInstance receiver, Object[] arguments) {
+    LoxCallable function = callable(paren, callee, arguments.length);
+
+    if (function instanceof LoxFunction)
+      return ((LoxFunction) function).invoke(this, receiver, arguments);
+
+    return function.call(this, arguments);
+  }
+
+  Object call(Token paren, Object callee, LoxInstance receiver) {
+    LoxCallable function = callable(paren, callee, 0);
+
+    if (function instanceof LoxFunction)
+      return ((LoxFunction) function).invoke(this, receiver);
+
+    return function.call(this);
+  }
+
+  Object call(Token paren, Object callee, LoxInstance receiver, Object a) {
+    LoxCallable function = callable(paren, callee, 1);
+
+    if (function instanceof LoxFunction)
+      return ((LoxFunction) function).invoke(this, receiver, a);
+
+    return function.call(this, a);
+  }
+
+  Object call(Token paren, Object callee, LoxInstance receiver, Object a, Object b) {
+    LoxCallable function = callable(paren, callee, 2);
+
+    if (function instanceof LoxFunction)
+      return ((LoxFunction) function).invoke(this, receiver, a, b);
+
+    return function.call(this, a, b);
+  }
+
+  Object call(Token paren, Object callee, LoxInstance receiver, Object a, Object b, Object c) {
+    LoxCallable function = callable(paren, callee, 3);
+
+    if (function instanceof LoxFunction)
+      return ((LoxFunction) function).invoke(this, receiver, a, b, c);
+
+    return function.call(this, a, b, c);
+  }
+
+  Object call(Token paren, Object callee, LoxInstance receiver, Object a, Object b, Object c,
+      Object d) {
+    LoxCallable function = callable(paren, callee, 4);
+
+    if (function instanceof LoxFunction)
+      return ((LoxFunction) function).invoke(this, receiver, a, b, c, d);
+
+    return function.call(this, a, b, c, d);
+  }
+
+  // Like call(), for a call that is the value of a return statement. Only
+  // calls to Lox functions are deferred; natives and classes run right away.
+  Completion returnCall(Token paren, Object callee, LoxInstance receiver, Object[] arguments) {
+    LoxCallable function = callable(paren, callee, arguments.length);
+
+    if (function instanceof LoxFunction) {
+      Object[] parked = tailCall((LoxFunction) function, receiver, arguments.length);
+
+      System.arraycopy(arguments, 0, parked, 0, arguments.length);
+
+      return Completion.TAIL_CALL;
+    }
+
+    return returnWith(function.call(this, arguments));
+  }
+
+  Completion returnCall(Token paren, Object callee, LoxInstance receiver) {
+    LoxCallable function = callable(paren, callee, 0);
+
+    if (function instanceof LoxFunction) {
+      tailCall((LoxFunction) function, receiver, 0);
+
+      return Completion.TAIL_CALL;
+    }
+
+    return returnWith(function.call(this));
+  }
+
+  Completion returnCall(Token paren, Object callee, LoxInstance receiver, Object a) {
+    LoxCallable function = callable(paren, callee, 1);
+
+    if (function instanceof LoxFunction) {
+      Object[] parked = tailCall((LoxFunction) function, receiver, 1);
+
+      parked[0] = a;
+
+      return Completion.TAIL_CALL;
+    }
+
+    return returnWith(function.call(this, a));
+  }
+
+  Completion returnCall(Token paren, Object callee, LoxInstance receiver, Object a, Object b) {
+    LoxCallable function = callable(paren, callee, 2);
+
+    if (function instanceof LoxFunction) {
+      Object[] parked = tailCall((LoxFunction) function, receiver, 2);
+
+      parked[0] = a;
+      parked[1] = b;
+
+      return Completion.TAIL_CALL;
+    }
+
+    return returnWith(function.call(this, a, b));
+  }
+
+  Completion returnCall(Token paren, Object callee, LoxInstance receiver, Object a, Object b,
+      Object c) {
+    LoxCallable function = callable(paren, callee, 3);
+
+    if (function instanceof LoxFunction) {
+      Object[] parked = tailCall((LoxFunction) function, receiver, 3);
+
+      parked[0] = a;
+      parked[1] = b;
+      parked[2] = c;
+
+      return Completion.TAIL_CALL;
+    }
+
+    return returnWith(function.call(this, a, b, c));
+  }
+
+  Completion returnCall(Token paren, Object callee, LoxInstance receiver, Object a, Object b,
+      Object c, Object d) {
+    LoxCallable function = callable(paren, callee, 4);
+
+    if (function instanceof LoxFunction) {
+      Object[] parked = tailCall((LoxFunction) function, receiver, 4);
+
+      parked[0] = a;
+      parked[1] = b;
+      parked[2] = c;
+      parked[3] = d;
+
+      return Completion.TAIL_CALL;
+    }
+
+    return returnWith(function.call(this, a, b, c, d));
+  }
+
+  private LoxCallable callable(Token paren, Object callee, int count) {
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(paren, "Can only call functions and classes.");
+    }
+
+    LoxCallable function = (LoxCallable) callee;
+
+    if (count != function.arity()) {
+      throw new RuntimeError(paren,
+          "Expected " + function.arity() + " arguments but got " + count + ".");
+    }
+
+    return function;
+  }
+
+  void resolveScript(int frameSize) {
+    scriptFrameSize = frameSize;
+  }
+
+  int scriptFrameSize() {
+    return scriptFrameSize;
+  }
+
+  // Made on first use, as most declarations never run.
+  private JitCompiler.Profile profile(Stmt.Function stmt) {
+    if (stmt.profile == null)
+      stmt.profile = new JitCompiler.Profile();
+
+    return stmt.profile;
+  }
+
+  public Object visitLiteralExpr(Expr.Literal expr) {
+    return expr.value;
+  }
+
+  public Object visitGroupingExpr(Expr.Grouping expr) {
+    return evaluate(expr.expression);
+  }
+
+  // Expressions still go through accept(). A switch here makes evaluate()
+  // too big for HotSpot to inline into its callers, so every node would
+  // share its one indirect jump; the small accept() call keeps a separate
+  // dispatch at each call site, and ran the loop benchmarks faster.
+  private Object evaluate(Expr expr) {
+    return expr.accept(this);
+  }
+
+  public Object visitUnaryExpr(Expr.Unary expr) {
+    return unary(expr.operator, evaluate(expr.right));
+  }
+
+  public Object visitBinaryExpr(Expr.Binary expr) {
+    return binary(expr.operator, evaluate(expr.left), evaluate(expr.right));
+  }
+
+  // The operators, shared with FlatInterpreter.
+  static Object unary(Token operator, Object right) {
+    switch (operator.type) {
+      case BANG:
+        return !isTruthy(right);
+      case MINUS:
+        checkNumberOperand(operator, right);
+
+        return -(double) right;
+
+      default:
+        break;
+    }
+
+    // Unreachable.
+    return null;
+  }
+
+  static Object binary(Token operator, Object left, Object right) {
+    switch (operator.type) {
+      case LESS:
+        checkNumberOperands(operator, left, right);
+        return (double) left < (double) right;
+      case GREATER:
+        checkNumberOperands(operator, left, right);
+        return (double) left > (double) right;
+      case GREATER_EQUAL:
+        checkNumberOperands(operator, left, right);
+        return (double) left >= (double) right;
+      case LESS_EQUAL:
+        checkNumberOperands(operator, left, right);
+        return (double) left <= (double) right;
+      case MINUS:
+        checkNumberOperands(operator, left, right);
+        return (double) left - (double) right;
+      case PLUS:
+        if (left instanceof Double && right instanceof Double)
+          return (double) left + (double) right;
+
+        if (left instanceof String && right instanceof String)
+          return (String) left + (String) right;
+
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+      case SLASH:
+        checkNumberOperands(operator, left, right);
+        return (double) left / (double) right;
+      case STAR:
+        checkNumberOperands(operator, left, right);
+        return (double) left * (double) right;
+      case BANG_EQUAL:
+        return !isEqual(left, right);
+      case EQUAL_EQUAL:
+        return isEqual(left, right);
+
+      default:
+        break;
+    }
+
+    // Unreachable.
+    return null;
+  }
+
+  private static void checkNumberOperand(Token operator, Object operand) throws RuntimeError {
+    if (operand instanceof Double)
+      return;
+
+    throw new RuntimeError(operator, "Operand must be a number.");
+  }
+
+  private static void checkNumberOperands(Token operator, Object left, Object right)
+      throws RuntimeError {
+    if (left instanceof Double && right instanceof Double)
+      return;
+
+    throw new RuntimeError(operator, "Operands must be numbers.");
+  }
+
+  static boolean isEqual(Object a, Object b) {
+    if (a == null && b == null)
+      return true;
+    if (a == null)
+      return false;
+
+    return a.equals(b);
+  }
+
+  static String stringify(Object object) {
+    if (object == null)
+      return "nil";
+
+    if (object instanceof Double) {
+      String text = object.toString();
+      if (text.endsWith(".0")) {
+        text = text.substring(0, text.length() - 2);
+      }
+
+      return text;
+    }
+
+    return object.toString();
+  }
+
+  static boolean isTruthy(Object object) {
+    if (object == null)
+      return false;
+    if (object instanceof Boolean)
+      return (boolean) object;
+
+    return true;
+  }
+
+  public Object visitSuperExpr(Expr.Super expr) {
+    return superMethod(expr).bind(superReceiver(expr));
+  }
+
+  private LoxFunction superMethod(Expr.Super expr) {
+    LoxClass superclass = (LoxClass) environment.getAt(expr.access, expr.index);
+
+    LoxFunction method = superclass.findMethod(expr.method.lexeme);
+
+    if (method == null) {
+      throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
+    }
+
+    return method;
+  }
+
+  private LoxInstance superReceiver(Expr.Super expr) {
+    return (LoxInstance) environment.getAt(expr.receiverAccess, expr.receiverIndex);
+  }
+
+  public Object visitSetExpr(Expr.Set expr) {
+    Object object = evaluate(expr.object);
+
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(expr.name, "Only instances have fields.");
+    }
+
+    Object value = evaluate(expr.value);
+
+    ((LoxInstance) object).set(expr.name, value, expr.cache);
+
+    return value;
+  }
+
+  public Object visitGetExpr(Expr.Get expr) {
+    Object object = evaluate(expr.object);
+
+    if (object instanceof LoxInstance) {
+      return ((LoxInstance) object).get(expr.name, expr.cache);
+    }
+
+    throw new RuntimeError(expr.name, "Only instances have properties.");
+  }
+
+  public Object visitCallExpr(Expr.Call expr) {
+    return call(expr, false);
+  }
+
+  // In tail position the result is the statement's Completion.
+  private Object call(Expr.Call expr, boolean tail) {
+    Object callee;
+    LoxInstance receiver = null;
+
+    // obj.method(...) and super.method(...) look the method up without
+    // binding it and pass the receiver straight to the call.
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      Object object = evaluate(get.object);
+
+      if (!(object instanceof LoxInstance)) {
+        throw new RuntimeError(get.name, "Only instances have properties.");
+      }
+
+      receiver = (LoxInstance) object;
+      callee = get.cache.lookup(receiver, get.name);
+    } else if (expr.callee instanceof Expr.Super) {
+      Expr.Super superExpr = (Expr.Super) expr.callee;
+
+      callee = superMethod(superExpr);
+      receiver = superReceiver(superExpr);
+    } else {
+      callee = evaluate(expr.callee);
+    }
+
+    List<Expr> arguments = expr.arguments;
+    Token paren = expr.paren;
+
+    switch (arguments.size()) {
+      case 0:
+        return tail ? returnCall(paren, callee, receiver) : call(paren, callee, receiver);
+
+      case 1: {
+        Object a = evaluate(arguments.get(0));
+
+        return tail ? returnCall(paren, callee, receiver, a) : call(paren, callee, receiver, a);
+      }
+
+      case 2: {
+        Object a = evaluate(arguments.get(0));
+        Object b = evaluate(arguments.get(1));
+
+        return tail ? returnCall(paren, callee, receiver, a, b)
+            : call(paren, callee, receiver, a, b);
+      }
+
+      case 3: {
+        Object a = evaluate(arguments.get(0));
+        Object b = evaluate(arguments.get(1));
+        Object c = evaluate(arguments.get(2));
+
+        return tail ? returnCall(paren, callee, receiver, a, b, c)
+            : call(paren, callee, receiver, a, b, c);
+      }
+
+      case 4: {
+        Object a = evaluate(arguments.get(0));
+        Object b = evaluate(arguments.get(1));
+        Object c = evaluate(arguments.get(2));
+        Object d = evaluate(arguments.get(3));
+
+        return tail ? returnCall(paren, callee, receiver, a, b, c, d)
+            : call(paren, callee, receiver, a, b, c, d);
+      }
+
+      default: {
+        Object[] values = new Object[arguments.size()];
+
+        for (int i = 0; i < values.length; i++) {
+          values[i] = evaluate(arguments.get(i));
+        }
+
+        return tail ? returnCall(paren, callee, receiver, values)
+            : call(paren, callee, receiver, values);
+      }
+    }
+  }
+
+  public Object visitVariableExpr(Expr.Variable expr) {
+    if (expr.access != FrameLayout.GLOBAL)
+      return environment.getAt(expr.access, expr.index);
+
+    return globals.get(expr.name);
+  }
+
+  public Object visitThisExpr(Expr.This expr) {
+    return environment.getAt(expr.access, expr.index);
+  }
+
+  public Object visitLogicalExpr(Expr.Logical expr) {
+    Object left = evaluate(expr.left);
+
+    if (expr.operator.type == TokenType.OR) {
+      if (isTruthy(left))
+        return left;
+    } else {
+      if (!isTruthy(left))
+        return left;
+    }
+
+    return evaluate(expr.right);
+  }
+
+  public Object visitAssignExpr(Expr.Assign expr) {
+    Object value = evaluate(expr.value);
+
+    if (expr.access != FrameLayout.GLOBAL) {
+      environment.assignAt(expr.access, expr.index, value);
+    } else {
+      globals.assign(expr.name, value);
+    }
+
+    return value;
+  }
+
+  public Completion visitExpressionStmt(Stmt.Expression stmt) {
+    evaluate(stmt.expression);
+
+    return Completion.NORMAL;
+  }
+
+  public Completion visitVarStmt(Stmt.Var stmt) {
+    Object value = null;
+
+    if (stmt.initializer != null)
+      value = evaluate(stmt.initializer);
+
+    declare(stmt.slot, stmt.captured);
+    define(stmt.name, stmt.slot, stmt.captured, value);
+
+    return Completion.NORMAL;
+  }
+
+  // Gives a captured local its cell, before creating any closure that
+  // refers to it.
+  private void declare(int slot, boolean captured) {
+    if (captured)
+      environment.defineCell(slot, null);
+  }
+
+  private void define(Token name, int slot, boolean captured, Object value) {
+    if (slot == FrameLayout.GLOBAL)
+      globals.define(name.lexeme, value);
+    else if (captured)
+      environment.assignAt(FrameLayout.CELL, slot, value);
+    else
+      environment.defineLocal(slot, value);
+  }
+
+  public Completion visitBlockStmt(Stmt.Block stmt) {
+    return executeAll(stmt.statements);
+  }
+
+  public Completion visitIfStmt(Stmt.If stmt) {
+    if (isTruthy(evaluate(stmt.condition)))
+      return execute(stmt.thenBranch);
+    else if (stmt.elseBranch != null)
+      return execute(stmt.elseBranch);
+
+    return Completion.NORMAL;
+  }
+
+  public Completion visitWhileStmt(Stmt.While stmt) {
+    while (isTruthy(evaluate(stmt.condition))) {
+      Completion completion = execute(stmt.body);
+
+      if (completion != Completion.NORMAL)
+        return completion;
+    }
+
+    return Completion.NORMAL;
+  }
+
+  public Completion visitFunctionStmt(Stmt.Function stmt) {
+    declare(stmt.slot, stmt.captured);
+
+    LoxFunction function = new LoxFunction(stmt, environment.capture(stmt.layout), stmt.layout,
+        FunctionType.FUNCTION, profile(stmt));
+
+    define(stmt.name, stmt.slot, stmt.captured, function);
+
+    return Completion.NORMAL;
+  }
+
+  public Completion visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value instanceof Expr.Call)
+      return (Completion) call((Expr.Call) stmt.value, true);
+
+    Object value = null;
+
+    if (stmt.value != null)
+      value = evaluate(stmt.value);
+
+    return returnWith(value);
+  }
+
+  public Completion visitClassStmt(Stmt.Class stmt) {
+    Object superclass = null;
+
+    if (stmt.superclass != null) {
+      superclass = evaluate(stmt.superclass);
+
+      if (!(superclass instanceof LoxClass)) {
+        throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+      }
+    }
+
+    declare(stmt.slot, stmt.captured);
+
+    if (stmt.superclass != null)
+      environment.defineCell(stmt.superclassSlot, superclass);
+
+    Map<String, LoxFunction> methods = new HashMap<>();
+
+    for (Stmt.Function method : stmt.methods) {
+      FunctionType type = method.name.lexeme.equals("init") ? FunctionType.INITIALIZER
+          : FunctionType.METHOD;
+      LoxFunction function = new LoxFunction(method, environment.capture(method.layout),
+          method.layout, type, profile(method));
+
+      methods.put(method.name.lexeme, function);
+    }
+
+    LoxClass loxClass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
+
+    define(stmt.name, stmt.slot, stmt.captured, loxClass);
+
+    return Completion.NORMAL;
+  }
+
+}
@@ -0,0 +1,219 @@
+// Base class of the hidden classes JitCompiler generates. The generated run()
+// keeps Lox locals in JVM locals and calls back into these helpers for every
+// operation that can fail, passing the index of the token to blame so the
+// fast paths never have to touch it.
+abstract class JitCode {
+  final Interpreter interpreter;
+  final Token[] tokens;
+  final Object[] constants;
+  // Inline caches of the property access sites, created on first use.
+  private final PropertyCache[] caches;
+
+  JitCode(Interpreter interpreter, Token[] tokens, Object[] constants) {
+    this.interpreter = interpreter;
+    this.tokens = tokens;
+    this.constants = constants;
+    this.caches = new PropertyCache[tokens.length];
+  }
+
+  // The receiver is null unless the function is a method, and the arguments
+  // are in the parameters' slots of frame. Returns the function's value, or
+  // Completion.TAIL_CALL if it ended in a tail call.
+  abstract Object run(LoxInstance receiver, Environment frame);
+
+  final Object global(int site) {
+    return interpreter.globals.get(tokens[site]);
+  }
+
+  final Object assignGlobal(Object value, int site) {
+    interpreter.globals.assign(tokens[site], value);
+
+    return value;
+  }
+
+  final Object negate(Object operand, int site) {
+    if (!(operand instanceof Double))
+      throw new RuntimeError(tokens[site], "Operand must be a number.");
+
+    return -(double) operand;
+  }
+
+  static Object not(Object operand) {
+    return !Interpreter.isTruthy(operand);
+  }
+
+  final Object add(Object a, Object b, int site) {
+    if (a instanceof Double && b instanceof Double)
+      return (double) a + (double) b;
+
+    if (a instanceof String && b instanceof String)
+      return (String) a + (String) b;
+
+    throw new RuntimeError(tokens[site], "Operands must be two numbers or two strings.");
+  }
+
+  final Object subtract(Object a, Object b, int site) {
+    checkNumberOperands(a, b, site);
+
+    return (double) a - (double) b;
+  }
+
+  final Object multiply(Object a, Object b, int site) {
+    checkNumberOperands(a, b, site);
+
+    return (double) a * (double) b;
+  }
+
+  final Object divide(Object a, Object b, int site) {
+    checkNumberOperands(a, b, site);
+
+    return (double) a / (double) b;
+  }
+
+  final Object less(Object a, Object b, int site) {
+    checkNumberOperands(a, b, site);
+
+    return (double) a < (double) b;
+  }
+
+  final Object lessEqual(Object a, Object b, int site) {
+    checkNumberOperands(a, b, site);
+
+    return (double) a <= (double) b;
+  }
+
+  final Object greater(Object a, Object b, int site) {
+    checkNumberOperands(a, b, site);
+
+    return (double) a > (double) b;
+  }
+
+  final Object greaterEqual(Object a, Object b, int site) {
+    checkNumberOperands(a, b, site);
+
+    return (double) a >= (double) b;
+  }
+
+  private void checkNumberOperands(Object a, Object b, int site) {
+    if (a instanceof Double && b instanceof Double)
+      return;
+
+    throw new RuntimeError(tokens[site], "Operands must be numbers.");
+  }
+
+  static Object equal(Object a, Object b) {
+    return Interpreter.isEqual(a, b);
+  }
+
+  static Object notEqual(Object a, Object b) {
+    return !Interpreter.isEqual(a, b);
+  }
+
+  // The call helpers take the object of obj.method(...) as the receiver, or
+  // null for any other call, and up to four arguments one by one.
+  final Object call(Object object, Object callee, int site) {
+    return interpreter.call(tokens[site], callee, (LoxInstance) object);
+  }
+
+  final Object call(Object object, Object callee, Object a, int site) {
+    return interpreter.call(tokens[site], callee, (LoxInstance) object, a);
+  }
+
+  final Object call(Object object, Object callee, Object a, Object b, int site) {
+    return interpreter.call(tokens[site], callee, (LoxInstance) object, a, b);
+  }
+
+  final Object call(Object object, Object callee, Object a, Object b, Object c, int site) {
+    return interpreter.call(tokens[site], callee, (LoxInstance) object, a, b, c);
+  }
+
+  final Object call(Object object, Object callee, Object a, Object b, Object c, Object d,
+      int site) {
+    return interpreter.call(tokens[site], callee, (LoxInstance) object, a, b, c, d);
+  }
+
+  final Object call(Object object, Object callee, Object[] arguments, int site) {
+    return interpreter.call(tokens[site], callee, (LoxInstance) object, arguments);
+  }
+
+  // obj.method(...) is split like set: the callee is looked up before the
+  // arguments are evaluated, and a method comes back unbound so call() can
+  // pass obj as its receiver.
+  final Object method(Object object, int site) {
+    if (object instanceof LoxInstance) {
+      return cache(site).lookup((LoxInstance) object, tokens[site]);
+    }
+
+    throw new RuntimeError(tokens[site], "Only instances have properties.");
+  }
+
+  // The forms of call() used for `return f(...)`. A call to a Lox function
+  // is parked and Completion.TAIL_CALL returned in its place, which run()
+  // hands straight back to LoxFunction.invoke.
+  final Object tailCall(Object object, Object callee, int site) {
+    return result(interpreter.returnCall(tokens[site], callee, (LoxInstance) object));
+  }
+
+  final Object tailCall(Object object, Object callee, Object a, int site) {
+    return result(interpreter.returnCall(tokens[site], callee, (LoxInstance) object, a));
+  }
+
+  final Object tailCall(Object object, Object callee, Object a, Object b, int site) {
+    return result(interpreter.returnCall(tokens[site], callee, (LoxInstance) object, a, b));
+  }
+
+  final Object tailCall(Object object, Object callee, Object a, Object b, Object c, int site) {
+    return result(interpreter.returnCall(tokens[site], callee, (LoxInstance) object, a, b, c));
+  }
+
+  final Object tailCall(Object object, Object callee, Object a, Object b, Object c, Object d,
+      int site) {
+    return result(interpreter.returnCall(tokens[site], callee, (LoxInstance) object, a, b, c, d));
+  }
+
+  final Object tailCall(Object object, Object callee, Object[] arguments, int site) {
+    return result(interpreter.returnCall(tokens[site], callee, (LoxInstance) object, arguments));
+  }
+
+  private Object result(Completion completion) {
+    if (completion == Completion.TAIL_CALL)
+      return completion;
+
+    return interpreter.takeReturnValue();
+  }
+
+  final Object get(Object object, int site) {
+    if (object instanceof LoxInstance) {
+      return ((LoxInstance) object).get(tokens[site], cache(site));
+    }
+
+    throw new RuntimeError(tokens[site], "Only instances have properties.");
+  }
+
+  // Set is split in two so the receiver is checked before the value is
+  // evaluated, as the interpreter does.
+  final LoxInstance instance(Object object, int site) {
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(tokens[site], "Only instances have fields.");
+    }
+
+    return (LoxInstance) object;
+  }
+
+  final Object set(LoxInstance instance, Object value, int site) {
+    instance.set(tokens[site], value, cache(site));
+
+    return value;
+  }
+
+  private PropertyCache cache(int site) {
+    PropertyCache cache = caches[site];
+
+    if (cache == null) {
+      cache = new PropertyCache();
+      caches[site] = cache;
+    }
+
+    return cache;
+  }
+}
@@ -0,0 +1,469 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+// Translates a hot function's body into a JVM class so HotSpot can compile
+// the Lox code itself rather than the interpreter running it. Frame slot n of
+// the function lives in JVM local FIRST_LOCAL + n, so only functions that
+// neither capture variables from an enclosing function nor create closures of
+// their own are translated; the rest keep running on the backend that
+// created them.
+class JitCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  static final int THRESHOLD = 1000;
+
+  private static final String OBJECT = "java/lang/Object";
+  private static final String BOOLEAN = "java/lang/Boolean";
+  private static final String CODE = "JitCode";
+  private static final String BINARY = "(Ljava/lang/Object;Ljava/lang/Object;I)Ljava/lang/Object;";
+  private static final String COMPARE = "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;";
+  // Locals 0 to 2 hold the JitCode, the receiver and the argument list.
+  private static final int FIRST_LOCAL = 3;
+
+  // Counts the calls of one function declaration across all of its closures
+  // and holds the generated code once the count crosses THRESHOLD.
+  static final class Profile {
+    private int calls = 0;
+    private JitCode code = null;
+
+    JitCode code(Interpreter interpreter, Stmt.Function declaration, boolean isMethod) {
+      if (calls <= THRESHOLD && ++calls == THRESHOLD) {
+        code = new JitCompiler(interpreter).compile(declaration, isMethod);
+      }
+
+      return code;
+    }
+  }
+
+  private static class Unsupported extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Unsupported() {
+      super(null, null, false, false);
+    }
+  }
+
+  private final Interpreter interpreter;
+  private final List<Token> tokens = new ArrayList<>();
+  private final List<Object> constants = new ArrayList<>();
+
+  private JvmClass jvmClass;
+  private JvmClass.Code code;
+
+  private JitCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  // Returns null when the function can't be translated.
+  private JitCode compile(Stmt.Function declaration, boolean isMethod) {
+    jvmClass = new JvmClass("JitCode$" + declaration.name.lexeme, CODE);
+
+    try {
+      constructor();
+
+      code = jvmClass.code(FIRST_LOCAL);
+
+      FrameLayout layout = declaration.layout;
+
+      if (layout.cells.length > 0)
+        throw new Unsupported();
+
+      if (isMethod) {
+        code.local(JvmClass.ALOAD, 1);
+        declare(layout.receiver);
+      }
+
+      for (int slot : layout.parameters) {
+        code.local(JvmClass.ALOAD, 2);
+        code.push(slot);
+        code.invoke(JvmClass.INVOKEVIRTUAL, "Environment", "takeLocal", "(I)Ljava/lang/Object;");
+        declare(slot);
+      }
+
+      compile(declaration.body);
+
+      code.op(JvmClass.ACONST_NULL, 1);
+      code.op(JvmClass.ARETURN, -1);
+      jvmClass.method("run", "(LLoxInstance;LEnvironment;)Ljava/lang/Object;", code);
+
+      return instantiate(jvmClass.toByteArray());
+    } catch (Unsupported | JvmClass.TooLarge error) {
+      return null;
+    }
+  }
+
+  private void constructor() {
+    JvmClass.Code init = jvmClass.code(4);
+
+    for (int i = 0; i < 4; i++) {
+      init.local(JvmClass.ALOAD, i);
+    }
+
+    init.invoke(JvmClass.INVOKESPECIAL, CODE, "<init>", "(LInterpreter;[LToken;[Ljava/lang/Object;)V");
+    init.op(JvmClass.RETURN, 0);
+    jvmClass.method("<init>", "(LInterpreter;[LToken;[Ljava/lang/Object;)V", init);
+  }
+
+  private JitCode instantiate(byte[] bytes) {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+      MethodType type = MethodType.methodType(void.class, Interpreter.class, Token[].class,
+          Object[].class);
+
+      return (JitCode) lookup.findConstructor(lookup.lookupClass(), type)
+          .invoke(interpreter, tokens.toArray(new Token[0]), constants.toArray());
+    } catch (Throwable error) {
+      // A class the JVM rejects just leaves the function interpreted.
+      return null;
+    }
+  }
+
+  private void compile(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      statement.accept(this);
+    }
+  }
+
+  private void compile(Expr expression) {
+    expression.accept(this);
+  }
+
+  // Stores the value on top of the stack into the JVM local for a frame
+  // slot.
+  private void declare(int slot) {
+    code.local(JvmClass.ASTORE, FIRST_LOCAL + slot);
+  }
+
+  // Returns the JVM local a resolved variable lives in, or -1 for a global.
+  private int local(int access, int index) {
+    if (access == FrameLayout.GLOBAL)
+      return -1;
+
+    // A variable in a cell is shared with a closure.
+    if (access != FrameLayout.SLOT)
+      throw new Unsupported();
+
+    return FIRST_LOCAL + index;
+  }
+
+  private int site(Token token) {
+    tokens.add(token);
+
+    return tokens.size() - 1;
+  }
+
+  private void helper(String method, String descriptor) {
+    code.invoke(JvmClass.INVOKEVIRTUAL, CODE, method, descriptor);
+  }
+
+  private void condition(Expr expression) {
+    compile(expression);
+    code.invoke(JvmClass.INVOKESTATIC, "Interpreter", "isTruthy", "(Ljava/lang/Object;)Z");
+  }
+
+  public Void visitAssignExpr(Expr.Assign expr) {
+    int local = local(expr.access, expr.index);
+
+    if (local == -1) {
+      code.local(JvmClass.ALOAD, 0);
+      compile(expr.value);
+      code.push(site(expr.name));
+      helper("assignGlobal", "(Ljava/lang/Object;I)Ljava/lang/Object;");
+
+      return null;
+    }
+
+    compile(expr.value);
+    code.op(JvmClass.DUP, 1);
+    code.local(JvmClass.ASTORE, local);
+
+    return null;
+  }
+
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    String method;
+
+    switch (expr.operator.type) {
+      case EQUAL_EQUAL:
+      case BANG_EQUAL:
+        compile(expr.left);
+        compile(expr.right);
+        code.invoke(JvmClass.INVOKESTATIC, CODE,
+            expr.operator.type == TokenType.EQUAL_EQUAL ? "equal" : "notEqual", COMPARE);
+
+        return null;
+      case PLUS:
+        method = "add";
+        break;
+      case MINUS:
+        method = "subtract";
+        break;
+      case STAR:
+        method = "multiply";
+        break;
+      case SLASH:
+        method = "divide";
+        break;
+      case LESS:
+        method = "less";
+        break;
+      case LESS_EQUAL:
+        method = "lessEqual";
+        break;
+      case GREATER:
+        method = "greater";
+        break;
+      case GREATER_EQUAL:
+        method = "greaterEqual";
+        break;
+
+      default:
+        throw new Unsupported();
+    }
+
+    code.local(JvmClass.ALOAD, 0);
+    compile(expr.left);
+    compile(expr.right);
+    code.push(site(expr.operator));
+    helper(method, BINARY);
+
+    return null;
+  }
+
+  public Void visitCallExpr(Expr.Call expr) {
+    call(expr, false);
+
+    return null;
+  }
+
+  // A call in tail position goes through the tail helpers, which may return
+  // Completion.TAIL_CALL instead of the call's value.
+  private void call(Expr.Call expr, boolean tail) {
+    code.local(JvmClass.ALOAD, 0);
+
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+
+      // Keeps the object under the method it resolved to, as the receiver.
+      compile(get.object);
+      code.op(JvmClass.DUP2, 2);
+      code.push(site(get.name));
+      helper("method", "(Ljava/lang/Object;I)Ljava/lang/Object;");
+    } else {
+      code.op(JvmClass.ACONST_NULL, 1);
+      compile(expr.callee);
+    }
+
+    StringBuilder descriptor = new StringBuilder("(Ljava/lang/Object;Ljava/lang/Object;");
+
+    // Up to four arguments are passed one by one, more in an array.
+    if (expr.arguments.size() <= 4) {
+      for (Expr argument : expr.arguments) {
+        compile(argument);
+        descriptor.append("Ljava/lang/Object;");
+      }
+    } else {
+      arguments(expr.arguments);
+      descriptor.append("[Ljava/lang/Object;");
+    }
+
+    code.push(site(expr.paren));
+    helper(tail ? "tailCall" : "call", descriptor.append("I)Ljava/lang/Object;").toString());
+  }
+
+  private void arguments(List<Expr> arguments) {
+    code.push(arguments.size());
+    code.type(JvmClass.ANEWARRAY, OBJECT);
+
+    for (int i = 0; i < arguments.size(); i++) {
+      code.op(JvmClass.DUP, 1);
+      code.push(i);
+      compile(arguments.get(i));
+      code.op(JvmClass.AASTORE, -3);
+    }
+  }
+
+  public Void visitGetExpr(Expr.Get expr) {
+    code.local(JvmClass.ALOAD, 0);
+    compile(expr.object);
+    code.push(site(expr.name));
+    helper("get", "(Ljava/lang/Object;I)Ljava/lang/Object;");
+
+    return null;
+  }
+
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+
+    return null;
+  }
+
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      code.op(JvmClass.ACONST_NULL, 1);
+    } else if (expr.value instanceof String) {
+      code.pushString((String) expr.value);
+    } else if (expr.value instanceof Boolean) {
+      String name = (Boolean) expr.value ? "TRUE" : "FALSE";
+
+      code.field(JvmClass.GETSTATIC, BOOLEAN, name, "Ljava/lang/Boolean;", 1);
+    } else {
+      // Numbers keep their boxed value in the constants array.
+      code.local(JvmClass.ALOAD, 0);
+      code.field(JvmClass.GETFIELD, CODE, "constants", "[Ljava/lang/Object;", 0);
+      code.push(constants.size());
+      code.op(JvmClass.AALOAD, -1);
+      constants.add(expr.value);
+    }
+
+    return null;
+  }
+
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    int end = code.label();
+
+    compile(expr.left);
+    code.op(JvmClass.DUP, 1);
+    code.invoke(JvmClass.INVOKESTATIC, "Interpreter", "isTruthy", "(Ljava/lang/Object;)Z");
+    code.jump(expr.operator.type == TokenType.OR ? JvmClass.IFNE : JvmClass.IFEQ, end);
+    code.op(JvmClass.POP, -1);
+    compile(expr.right);
+    code.mark(end);
+
+    return null;
+  }
+
+  public Void visitSetExpr(Expr.Set expr) {
+    code.local(JvmClass.ALOAD, 0);
+    code.local(JvmClass.ALOAD, 0);
+    compile(expr.object);
+    code.push(site(expr.name));
+    helper("instance", "(Ljava/lang/Object;I)LLoxInstance;");
+    compile(expr.value);
+    code.push(site(expr.name));
+    helper("set", "(LLoxInstance;Ljava/lang/Object;I)Ljava/lang/Object;");
+
+    return null;
+  }
+
+  public Void visitSuperExpr(Expr.Super expr) {
+    throw new Unsupported();
+  }
+
+  public Void visitThisExpr(Expr.This expr) {
+    code.local(JvmClass.ALOAD, local(expr.access, expr.index));
+
+    return null;
+  }
+
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    if (expr.operator.type == TokenType.BANG) {
+      compile(expr.right);
+      code.invoke(JvmClass.INVOKESTATIC, CODE, "not", "(Ljava/lang/Object;)Ljava/lang/Object;");
+
+      return null;
+    }
+
+    code.local(JvmClass.ALOAD, 0);
+    compile(expr.right);
+    code.push(site(expr.operator));
+    helper("negate", "(Ljava/lang/Object;I)Ljava/lang/Object;");
+
+    return null;
+  }
+
+  public Void visitVariableExpr(Expr.Variable expr) {
+    int local = local(expr.access, expr.index);
+
+    if (local == -1) {
+      code.local(JvmClass.ALOAD, 0);
+      code.push(site(expr.name));
+      helper("global", "(I)Ljava/lang/Object;");
+    } else {
+      code.local(JvmClass.ALOAD, local);
+    }
+
+    return null;
+  }
+
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    compile(stmt.statements);
+
+    return null;
+  }
+
+  public Void visitClassStmt(Stmt.Class stmt) {
+    throw new Unsupported();
+  }
+
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    code.op(JvmClass.POP, -1);
+
+    return null;
+  }
+
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    throw new Unsupported();
+  }
+
+  public Void visitIfStmt(Stmt.If stmt) {
+    int elseBranch = code.label();
+    int end = code.label();
+
+    condition(stmt.condition);
+    code.jump(JvmClass.IFEQ, elseBranch);
+    stmt.thenBranch.accept(this);
+    code.jump(JvmClass.GOTO, end);
+    code.mark(elseBranch);
+
+    if (stmt.elseBranch != null)
+      stmt.elseBranch.accept(this);
+
+    code.mark(end);
+
+    return null;
+  }
+
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value instanceof Expr.Call)
+      call((Expr.Call) stmt.value, true);
+    else if (stmt.value != null)
+      compile(stmt.value);
+    else
+      code.op(JvmClass.ACONST_NULL, 1);
+
+    code.op(JvmClass.ARETURN, -1);
+
+    return null;
+  }
+
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null)
+      compile(stmt.initializer);
+    else
+      code.op(JvmClass.ACONST_NULL, 1);
+
+    // A captured variable would need a cell.
+    if (stmt.captured)
+      throw new Unsupported();
+
+    declare(stmt.slot);
+
+    return null;
+  }
+
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int start = code.label();
+    int end = code.label();
+
+    code.mark(start);
+    condition(stmt.condition);
+    code.jump(JvmClass.IFEQ, end);
+    stmt.body.accept(this);
+    code.jump(JvmClass.GOTO, start);
+    code.mark(end);
+
+    return null;
+  }
+}
@@ -0,0 +1,327 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Assembles the class files JitCompiler produces: a constructor and one
+// method, using only the constant pool entries and instructions the compiler
+// needs. Classes are written as version 49 so the JVM verifies them by type
+// inference and no StackMapTable has to be computed.
+class JvmClass {
+  static final int ACONST_NULL = 0x01;
+  static final int ICONST_0 = 0x03;
+  static final int BIPUSH = 0x10;
+  static final int SIPUSH = 0x11;
+  static final int LDC_W = 0x13;
+  static final int ALOAD = 0x19;
+  static final int AALOAD = 0x32;
+  static final int ASTORE = 0x3a;
+  static final int AASTORE = 0x53;
+  static final int POP = 0x57;
+  static final int DUP = 0x59;
+  static final int DUP2 = 0x5c;
+  static final int IFEQ = 0x99;
+  static final int IFNE = 0x9a;
+  static final int GOTO = 0xa7;
+  static final int ARETURN = 0xb0;
+  static final int RETURN = 0xb1;
+  static final int GETSTATIC = 0xb2;
+  static final int GETFIELD = 0xb4;
+  static final int INVOKEVIRTUAL = 0xb6;
+  static final int INVOKESPECIAL = 0xb7;
+  static final int INVOKESTATIC = 0xb8;
+  static final int INVOKEINTERFACE = 0xb9;
+  static final int ANEWARRAY = 0xbd;
+
+  private static final int VERSION = 49;
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+
+  // Thrown when a method outgrows what the assembler can encode.
+  static class TooLarge extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    TooLarge() {
+      super(null, null, false, false);
+    }
+  }
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> entries = new HashMap<>();
+  private int poolCount = 1;
+
+  private final String name;
+  private final String superName;
+  private final List<byte[]> methods = new ArrayList<>();
+
+  JvmClass(String name, String superName) {
+    this.name = name;
+    this.superName = superName;
+  }
+
+  Code code(int locals) {
+    return new Code(locals);
+  }
+
+  class Code {
+    private byte[] bytes = new byte[64];
+    private int length = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+
+    private final List<Integer> labels = new ArrayList<>();
+    private final List<int[]> jumps = new ArrayList<>();
+
+    Code(int locals) {
+      this.maxLocals = locals;
+    }
+
+    // Every emitter takes the net effect of its instruction on the operand
+    // stack, which is all the bookkeeping max_stack needs for the structured
+    // code the compiler produces.
+    void op(int opcode, int effect) {
+      u1(opcode);
+      adjust(effect);
+    }
+
+    void push(int value) {
+      if (value <= 5) {
+        op(ICONST_0 + value, 1);
+      } else if (value <= Byte.MAX_VALUE) {
+        op(BIPUSH, 1);
+        u1(value);
+      } else if (value <= Short.MAX_VALUE) {
+        op(SIPUSH, 1);
+        u2(value);
+      } else {
+        throw new TooLarge();
+      }
+    }
+
+    void pushString(String value) {
+      op(LDC_W, 1);
+      u2(constant(8, value, utf8(value)));
+    }
+
+    void local(int opcode, int index) {
+      if (index > 0xff)
+        throw new TooLarge();
+
+      maxLocals = Math.max(maxLocals, index + 1);
+      op(opcode, opcode == ALOAD ? 1 : -1);
+      u1(index);
+    }
+
+    void field(int opcode, String owner, String field, String descriptor, int effect) {
+      op(opcode, effect);
+      u2(memberRef(9, owner, field, descriptor));
+    }
+
+    // The stack effect of an invoke is worked out from its descriptor.
+    void invoke(int opcode, String owner, String method, String descriptor) {
+      int effect = -argumentCount(descriptor);
+
+      if (opcode != INVOKESTATIC)
+        effect--;
+
+      if (descriptor.charAt(descriptor.length() - 1) != 'V')
+        effect++;
+
+      op(opcode, effect);
+      u2(memberRef(opcode == INVOKEINTERFACE ? 11 : 10, owner, method, descriptor));
+
+      if (opcode == INVOKEINTERFACE) {
+        u1(argumentCount(descriptor) + 1);
+        u1(0);
+      }
+    }
+
+    void type(int opcode, String type) {
+      op(opcode, 0);
+      u2(classRef(type));
+    }
+
+    int label() {
+      labels.add(-1);
+
+      return labels.size() - 1;
+    }
+
+    void mark(int label) {
+      labels.set(label, length);
+    }
+
+    void jump(int opcode, int label) {
+      jumps.add(new int[] { length, label });
+      op(opcode, opcode == GOTO ? 0 : -1);
+      u2(0);
+    }
+
+    private void adjust(int effect) {
+      stack += effect;
+      maxStack = Math.max(maxStack, stack);
+    }
+
+    private void u1(int value) {
+      if (length == bytes.length) {
+        bytes = Arrays.copyOf(bytes, length * 2);
+      }
+
+      bytes[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+
+    private byte[] finish() {
+      for (int[] jump : jumps) {
+        int offset = labels.get(jump[1]) - jump[0];
+
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+          throw new TooLarge();
+
+        bytes[jump[0] + 1] = (byte) (offset >> 8);
+        bytes[jump[0] + 2] = (byte) offset;
+      }
+
+      if (length > 0xffff)
+        throw new TooLarge();
+
+      return Arrays.copyOf(bytes, length);
+    }
+  }
+
+  void method(String method, String descriptor, Code code) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    byte[] instructions = code.finish();
+
+    try {
+      out.writeShort(ACC_PUBLIC);
+      out.writeShort(utf8(method));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(1);
+
+      out.writeShort(utf8("Code"));
+      out.writeInt(12 + instructions.length);
+      out.writeShort(code.maxStack);
+      out.writeShort(code.maxLocals);
+      out.writeInt(instructions.length);
+      out.write(instructions);
+      out.writeShort(0);
+      out.writeShort(0);
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+
+    methods.add(bytes.toByteArray());
+  }
+
+  byte[] toByteArray() {
+    int thisClass = classRef(name);
+    int superClass = classRef(superName);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    try {
+      out.writeInt(0xcafebabe);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      out.write(pool.toByteArray());
+      out.writeShort(ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0);
+      out.writeShort(0);
+      out.writeShort(methods.size());
+
+      for (byte[] method : methods) {
+        out.write(method);
+      }
+
+      out.writeShort(0);
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  private static int argumentCount(String descriptor) {
+    int count = 0;
+    int i = 1;
+
+    while (descriptor.charAt(i) != ')') {
+      char c = descriptor.charAt(i);
+
+      while (c == '[') {
+        c = descriptor.charAt(++i);
+      }
+
+      if (c == 'L')
+        i = descriptor.indexOf(';', i);
+
+      i++;
+      count++;
+    }
+
+    return count;
+  }
+
+  private int utf8(String value) {
+    return constant(1, value);
+  }
+
+  private int classRef(String type) {
+    return constant(7, type, utf8(type));
+  }
+
+  private int memberRef(int tag, String owner, String member, String descriptor) {
+    int owners = classRef(owner);
+    int nameAndType = constant(12, member + ":" + descriptor, utf8(member), utf8(descriptor));
+
+    return constant(tag, owner + "." + member + ":" + descriptor, owners, nameAndType);
+  }
+
+  // Entries are shared by tag and key; the operands are the indices the
+  // entry refers to, or nothing for UTF-8 text.
+  private int constant(int tag, String key, int... operands) {
+    String id = tag + " " + key;
+    Integer index = entries.get(id);
+
+    if (index != null)
+      return index;
+
+    try {
+      poolOut.writeByte(tag);
+
+      if (tag == 1) {
+        poolOut.writeUTF(key);
+      } else {
+        for (int operand : operands) {
+          poolOut.writeShort(operand);
+        }
+      }
+    } catch (IOException error) {
+      // Only text longer than the format allows gets here.
+      throw new TooLarge();
+    }
+
+    if (poolCount > 0xfffe)
+      throw new TooLarge();
+
+    entries.put(id, poolCount);
+
+    return poolCount++;
+  }
+}
@@ -1,36 +1,101 @@
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 
 public class Lox {
+  // Java stack reserved per level of Lox recursion. Lox code runs on its own
+  // thread with a stack sized from this, so that the interpreter's maxDepth
+  // check is what stops deep recursion rather than StackOverflowError.
+  private static final long STACK_PER_CALL = 4096;
+  // The deepest --max-depth accepted, which keeps the thread's stack under
+  // half a gigabyte.
+  private static final int MAX_DEPTH = 100000;
+
   private static final Interpreter interpreter = new Interpreter();
-  static boolean hadError = false;
+  private static boolean useVm = false;
+  private static VM vm = null;
+  private static boolean compileNodes = false;
+  private static boolean encodeFlat = false;
+  private static ScriptCache cache = null;
+  // Compile errors of the script or REPL line being run.
+  static final ErrorReporter errors = new ErrorReporter();
   static boolean hadRuntimeError = false;
 
-  public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
+  public static void main(String[] args) throws InterruptedException {
+    String script = null;
+
+    for (String arg : args) {
+      if (arg.equals("--vm")) {
+        useVm = true;
+      } else if (arg.equals("--nodes")) {
+        compileNodes = true;
+      } else if (arg.equals("--flat")) {
+        encodeFlat = true;
+      } else if (arg.startsWith("--cache=")) {
+        cache = new ScriptCache(Paths.get(arg.substring("--cache=".length())));
+      } else if (arg.startsWith("--max-depth=")) {
+        interpreter.maxDepth = maxDepth(arg.substring("--max-depth=".length()));
+      } else if (arg.startsWith("--") || script != null) {
+        usage();
+      } else {
+        script = arg;
+      }
     }
 
-    if (args.length == 1) {
-      runFile(args[0]);
-    } else {
-      runPrompt();
+    // Made once the flags are read, as --max-depth may come after --vm.
+    if (useVm)
+      vm = new VM(interpreter.maxDepth);
+
+    String path = script;
+
+    Thread thread = new Thread(null, () -> {
+      try {
+        if (path != null) {
+          runFile(path);
+        } else {
+          runPrompt();
+        }
+      } catch (IOException error) {
+        throw new UncheckedIOException(error);
+      }
+    }, "lox", interpreter.maxDepth * STACK_PER_CALL);
+
+    thread.start();
+    thread.join();
+  }
+
+  private static int maxDepth(String value) {
+    try {
+      int depth = Integer.parseInt(value);
+
+      if (depth > 0 && depth <= MAX_DEPTH)
+        return depth;
+    } catch (NumberFormatException error) {
     }
+
+    System.out.println("--max-depth must be from 1 to " + MAX_DEPTH + ".");
+    usage();
+
+    return 0;
+  }
+
+  private static void usage() {
+    System.out.println("Usage: jlox [--vm | --nodes | --flat] [--max-depth=N] [--cache=DIR] [script]");
+    System.exit(64);
   }
 
   private static void run(String source) {
     Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
+    Tokens tokens = scanner.scanTokens();
 
     Parser parser = new Parser(tokens);
 
-    if (tokens.stream().anyMatch(token -> token.type == TokenType.SEMICOLON)) {
+    if (tokens.contains(TokenType.SEMICOLON)) {
       interpretStmts(parser);
 
       return;
@@ -42,16 +107,56 @@ public class Lox {
   private static void runFile(String path) throws IOException {
     byte[] bytes = Files.readAllBytes(Paths.get(path));
 
-    run(new String(bytes, Charset.defaultCharset()));
+    String source = new String(bytes, Charset.defaultCharset());
+
+    if (cache != null)
+      runCached(source);
+    else
+      run(source);
 
     // Indicate an error in the exit code.
-    if (hadError)
+    if (errors.hadError)
       System.exit(65);
 
     if (hadRuntimeError)
       System.exit(70);
   }
 
+  // As run(), but a script is loaded from the cache when its front end has
+  // run before, and stored in it when it hasn't.
+  private static void runCached(String source) {
+    FlatAst program = cache.load(source);
+    List<Stmt> statements = null;
+
+    if (program == null) {
+      Tokens tokens = new Scanner(source).scanTokens();
+      Parser parser = new Parser(tokens);
+
+      // An expression is quick enough to parse again.
+      if (!tokens.contains(TokenType.SEMICOLON)) {
+        interpretExpr(parser);
+
+        return;
+      }
+
+      statements = compile(parser, interpreter, errors);
+
+      if (statements == null)
+        return;
+
+      program = FlatAst.encode(statements, interpreter.scriptFrameSize());
+      cache.store(source, program);
+    } else if (!encodeFlat) {
+      interpreter.resolveScript(program.frameSize);
+      statements = program.decode();
+    }
+
+    if (encodeFlat)
+      interpreter.interpretFlat(program);
+    else
+      interpret(statements);
+  }
+
   private static void runPrompt() throws IOException {
     InputStreamReader input = new InputStreamReader(System.in);
     BufferedReader reader = new BufferedReader(input);
@@ -61,7 +166,7 @@ public class Lox {
 
       run(reader.readLine());
 
-      hadError = false;
+      errors.hadError = false;
     }
   }
 
@@ -69,41 +174,78 @@ public class Lox {
     Expr expression = parser.parseExpr();
 
     // Stop if there was a syntax error.
-    if (hadError)
+    if (errors.hadError)
       return;
 
+    if (vm != null) {
+      vm.interpretExpr(expression);
+
+      return;
+    }
+
+    if (compileNodes) {
+      interpreter.interpretNode(new NodeCompiler(interpreter).compile(expression));
+
+      return;
+    }
+
+    if (encodeFlat) {
+      interpreter.interpretFlatExpr(FlatAst.encode(expression));
+
+      return;
+    }
+
     interpreter.interpretExpr(expression);
   }
 
   static void interpretStmts(Parser parser) {
+    List<Stmt> statements = compile(parser, interpreter, errors);
 
+    if (statements != null)
+      interpret(statements);
+  }
+
+  // Parses, resolves and optimizes the statements, or returns null if there
+  // was an error, which went to errors like the parser's. The script's frame
+  // size is left with interpreter.
+  static List<Stmt> compile(Parser parser, Interpreter interpreter, ErrorReporter errors) {
     List<Stmt> statements = parser.parse();
 
     // Stop if there was a syntax error.
-    if (hadError)
-      return;
+    if (errors.hadError)
+      return null;
 
-    Resolver resolver = new Resolver(interpreter);
+    Resolver resolver = new Resolver(interpreter, errors);
 
     resolver.resolve(statements);
 
     // Stop if there was a resolution error.
-    if (hadError)
-      return;
+    if (errors.hadError)
+      return null;
 
-    interpreter.interpret(statements);
+    return new Optimizer(interpreter).optimize(statements);
   }
 
-  static void error(int line, String message) {
-    report(line, "", message);
-  }
+  private static void interpret(List<Stmt> statements) {
+    if (vm != null) {
+      vm.interpret(statements);
 
-  static void error(Token line, String message) {
-    if (line.type == TokenType.EOF) {
-      report(line.line, " at end", message);
-    } else {
-      report(line.line, " at '" + line.lexeme + "'", message);
+      return;
     }
+
+    if (compileNodes) {
+      interpreter.interpretNodes(new NodeCompiler(interpreter).compile(statements));
+
+      return;
+    }
+
+    if (encodeFlat) {
+      interpreter.interpretFlat(FlatAst.encode(statements, interpreter.scriptFrameSize()));
+
+      return;
+    }
+
+    interpreter.interpret(statements);
   }
 
   static void runtimeError(RuntimeError error) {
@@ -111,11 +253,4 @@ public class Lox {
         "\n[line " + error.token.line + "]");
     hadRuntimeError = true;
   }
-
-  private static void report(int line, String where, String message) {
-    System.err.println(
-        "[line " + line + "] Error" + where + ": " + message);
-
-    hadError = true;
-  }
 }
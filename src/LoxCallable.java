@@ -1,7 +1,28 @@
-import java.util.List;
-
-interface LoxCallable {
-  int arity();
-
-  Object call(Interpreter interpreter, List<Object> arguments);
-}
\ No newline at end of file
+interface LoxCallable {
+  int arity();
+
+  // Calls with the arguments in an array. Call sites with up to four
+  // arguments use the fixed-arity forms below instead, so they don't build
+  // one; a callable overrides the ones matching its arity to skip it too.
+  Object call(Interpreter interpreter, Object[] arguments);
+
+  default Object call(Interpreter interpreter) {
+    return call(interpreter, new Object[0]);
+  }
+
+  default Object call(Interpreter interpreter, Object a) {
+    return call(interpreter, new Object[] { a });
+  }
+
+  default Object call(Interpreter interpreter, Object a, Object b) {
+    return call(interpreter, new Object[] { a, b });
+  }
+
+  default Object call(Interpreter interpreter, Object a, Object b, Object c) {
+    return call(interpreter, new Object[] { a, b, c });
+  }
+
+  default Object call(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+    return call(interpreter, new Object[] { a, b, c, d });
+  }
+}
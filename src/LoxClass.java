@@ -1,51 +1,94 @@
-import java.util.List;
-import java.util.Map;
-
-public class LoxClass implements LoxCallable {
-  final String name;
-  final LoxClass superclass;
-  private final Map<String, LoxFunction> methods;
-
-  LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
-    this.name = name;
-    this.superclass = superclass;
-    this.methods = methods;
-  }
-
-  public String toString() {
-    return name;
-  }
-
-  public Object call(Interpreter interpreter, List<Object> arguments) {
-    LoxInstance instance = new LoxInstance(this);
-
-    LoxFunction initializer = findMethod("init");
-
-    if (initializer != null) {
-      initializer.bind(instance).call(interpreter, arguments);
-    }
-
-    return instance;
-  }
-
-  public int arity() {
-    LoxFunction initializer = findMethod("init");
-
-    if (initializer != null)
-      return initializer.arity();
-
-    return 0;
-  }
-
-  public LoxFunction findMethod(String lexeme) {
-    if (methods.containsKey(lexeme)) {
-      return methods.get(lexeme);
-    }
-
-    if (superclass != null) {
-      return superclass.findMethod(lexeme);
-    }
-
-    return null;
-  }
-}
+import java.util.HashMap;
+import java.util.Map;
+
+public class LoxClass implements LoxCallable {
+  final String name;
+  final LoxClass superclass;
+  // Inherited methods are copied in when the class is created, so a lookup
+  // is one probe however deep the hierarchy is.
+  private final Map<String, LoxFunction> methods;
+  // A class without one takes no arguments, so only call() with none has to
+  // check for it.
+  private final LoxFunction initializer;
+  // Root of the shapes this class's instances go through.
+  final Shape shape = new Shape(this);
+
+  LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+    this.name = name;
+    this.superclass = superclass;
+    this.methods = new HashMap<>();
+
+    if (superclass != null)
+      this.methods.putAll(superclass.methods);
+
+    this.methods.putAll(methods);
+    this.initializer = this.methods.get("init");
+  }
+
+  public String toString() {
+    return name;
+  }
+
+  public Object call(Interpreter interpreter, Object[] arguments) {
+    LoxInstance instance = new LoxInstance(this);
+
+    if (initializer != null) {
+      initializer.invoke(interpreter, instance, arguments);
+    }
+
+    return instance;
+  }
+
+  public Object call(Interpreter interpreter) {
+    LoxInstance instance = new LoxInstance(this);
+
+    if (initializer != null) {
+      initializer.invoke(interpreter, instance);
+    }
+
+    return instance;
+  }
+
+  public Object call(Interpreter interpreter, Object a) {
+    LoxInstance instance = new LoxInstance(this);
+
+    initializer.invoke(interpreter, instance, a);
+
+    return instance;
+  }
+
+  public Object call(Interpreter interpreter, Object a, Object b) {
+    LoxInstance instance = new LoxInstance(this);
+
+    initializer.invoke(interpreter, instance, a, b);
+
+    return instance;
+  }
+
+  public Object call(Interpreter interpreter, Object a, Object b, Object c) {
+    LoxInstance instance = new LoxInstance(this);
+
+    initializer.invoke(interpreter, instance, a, b, c);
+
+    return instance;
+  }
+
+  public Object call(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+    LoxInstance instance = new LoxInstance(this);
+
+    initializer.invoke(interpreter, instance, a, b, c, d);
+
+    return instance;
+  }
+
+  public int arity() {
+    if (initializer != null)
+      return initializer.arity();
+
+    return 0;
+  }
+
+  public LoxFunction findMethod(String lexeme) {
+    return methods.get(lexeme);
+  }
+}
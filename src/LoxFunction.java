@@ -1,48 +1,249 @@
-import java.util.List;
-
-public class LoxFunction implements LoxCallable {
-  private final Stmt.Function declaration;
-  private final Environment closure;
-  private final boolean isInitializer;
-
-  LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
-    this.declaration = declaration;
-    this.closure = closure;
-    this.isInitializer = isInitializer;
-  }
-
-  public int arity() {
-    return declaration.params.size();
-  }
-
-  public Object call(Interpreter interpreter, List<Object> arguments) {
-    Environment environment = new Environment(closure);
-
-    for (int i = 0; i < declaration.params.size(); i++) {
-      environment.define(declaration.params.get(i).lexeme, arguments.get(i));
-    }
-
-    try {
-      interpreter.executeBlock(declaration.body, environment);
-    } catch (Return returnValue) {
-      if (isInitializer) {
-        return closure.getAt(0, "this");
-      }
-
-      return returnValue.value;
-    }
-
-    if (isInitializer)
-      return closure.getAt(0, "this");
-
-    return null;
-  }
-
-  public LoxFunction bind(LoxInstance loxInstance) {
-    Environment environment = new Environment(closure);
-
-    environment.define("this", loxInstance);
-
-    return new LoxFunction(declaration, environment, isInitializer);
-  }
-}
+public class LoxFunction implements LoxCallable {
+  // Null when the function was declared in a FlatAst.
+  private final Stmt.Function declaration;
+  private final Token name;
+  // The cells of the variables the body uses from enclosing functions.
+  private final Environment.Cell[] upvalues;
+  private final FrameLayout layout;
+  private final FunctionType type;
+  // Set when the body was compiled by NodeCompiler instead of being walked.
+  private final StmtNode[] body;
+  // Set when the body is a FUNCTION record that flat walks instead.
+  private final FlatInterpreter flat;
+  private final int flatFunction;
+  // Shared by every closure of the same declaration.
+  private final JitCompiler.Profile profile;
+  // Set on a method that was read off an instance as a value.
+  private final LoxInstance receiver;
+
+  LoxFunction(Stmt.Function declaration, Environment.Cell[] upvalues, FrameLayout layout,
+      FunctionType type, JitCompiler.Profile profile) {
+    this(declaration, declaration.name, upvalues, layout, type, null, null, -1, profile, null);
+  }
+
+  LoxFunction(Stmt.Function declaration, Environment.Cell[] upvalues, FrameLayout layout,
+      FunctionType type, StmtNode[] body, JitCompiler.Profile profile) {
+    this(declaration, declaration.name, upvalues, layout, type, body, null, -1, profile, null);
+  }
+
+  // The JIT compiles from the syntax tree, so a flat function is always
+  // walked.
+  LoxFunction(FlatInterpreter flat, int flatFunction, Token name, Environment.Cell[] upvalues,
+      FrameLayout layout, FunctionType type) {
+    this(null, name, upvalues, layout, type, null, flat, flatFunction, null, null);
+  }
+
+  private LoxFunction(Stmt.Function declaration, Token name, Environment.Cell[] upvalues,
+      FrameLayout layout, FunctionType type, StmtNode[] body, FlatInterpreter flat,
+      int flatFunction, JitCompiler.Profile profile, LoxInstance receiver) {
+    this.declaration = declaration;
+    this.name = name;
+    this.upvalues = upvalues;
+    this.layout = layout;
+    this.type = type;
+    this.body = body;
+    this.flat = flat;
+    this.flatFunction = flatFunction;
+    this.profile = profile;
+    this.receiver = receiver;
+  }
+
+  public int arity() {
+    return layout.parameters.length;
+  }
+
+  public Object call(Interpreter interpreter, Object[] arguments) {
+    return invoke(interpreter, null, arguments);
+  }
+
+  public Object call(Interpreter interpreter) {
+    return invoke(interpreter, null);
+  }
+
+  public Object call(Interpreter interpreter, Object a) {
+    return invoke(interpreter, null, a);
+  }
+
+  public Object call(Interpreter interpreter, Object a, Object b) {
+    return invoke(interpreter, null, a, b);
+  }
+
+  public Object call(Interpreter interpreter, Object a, Object b, Object c) {
+    return invoke(interpreter, null, a, b, c);
+  }
+
+  public Object call(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+    return invoke(interpreter, null, a, b, c, d);
+  }
+
+  // A method keeps `this` in slot 0 of its own frame. Call sites of the form
+  // obj.method(...) pass obj here directly instead of binding the method
+  // first; a function that isn't a method ignores it, and a bound method
+  // uses its own receiver.
+  //
+  // The arguments go straight into the parameters' frame slots.
+  Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    Environment frame = enter(interpreter);
+
+    for (int i = 0; i < arguments.length; i++) {
+      frame.defineLocal(layout.parameters[i], arguments[i]);
+    }
+
+    return run(interpreter, frame, receiver);
+  }
+
+  Object invoke(Interpreter interpreter, LoxInstance receiver) {
+    return run(interpreter, enter(interpreter), receiver);
+  }
+
+  Object invoke(Interpreter interpreter, LoxInstance receiver, Object a) {
+    Environment frame = enter(interpreter);
+
+    frame.defineLocal(layout.parameters[0], a);
+
+    return run(interpreter, frame, receiver);
+  }
+
+  Object invoke(Interpreter interpreter, LoxInstance receiver, Object a, Object b) {
+    Environment frame = enter(interpreter);
+
+    frame.defineLocal(layout.parameters[0], a);
+    frame.defineLocal(layout.parameters[1], b);
+
+    return run(interpreter, frame, receiver);
+  }
+
+  Object invoke(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Object c) {
+    Environment frame = enter(interpreter);
+
+    frame.defineLocal(layout.parameters[0], a);
+    frame.defineLocal(layout.parameters[1], b);
+    frame.defineLocal(layout.parameters[2], c);
+
+    return run(interpreter, frame, receiver);
+  }
+
+  Object invoke(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Object c,
+      Object d) {
+    Environment frame = enter(interpreter);
+
+    frame.defineLocal(layout.parameters[0], a);
+    frame.defineLocal(layout.parameters[1], b);
+    frame.defineLocal(layout.parameters[2], c);
+    frame.defineLocal(layout.parameters[3], d);
+
+    return run(interpreter, frame, receiver);
+  }
+
+  // Takes the frame of the next call depth, for the caller to store the
+  // arguments in.
+  private Environment enter(Interpreter interpreter) {
+    interpreter.enterCall(name);
+
+    return interpreter.frame(layout.frameSize);
+  }
+
+  // Runs the call entered into. A body that ends in a tail call comes back
+  // with Completion.TAIL_CALL, and the parked call is made by the next turn
+  // of the loop, in this same Java frame and at the same call depth. An
+  // initializer still returns its instance once the call it ended in is
+  // made.
+  private Object run(Interpreter interpreter, Environment frame, LoxInstance receiver) {
+    LoxInstance instance = null;
+
+    if (type == FunctionType.INITIALIZER)
+      instance = this.receiver != null ? this.receiver : receiver;
+
+    try {
+      LoxFunction function = this;
+
+      for (;;) {
+        Object result = function.execute(interpreter, frame, receiver);
+
+        if (result != Completion.TAIL_CALL)
+          return instance != null ? instance : result;
+
+        function = interpreter.tailFunction();
+        receiver = interpreter.tailReceiver();
+        frame = interpreter.frame(function.layout.frameSize);
+        interpreter.takeTailArguments(frame, function.layout.parameters);
+      }
+    } catch (StackOverflowError error) {
+      // The Java stack ran out before maxDepth was reached.
+      throw new RuntimeError(name, "Stack overflow.");
+    } finally {
+      interpreter.exitCall();
+    }
+  }
+
+  // Runs the body once, with the arguments already in frame. Returns the
+  // function's value, or Completion.TAIL_CALL when it ended by parking a
+  // tail call.
+  private Object execute(Interpreter interpreter, Environment frame, LoxInstance receiver) {
+    if (this.receiver != null)
+      receiver = this.receiver;
+
+    JitCode code = profile != null
+        ? profile.code(interpreter, declaration, type != FunctionType.FUNCTION)
+        : null;
+
+    // The compiled code takes the arguments out of the frame, leaving it
+    // clear.
+    if (code != null) {
+      Object result = code.run(receiver, frame);
+
+      if (type == FunctionType.INITIALIZER && result != Completion.TAIL_CALL)
+        return receiver;
+
+      return result;
+    }
+
+    frame.upvalues = upvalues;
+
+    Completion completion;
+
+    try {
+      if (type != FunctionType.FUNCTION)
+        frame.defineLocal(layout.receiver, receiver);
+
+      // A captured receiver or parameter moves into a cell before any
+      // closure can refer to it.
+      for (int slot : layout.cells) {
+        frame.defineCell(slot, frame.getLocal(slot));
+      }
+
+      if (body != null)
+        completion = StmtNode.executeAll(body, frame);
+      else if (flat != null)
+        completion = flat.executeBody(flatFunction, frame);
+      else
+        completion = interpreter.executeBlock(declaration.body, frame);
+    } finally {
+      frame.clear(layout.frameSize);
+    }
+
+    if (type == FunctionType.INITIALIZER && completion != Completion.TAIL_CALL) {
+      interpreter.takeReturnValue();
+
+      return receiver;
+    }
+
+    if (completion == Completion.RETURN)
+      return interpreter.takeReturnValue();
+
+    if (completion == Completion.TAIL_CALL)
+      return Completion.TAIL_CALL;
+
+    return null;
+  }
+
+  public LoxFunction bind(LoxInstance loxInstance) {
+    return new LoxFunction(declaration, name, upvalues, layout, type, body, flat, flatFunction,
+        profile, loxInstance);
+  }
+
+  // As the VM prints its functions.
+  public String toString() {
+    return "<fn " + name.lexeme + ">";
+  }
+}
@@ -1,33 +1,84 @@
-import java.util.HashMap;
-import java.util.Map;
-
-public class LoxInstance {
-  private LoxClass loxClass;
-  private final Map<String, Object> fields = new HashMap<>();
-
-  LoxInstance(LoxClass loxClass) {
-    this.loxClass = loxClass;
-  }
-
-  Object get(Token name) {
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
-    }
-
-    LoxFunction method = loxClass.findMethod(name.lexeme);
-
-    if (method != null) {
-      return method.bind(this);
-    }
-
-    throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
-  }
-
-  void set(Token name, Object value) {
-    fields.put(name.lexeme, value);
-  }
-
-  public String toString() {
-    return loxClass.name + " instance";
-  }
-}
+import java.util.Arrays;
+
+public class LoxInstance {
+  // The first fields are stored in the object itself, the rest in extra.
+  private static final int INLINE_FIELDS = 4;
+
+  private Shape shape;
+  private Object field0;
+  private Object field1;
+  private Object field2;
+  private Object field3;
+  private Object[] extra = null;
+
+  LoxInstance(LoxClass loxClass) {
+    this.shape = loxClass.shape;
+  }
+
+  Shape shape() {
+    return shape;
+  }
+
+  Object get(Token name, PropertyCache cache) {
+    return cache.get(this, name);
+  }
+
+  void set(Token name, Object value, PropertyCache cache) {
+    cache.set(this, name, value);
+  }
+
+  Object getSlot(int slot) {
+    switch (slot) {
+      case 0:
+        return field0;
+      case 1:
+        return field1;
+      case 2:
+        return field2;
+      case 3:
+        return field3;
+
+      default:
+        return extra[slot - INLINE_FIELDS];
+    }
+  }
+
+  void setSlot(int slot, Object value) {
+    switch (slot) {
+      case 0:
+        field0 = value;
+        break;
+      case 1:
+        field1 = value;
+        break;
+      case 2:
+        field2 = value;
+        break;
+      case 3:
+        field3 = value;
+        break;
+
+      default:
+        extra[slot - INLINE_FIELDS] = value;
+    }
+  }
+
+  // Moves the instance to a shape one field larger than its current one.
+  void reshape(Shape next) {
+    int outside = next.size - INLINE_FIELDS;
+
+    if (outside > 0) {
+      if (extra == null) {
+        extra = new Object[4];
+      } else if (outside > extra.length) {
+        extra = Arrays.copyOf(extra, extra.length * 2);
+      }
+    }
+
+    shape = next;
+  }
+
+  public String toString() {
+    return shape.loxClass.name + " instance";
+  }
+}
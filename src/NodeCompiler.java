@@ -0,0 +1,228 @@
+import java.util.List;
+
+// Converts the resolved syntax tree into ExprNode/StmtNode trees once, so
+// operator selection and variable resolution are not repeated every time the
+// code runs. The nodes share Environment, LoxFunction, LoxClass and
+// LoxInstance with the Interpreter.
+class NodeCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+  private final Interpreter interpreter;
+
+  NodeCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  StmtNode[] compile(List<Stmt> statements) {
+    StmtNode[] nodes = new StmtNode[statements.size()];
+
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = compile(statements.get(i));
+    }
+
+    return nodes;
+  }
+
+  StmtNode compile(Stmt statement) {
+    return statement.accept(this);
+  }
+
+  ExprNode compile(Expr expression) {
+    return expression.accept(this);
+  }
+
+  private StmtNode.Function function(Stmt.Function stmt) {
+    return new StmtNode.Function(stmt, compile(stmt.body), stmt.layout, interpreter.globals,
+        stmt.slot, stmt.captured);
+  }
+
+  public ExprNode visitAssignExpr(Expr.Assign expr) {
+    ExprNode value = compile(expr.value);
+
+    if (expr.access == FrameLayout.GLOBAL)
+      return new ExprNode.AssignGlobal(interpreter.globals, expr.name, value);
+
+    if (expr.access == FrameLayout.SLOT)
+      return new ExprNode.AssignLocal(expr.index, value);
+
+    return new ExprNode.AssignCaptured(expr.access, expr.index, value);
+  }
+
+  public ExprNode visitBinaryExpr(Expr.Binary expr) {
+    ExprNode left = compile(expr.left);
+    ExprNode right = compile(expr.right);
+
+    switch (expr.operator.type) {
+      case LESS:
+        return new ExprNode.Less(expr.operator, left, right);
+      case GREATER:
+        return new ExprNode.Greater(expr.operator, left, right);
+      case GREATER_EQUAL:
+        return new ExprNode.GreaterEqual(expr.operator, left, right);
+      case LESS_EQUAL:
+        return new ExprNode.LessEqual(expr.operator, left, right);
+      case MINUS:
+        return new ExprNode.Subtract(expr.operator, left, right);
+      case PLUS:
+        return new ExprNode.Add(expr.operator, left, right);
+      case SLASH:
+        return new ExprNode.Divide(expr.operator, left, right);
+      case STAR:
+        return new ExprNode.Multiply(expr.operator, left, right);
+      case BANG_EQUAL:
+        return new ExprNode.Equal(expr.operator, left, right, true);
+      case EQUAL_EQUAL:
+        return new ExprNode.Equal(expr.operator, left, right, false);
+
+      default:
+        break;
+    }
+
+    // Unreachable.
+    return null;
+  }
+
+  public ExprNode visitCallExpr(Expr.Call expr) {
+    ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(expr.arguments.get(i));
+    }
+
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+
+      return new ExprNode.Invoke(interpreter, compile(get.object), get.name, expr.paren, arguments);
+    }
+
+    if (expr.callee instanceof Expr.Super) {
+      ExprNode.Super method = (ExprNode.Super) compile(expr.callee);
+
+      return new ExprNode.SuperInvoke(interpreter, method, expr.paren, arguments);
+    }
+
+    return new ExprNode.Call(interpreter, compile(expr.callee), expr.paren, arguments);
+  }
+
+  public ExprNode visitGetExpr(Expr.Get expr) {
+    return new ExprNode.Get(compile(expr.object), expr.name);
+  }
+
+  public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+    // Grouping only matters to the parser.
+    return compile(expr.expression);
+  }
+
+  public ExprNode visitLiteralExpr(Expr.Literal expr) {
+    return new ExprNode.Literal(expr.value);
+  }
+
+  public ExprNode visitLogicalExpr(Expr.Logical expr) {
+    ExprNode left = compile(expr.left);
+    ExprNode right = compile(expr.right);
+
+    if (expr.operator.type == TokenType.OR) {
+      return new ExprNode.Or(left, right);
+    }
+
+    return new ExprNode.And(left, right);
+  }
+
+  public ExprNode visitSetExpr(Expr.Set expr) {
+    return new ExprNode.Set(compile(expr.object), expr.name, compile(expr.value));
+  }
+
+  public ExprNode visitSuperExpr(Expr.Super expr) {
+    return new ExprNode.Super(expr.access, expr.index, expr.receiverAccess, expr.receiverIndex,
+        expr.method);
+  }
+
+  public ExprNode visitThisExpr(Expr.This expr) {
+    return variable(expr.keyword, expr.access, expr.index);
+  }
+
+  public ExprNode visitUnaryExpr(Expr.Unary expr) {
+    ExprNode right = compile(expr.right);
+
+    if (expr.operator.type == TokenType.BANG) {
+      return new ExprNode.Not(right);
+    }
+
+    return new ExprNode.Negate(expr.operator, right);
+  }
+
+  public ExprNode visitVariableExpr(Expr.Variable expr) {
+    return variable(expr.name, expr.access, expr.index);
+  }
+
+  private ExprNode variable(Token name, int access, int index) {
+    if (access == FrameLayout.GLOBAL)
+      return new ExprNode.Global(interpreter.globals, name);
+
+    if (access == FrameLayout.SLOT)
+      return new ExprNode.Local(index);
+
+    return new ExprNode.Captured(access, index);
+  }
+
+  public StmtNode visitBlockStmt(Stmt.Block stmt) {
+    return new StmtNode.Block(compile(stmt.statements));
+  }
+
+  public StmtNode visitClassStmt(Stmt.Class stmt) {
+    ExprNode superclass = null;
+    Token superclassName = null;
+
+    if (stmt.superclass != null) {
+      superclass = compile(stmt.superclass);
+      superclassName = stmt.superclass.name;
+    }
+
+    StmtNode.Function[] methods = new StmtNode.Function[stmt.methods.size()];
+
+    for (int i = 0; i < methods.length; i++) {
+      methods[i] = function(stmt.methods.get(i));
+    }
+
+    return new StmtNode.Class(stmt.name, interpreter.globals, stmt.slot, stmt.captured, superclass,
+        superclassName, stmt.superclassSlot, methods);
+  }
+
+  public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+    return new StmtNode.Expression(compile(stmt.expression));
+  }
+
+  public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+    return function(stmt);
+  }
+
+  public StmtNode visitIfStmt(Stmt.If stmt) {
+    StmtNode elseBranch = null;
+
+    if (stmt.elseBranch != null)
+      elseBranch = compile(stmt.elseBranch);
+
+    return new StmtNode.If(compile(stmt.condition), compile(stmt.thenBranch), elseBranch);
+  }
+
+  public StmtNode visitReturnStmt(Stmt.Return stmt) {
+    ExprNode value = null;
+
+    if (stmt.value != null)
+      value = compile(stmt.value);
+
+    return new StmtNode.Return(interpreter, value);
+  }
+
+  public StmtNode visitVarStmt(Stmt.Var stmt) {
+    ExprNode initializer = null;
+
+    if (stmt.initializer != null)
+      initializer = compile(stmt.initializer);
+
+    return new StmtNode.Var(stmt.name.lexeme, interpreter.globals, stmt.slot, stmt.captured,
+        initializer);
+  }
+
+  public StmtNode visitWhileStmt(Stmt.While stmt) {
+    return new StmtNode.While(compile(stmt.condition), compile(stmt.body));
+  }
+}
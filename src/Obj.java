@@ -0,0 +1,113 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// Heap objects used by the VM. Numbers, strings, booleans and nil are
+// represented by the same Java values the tree-walking Interpreter uses.
+abstract class Obj {
+  static class Function extends Obj {
+    final String name;
+    final Chunk chunk = new Chunk();
+    int arity = 0;
+    int upvalueCount = 0;
+    // The most locals the function has at once, slot zero included.
+    int slots = 0;
+    Object[] constants;
+
+    Function(String name) {
+      this.name = name;
+    }
+
+    public String toString() {
+      if (name == null)
+        return "<script>";
+
+      return "<fn " + name + ">";
+    }
+  }
+
+  interface NativeFn {
+    Object call(Object[] arguments);
+  }
+
+  static class Native extends Obj {
+    final int arity;
+    final NativeFn function;
+
+    Native(int arity, NativeFn function) {
+      this.arity = arity;
+      this.function = function;
+    }
+
+    public String toString() {
+      return "<native fn>";
+    }
+  }
+
+  static class Closure extends Obj {
+    final Function function;
+    final Upvalue[] upvalues;
+
+    Closure(Function function) {
+      this.function = function;
+      this.upvalues = new Upvalue[function.upvalueCount];
+    }
+
+    public String toString() {
+      return function.toString();
+    }
+  }
+
+  static class Upvalue extends Obj {
+    // While open, the variable still lives in the VM stack at this slot.
+    final int slot;
+    boolean open = true;
+    Object closed;
+    Upvalue next;
+
+    Upvalue(int slot, Upvalue next) {
+      this.slot = slot;
+      this.next = next;
+    }
+  }
+
+  static class Class extends Obj {
+    final String name;
+    final Map<String, Closure> methods = new HashMap<>();
+    Closure initializer;
+
+    Class(String name) {
+      this.name = name;
+    }
+
+    public String toString() {
+      return name;
+    }
+  }
+
+  static class Instance extends Obj {
+    final Class klass;
+    final Map<String, Object> fields = new HashMap<>();
+
+    Instance(Class klass) {
+      this.klass = klass;
+    }
+
+    public String toString() {
+      return klass.name + " instance";
+    }
+  }
+
+  static class BoundMethod extends Obj {
+    final Object receiver;
+    final Closure method;
+
+    BoundMethod(Object receiver, Closure method) {
+      this.receiver = receiver;
+      this.method = method;
+    }
+
+    public String toString() {
+      return method.toString();
+    }
+  }
+}
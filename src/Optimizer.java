@@ -0,0 +1,582 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+// Rewrites the resolved syntax tree before it runs: operators over literals
+// are folded into literals, local variables that are initialized with a
+// literal and never assigned are replaced by it, and ifs and whiles whose
+// condition is a literal lose the branches that can never run. Globals are
+// left alone, as code compiled in another batch, such as an earlier line in
+// the REPL, may assign them.
+//
+// The tree is immutable, so a node whose children changed is copied, and the
+// copy is given what the Resolver recorded on the original: the access and
+// index of a reference, or the slot and captured flag of a declaration along
+// with a function's layout and a class's superclass slot.
+// Folding evaluates the operator with the Interpreter itself, so a fold can
+// never disagree with what running the code would have done; an operator that
+// would fail at runtime is left in place to fail there.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  private final Interpreter interpreter;
+  private final Stack<Map<String, Token>> scopes = new Stack<>();
+  // Filled in by Assignments before the rewrite starts.
+  private final Set<Token> assigned = new HashSet<>();
+  // Values of the declarations found to be constant so far.
+  private final Map<Token, Object> constants = new IdentityHashMap<>();
+
+  Optimizer(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  List<Stmt> optimize(List<Stmt> statements) {
+    new Assignments().resolve(statements);
+
+    return optimizeAll(statements);
+  }
+
+  private List<Stmt> optimizeAll(List<Stmt> statements) {
+    List<Stmt> optimized = new ArrayList<>(statements.size());
+    boolean changed = false;
+
+    for (Stmt statement : statements) {
+      Stmt result = optimize(statement);
+
+      if (result != null)
+        optimized.add(result);
+
+      changed |= result != statement;
+    }
+
+    return changed ? optimized : statements;
+  }
+
+  // Returns null for a statement that can be dropped.
+  private Stmt optimize(Stmt statement) {
+    return statement.accept(this);
+  }
+
+  // For the body of an if or a while, which must be some statement.
+  private Stmt optimizeBranch(Stmt statement) {
+    Stmt result = optimize(statement);
+
+    if (result != null)
+      return result;
+
+    return new Stmt.Block(new ArrayList<>());
+  }
+
+  private Expr optimize(Expr expression) {
+    return expression.accept(this);
+  }
+
+  private List<Expr> optimizeExprs(List<Expr> expressions) {
+    List<Expr> optimized = new ArrayList<>(expressions.size());
+    boolean changed = false;
+
+    for (Expr expression : expressions) {
+      Expr result = optimize(expression);
+
+      optimized.add(result);
+      changed |= result != expression;
+    }
+
+    return changed ? optimized : expressions;
+  }
+
+  // A rebuilt node keeps what the Resolver recorded on the original.
+  private static Expr.Assign resolved(Expr.Assign original, Expr.Assign copy) {
+    copy.access = original.access;
+    copy.index = original.index;
+
+    return copy;
+  }
+
+  private static Stmt.Class resolved(Stmt.Class original, Stmt.Class copy) {
+    copy.slot = original.slot;
+    copy.captured = original.captured;
+    copy.superclassSlot = original.superclassSlot;
+
+    return copy;
+  }
+
+  private static Stmt.Function resolved(Stmt.Function original, Stmt.Function copy) {
+    copy.slot = original.slot;
+    copy.captured = original.captured;
+    copy.layout = original.layout;
+
+    return copy;
+  }
+
+  private static Stmt.Var resolved(Stmt.Var original, Stmt.Var copy) {
+    copy.slot = original.slot;
+    copy.captured = original.captured;
+
+    return copy;
+  }
+
+  private Expr fold(Expr expression) {
+    try {
+      return new Expr.Literal(expression.accept(interpreter));
+    } catch (RuntimeError error) {
+      return expression;
+    }
+  }
+
+  private void beginScope() {
+    scopes.push(new HashMap<String, Token>());
+  }
+
+  private void endScope() {
+    scopes.pop();
+  }
+
+  private void declare(Token name) {
+    if (!scopes.isEmpty())
+      scopes.peek().put(name.lexeme, name);
+  }
+
+  // The value a variable reference can be replaced with, or null.
+  private Object constant(Token name) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Token declaration = scopes.get(i).get(name.lexeme);
+
+      if (declaration != null)
+        return constants.get(declaration);
+    }
+
+    return null;
+  }
+
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+
+    List<Stmt> statements = optimizeAll(stmt.statements);
+
+    endScope();
+
+    if (statements == stmt.statements)
+      return stmt;
+
+    return new Stmt.Block(statements);
+  }
+
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    declare(stmt.name);
+
+    List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+    boolean changed = false;
+
+    for (Stmt.Function method : stmt.methods) {
+      Stmt.Function result = function(method);
+
+      methods.add(result);
+      changed |= result != method;
+    }
+
+    if (!changed)
+      return stmt;
+
+    return resolved(stmt, new Stmt.Class(stmt.name, stmt.superclass, methods));
+  }
+
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+
+    if (expression == stmt.expression)
+      return stmt;
+
+    return new Stmt.Expression(expression);
+  }
+
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    declare(stmt.name);
+
+    return function(stmt);
+  }
+
+  private Stmt.Function function(Stmt.Function stmt) {
+    beginScope();
+
+    for (Token param : stmt.params) {
+      declare(param);
+    }
+
+    List<Stmt> body = optimizeAll(stmt.body);
+
+    endScope();
+
+    if (body == stmt.body)
+      return stmt;
+
+    return resolved(stmt, new Stmt.Function(stmt.name, stmt.params, body));
+  }
+
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = optimize(stmt.condition);
+
+    if (condition instanceof Expr.Literal) {
+      if (Interpreter.isTruthy(((Expr.Literal) condition).value))
+        return optimize(stmt.thenBranch);
+
+      return stmt.elseBranch != null ? optimize(stmt.elseBranch) : null;
+    }
+
+    Stmt thenBranch = optimizeBranch(stmt.thenBranch);
+    Stmt elseBranch = stmt.elseBranch != null ? optimizeBranch(stmt.elseBranch) : null;
+
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch)
+      return stmt;
+
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null)
+      return stmt;
+
+    Expr value = optimize(stmt.value);
+
+    if (value == stmt.value)
+      return stmt;
+
+    return new Stmt.Return(stmt.keyword, value);
+  }
+
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    declare(stmt.name);
+
+    Expr initializer = stmt.initializer != null ? optimize(stmt.initializer) : null;
+
+    // Only a local has its whole scope in this batch, so only there can
+    // the pass see every assignment to it. Nil is no use as a constant, as
+    // constant() returns null for none.
+    if (initializer instanceof Expr.Literal && ((Expr.Literal) initializer).value != null
+        && stmt.slot != FrameLayout.GLOBAL && !assigned.contains(stmt.name))
+      constants.put(stmt.name, ((Expr.Literal) initializer).value);
+
+    if (initializer == stmt.initializer)
+      return stmt;
+
+    return resolved(stmt, new Stmt.Var(stmt.name, initializer));
+  }
+
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = optimize(stmt.condition);
+
+    if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value))
+      return null;
+
+    Stmt body = optimizeBranch(stmt.body);
+
+    if (condition == stmt.condition && body == stmt.body)
+      return stmt;
+
+    return new Stmt.While(condition, body);
+  }
+
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = optimize(expr.value);
+
+    if (value == expr.value)
+      return expr;
+
+    return resolved(expr, new Expr.Assign(expr.name, value));
+  }
+
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    if (left == expr.left && right == expr.right && !(left instanceof Expr.Literal && right instanceof Expr.Literal))
+      return expr;
+
+    Expr.Binary binary = new Expr.Binary(left, expr.operator, right);
+
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal)
+      return fold(binary);
+
+    return binary;
+  }
+
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = optimize(expr.callee);
+    List<Expr> arguments = optimizeExprs(expr.arguments);
+
+    if (callee == expr.callee && arguments == expr.arguments)
+      return expr;
+
+    return new Expr.Call(callee, expr.paren, arguments);
+  }
+
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = optimize(expr.object);
+
+    if (object == expr.object)
+      return expr;
+
+    return new Expr.Get(object, expr.name);
+  }
+
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = optimize(expr.expression);
+
+    if (expression instanceof Expr.Literal)
+      return expression;
+
+    if (expression == expr.expression)
+      return expr;
+
+    return new Expr.Grouping(expression);
+  }
+
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  // Short-circuiting on a literal left operand leaves whichever operand the
+  // expression would have produced.
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = optimize(expr.left);
+
+    if (left instanceof Expr.Literal) {
+      boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+
+      if (expr.operator.type == TokenType.OR ? truthy : !truthy)
+        return left;
+
+      return optimize(expr.right);
+    }
+
+    Expr right = optimize(expr.right);
+
+    if (left == expr.left && right == expr.right)
+      return expr;
+
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = optimize(expr.object);
+    Expr value = optimize(expr.value);
+
+    if (object == expr.object && value == expr.value)
+      return expr;
+
+    return new Expr.Set(object, expr.name, value);
+  }
+
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = optimize(expr.right);
+
+    if (right instanceof Expr.Literal)
+      return fold(new Expr.Unary(expr.operator, right));
+
+    if (right == expr.right)
+      return expr;
+
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    Object value = constant(expr.name);
+
+    if (value == null)
+      return expr;
+
+    return new Expr.Literal(value);
+  }
+
+  // First pass: finds every local declaration that is assigned somewhere,
+  // with the same scoping as the rewrite.
+  private final class Assignments implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Stack<Map<String, Token>> scopes = new Stack<>();
+
+    void resolve(List<Stmt> statements) {
+      for (Stmt statement : statements) {
+        resolve(statement);
+      }
+    }
+
+    private void resolve(Stmt statement) {
+      if (statement != null)
+        statement.accept(this);
+    }
+
+    private void resolve(Expr expression) {
+      if (expression != null)
+        expression.accept(this);
+    }
+
+    private void declare(Token name) {
+      if (!scopes.isEmpty())
+        scopes.peek().put(name.lexeme, name);
+    }
+
+    private void function(Stmt.Function stmt) {
+      scopes.push(new HashMap<String, Token>());
+
+      for (Token param : stmt.params) {
+        declare(param);
+      }
+
+      resolve(stmt.body);
+
+      scopes.pop();
+    }
+
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      scopes.push(new HashMap<String, Token>());
+
+      resolve(stmt.statements);
+
+      scopes.pop();
+
+      return null;
+    }
+
+    public Void visitClassStmt(Stmt.Class stmt) {
+      declare(stmt.name);
+
+      for (Stmt.Function method : stmt.methods) {
+        function(method);
+      }
+
+      return null;
+    }
+
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      resolve(stmt.expression);
+
+      return null;
+    }
+
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      declare(stmt.name);
+      function(stmt);
+
+      return null;
+    }
+
+    public Void visitIfStmt(Stmt.If stmt) {
+      resolve(stmt.condition);
+      resolve(stmt.thenBranch);
+      resolve(stmt.elseBranch);
+
+      return null;
+    }
+
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      resolve(stmt.value);
+
+      return null;
+    }
+
+    public Void visitVarStmt(Stmt.Var stmt) {
+      declare(stmt.name);
+      resolve(stmt.initializer);
+
+      return null;
+    }
+
+    public Void visitWhileStmt(Stmt.While stmt) {
+      resolve(stmt.condition);
+      resolve(stmt.body);
+
+      return null;
+    }
+
+    public Void visitAssignExpr(Expr.Assign expr) {
+      resolve(expr.value);
+
+      for (int i = scopes.size() - 1; i >= 0; i--) {
+        Token declaration = scopes.get(i).get(expr.name.lexeme);
+
+        if (declaration != null) {
+          assigned.add(declaration);
+
+          return null;
+        }
+      }
+
+      return null;
+    }
+
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      resolve(expr.left);
+      resolve(expr.right);
+
+      return null;
+    }
+
+    public Void visitCallExpr(Expr.Call expr) {
+      resolve(expr.callee);
+
+      for (Expr argument : expr.arguments) {
+        resolve(argument);
+      }
+
+      return null;
+    }
+
+    public Void visitGetExpr(Expr.Get expr) {
+      resolve(expr.object);
+
+      return null;
+    }
+
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      resolve(expr.expression);
+
+      return null;
+    }
+
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      resolve(expr.left);
+      resolve(expr.right);
+
+      return null;
+    }
+
+    public Void visitSetExpr(Expr.Set expr) {
+      resolve(expr.object);
+      resolve(expr.value);
+
+      return null;
+    }
+
+    public Void visitSuperExpr(Expr.Super expr) {
+      return null;
+    }
+
+    public Void visitThisExpr(Expr.This expr) {
+      return null;
+    }
+
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      resolve(expr.right);
+
+      return null;
+    }
+
+    public Void visitVariableExpr(Expr.Variable expr) {
+      return null;
+    }
+  }
+}
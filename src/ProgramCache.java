@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiled programs for a host that runs many scripts in one JVM, so that
+// running a source again skips the front end. Programs are FlatAsts, which
+// any number of threads can run at once, each with its own Interpreter:
+//
+//   List<String> errors = new ArrayList<>();
+//   FlatAst program = cache.compile(source, errors);
+//
+//   if (program != null)
+//     new Interpreter().interpretFlat(program);
+//
+// The cache holds at most capacity sources and evicts the one used least
+// recently to make room. A source with errors is kept like any other, along
+// with its messages, so compiling it again skips the front end too.
+//
+// It is safe to use from several threads. Lookups only hold the cache's lock
+// briefly. Each compile reports its errors to a reporter of its own rather
+// than through Lox's, but the compiles of one cache take turns on its front
+// end. Two threads that miss on the same source both compile it, and the
+// later one's result is kept.
+final class ProgramCache {
+  // A compiled source: its program, or the errors that kept it from having
+  // one.
+  private static final class Entry {
+    final FlatAst program;
+    final List<String> errors;
+
+    Entry(FlatAst program, List<String> errors) {
+      this.program = program;
+      this.errors = errors;
+    }
+  }
+
+  // Resolves and optimizes this cache's compiles. Only used while holding it.
+  private final Interpreter frontEnd = new Interpreter();
+  private final Map<String, Entry> entries;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  ProgramCache(int capacity) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Capacity must be at least 1.");
+
+    // In access order, so the eldest entry is the least recently used.
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() <= capacity)
+          return false;
+
+        evictions++;
+
+        return true;
+      }
+    };
+  }
+
+  // The program for source, compiled as statements, or null if it has
+  // errors. Their messages are added to errors, in the form the command line
+  // prints them.
+  FlatAst compile(String source, List<String> errors) {
+    Entry entry;
+
+    synchronized (this) {
+      entry = entries.get(source);
+
+      if (entry != null)
+        hits++;
+      else
+        misses++;
+    }
+
+    if (entry == null) {
+      entry = compile(source);
+
+      synchronized (this) {
+        entries.put(source, entry);
+      }
+    }
+
+    errors.addAll(entry.errors);
+
+    return entry.program;
+  }
+
+  private Entry compile(String source) {
+    List<String> messages = new ArrayList<>();
+    ErrorReporter reporter = new ErrorReporter(messages);
+
+    synchronized (frontEnd) {
+      Parser parser = new Parser(new Scanner(source, reporter).scanTokens(), reporter);
+      List<Stmt> statements = Lox.compile(parser, frontEnd, reporter);
+
+      if (statements == null)
+        return new Entry(null, messages);
+
+      return new Entry(FlatAst.encode(statements, frontEnd.scriptFrameSize()), messages);
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized long hits() {
+    return hits;
+  }
+
+  synchronized long misses() {
+    return misses;
+  }
+
+  synchronized long evictions() {
+    return evictions;
+  }
+
+  public synchronized String toString() {
+    return entries.size() + " sources, " + hits + " hits, " + misses + " misses, "
+        + evictions + " evictions";
+  }
+}
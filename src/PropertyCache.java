@@ -0,0 +1,118 @@
+// Inline cache for one property access site, keyed by the receiver's shape.
+// For a get it remembers the field slot the name lives in, or the method it
+// resolved to when the instance has no such field. For a set it remembers the
+// slot and, when the field is new, the shape the instance moves to. A hit is
+// an identity check on the shape followed by a direct load or store. A site
+// that sees more than LIMIT shapes stops adding entries and looks the name
+// up in the shape on a miss.
+//
+// A cache belongs to one interpreter, or to one run of a FlatAst, and like
+// the shapes it holds is only used by the thread running it. Nothing here is
+// synchronized.
+final class PropertyCache {
+  private static final int LIMIT = 4;
+
+  private static final class Entry {
+    final Shape shape;
+    final int slot;
+    final LoxFunction method;
+    final Shape next;
+
+    Entry(Shape shape, int slot, LoxFunction method, Shape next) {
+      this.shape = shape;
+      this.slot = slot;
+      this.method = method;
+      this.next = next;
+    }
+  }
+
+  private Entry[] entries = new Entry[0];
+
+  Object get(LoxInstance instance, Token name) {
+    Entry entry = find(instance, name);
+
+    if (entry.method != null)
+      return entry.method.bind(instance);
+
+    return instance.getSlot(entry.slot);
+  }
+
+  // Like get(), but a method comes back unbound, so a call site can invoke
+  // it with the instance as receiver instead of allocating a bound copy. A
+  // field that holds a function is returned as is; invoking it ignores the
+  // receiver.
+  Object lookup(LoxInstance instance, Token name) {
+    Entry entry = find(instance, name);
+
+    if (entry.method != null)
+      return entry.method;
+
+    return instance.getSlot(entry.slot);
+  }
+
+  private Entry find(LoxInstance instance, Token name) {
+    Shape shape = instance.shape();
+    Entry entry = cached(shape);
+
+    if (entry != null)
+      return entry;
+
+    int slot = shape.slot(name.lexeme);
+    LoxFunction method = null;
+
+    // Fields shadow methods.
+    if (slot == -1) {
+      method = shape.loxClass.findMethod(name.lexeme);
+
+      if (method == null)
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
+    return add(new Entry(shape, slot, method, null));
+  }
+
+  void set(LoxInstance instance, Token name, Object value) {
+    Shape shape = instance.shape();
+    Entry entry = cached(shape);
+
+    if (entry == null) {
+      int slot = shape.slot(name.lexeme);
+      Shape next = null;
+
+      if (slot == -1) {
+        next = shape.with(name.lexeme);
+        slot = shape.size;
+      }
+
+      entry = add(new Entry(shape, slot, null, next));
+    }
+
+    if (entry.next != null)
+      instance.reshape(entry.next);
+
+    instance.setSlot(entry.slot, value);
+  }
+
+  private Entry cached(Shape shape) {
+    for (Entry entry : entries) {
+      if (entry.shape == shape)
+        return entry;
+    }
+
+    return null;
+  }
+
+  private Entry add(Entry entry) {
+    Entry[] current = entries;
+
+    if (current.length < LIMIT) {
+      Entry[] grown = new Entry[current.length + 1];
+
+      System.arraycopy(current, 0, grown, 0, current.length);
+      grown[current.length] = entry;
+      entries = grown;
+    }
+
+    return entry;
+  }
+}
@@ -1,305 +1,616 @@
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Stack;
-
-enum FunctionType {
-  NONE,
-  FUNCTION,
-  METHOD,
-  INITIALIZER
-}
-
-enum ClassType {
-  NONE,
-  CLASS,
-  SUBCLASS
-}
-
-public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
-  private FunctionType currentFunction = FunctionType.NONE;
-  private ClassType currentClass = ClassType.NONE;
-
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
-  }
-
-  public void resolve(List<Stmt> statements) {
-    for (Stmt statement : statements) {
-      resolve(statement);
-    }
-  }
-
-  private void resolve(Stmt statement) {
-    statement.accept(this);
-  }
-
-  private void resolve(Expr expression) {
-    expression.accept(this);
-  }
-
-  private void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
-  }
-
-  private void endScope() {
-    scopes.pop();
-  }
-
-  private void declare(Token name) {
-    if (scopes.isEmpty()) {
-      return;
-    }
-
-    Map<String, Boolean> scope = scopes.peek();
-
-    if (scope.containsKey(name.lexeme)) {
-      Lox.error(name, "Variable with this name already declared in this scope.");
-    }
-
-    scope.put(name.lexeme, false);
-  }
-
-  private void define(Token name) {
-    if (scopes.isEmpty()) {
-      return;
-    }
-
-    scopes.peek().put(name.lexeme, true);
-  }
-
-  private void resolveLocal(Expr expr, Token name) {
-    for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size() - 1 - i);
-
-        return;
-      }
-    }
-  }
-
-  private void resolveFunction(Stmt.Function function, FunctionType type) {
-    FunctionType enclosingFunction = currentFunction;
-    currentFunction = type;
-
-    beginScope();
-
-    for (Token param : function.params) {
-      declare(param);
-      define(param);
-    }
-
-    resolve(function.body);
-
-    endScope();
-
-    currentFunction = enclosingFunction;
-  }
-
-  public Void visitBlockStmt(Stmt.Block stmt) {
-    beginScope();
-
-    resolve(stmt.statements);
-
-    endScope();
-
-    return null;
-  }
-
-  public Void visitVarStmt(Stmt.Var stmt) {
-    declare(stmt.name);
-
-    if (stmt.initializer != null) {
-      resolve(stmt.initializer);
-    }
-
-    define(stmt.name);
-
-    return null;
-  }
-
-  public Void visitVariableExpr(Expr.Variable expr) {
-    if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-      Lox.error(expr.name, "Cannot read local variable in its own initializer.");
-    }
-
-    resolveLocal(expr, expr.name);
-
-    return null;
-  }
-
-  public Void visitAssignExpr(Expr.Assign expr) {
-    resolve(expr.value);
-
-    resolveLocal(expr, expr.name);
-
-    return null;
-  }
-
-  public Void visitFunctionStmt(Stmt.Function stmt) {
-    declare(stmt.name);
-    define(stmt.name);
-
-    resolveFunction(stmt, FunctionType.FUNCTION);
-
-    return null;
-  }
-
-  public Void visitExpressionStmt(Stmt.Expression stmt) {
-    resolve(stmt.expression);
-
-    return null;
-  }
-
-  public Void visitIfStmt(Stmt.If stmt) {
-    resolve(stmt.condition);
-    resolve(stmt.thenBranch);
-
-    if (stmt.elseBranch != null) {
-      resolve(stmt.elseBranch);
-    }
-
-    return null;
-  }
-
-  public Void visitReturnStmt(Stmt.Return stmt) {
-    if (currentFunction == FunctionType.NONE) {
-      Lox.error(stmt.keyword, "Cannot return from top-level code.");
-    }
-
-    if (stmt.value != null) {
-      if (currentFunction == FunctionType.INITIALIZER) {
-        Lox.error(stmt.keyword, "Cannot return a value from an initializer.");
-      }
-
-      resolve(stmt.value);
-    }
-
-    return null;
-  }
-
-  public Void visitWhileStmt(Stmt.While stmt) {
-    resolve(stmt.condition);
-    resolve(stmt.body);
-
-    return null;
-  }
-
-  public Void visitBinaryExpr(Expr.Binary expr) {
-    resolve(expr.left);
-    resolve(expr.right);
-
-    return null;
-  }
-
-  public Void visitCallExpr(Expr.Call expr) {
-    resolve(expr.callee);
-
-    for (Expr argument : expr.arguments) {
-      resolve(argument);
-    }
-
-    return null;
-  }
-
-  public Void visitGroupingExpr(Expr.Grouping expr) {
-    resolve(expr.expression);
-
-    return null;
-  }
-
-  public Void visitLiteralExpr(Expr.Literal expr) {
-    return null;
-  }
-
-  public Void visitLogicalExpr(Expr.Logical expr) {
-    resolve(expr.left);
-    resolve(expr.right);
-
-    return null;
-  }
-
-  public Void visitUnaryExpr(Expr.Unary expr) {
-    resolve(expr.right);
-
-    return null;
-  }
-
-  public Void visitClassStmt(Stmt.Class stmt) {
-    ClassType enclosingClass = currentClass;
-    currentClass = ClassType.CLASS;
-
-    declare(stmt.name);
-    define(stmt.name);
-
-    if (stmt.superclass != null) {
-      if (stmt.superclass.name.lexeme.equals(stmt.name.lexeme)) {
-        Lox.error(stmt.name, "A class cannot inherit from itself.");
-      }
-
-      currentClass = ClassType.SUBCLASS;
-
-      resolve(stmt.superclass);
-
-      beginScope();
-      scopes.peek().put("super", true);
-    }
-
-    beginScope();
-
-    scopes.peek().put("this", true);
-
-    for (Stmt.Function method : stmt.methods) {
-      FunctionType declaration = FunctionType.METHOD;
-
-      resolveFunction(method, declaration);
-    }
-
-    endScope();
-
-    if (stmt.superclass != null) {
-      endScope();
-    }
-
-    currentClass = enclosingClass;
-
-    return null;
-  }
-
-  public Void visitGetExpr(Expr.Get expr) {
-    resolve(expr.object);
-
-    return null;
-  }
-
-  public Void visitSetExpr(Expr.Set expr) {
-    resolve(expr.value);
-    resolve(expr.object);
-
-    return null;
-  }
-
-  public Void visitThisExpr(Expr.This expr) {
-    if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword, "Cannot use 'this' outside of a class.");
-    } else {
-      resolveLocal(expr, expr.keyword);
-    }
-
-    return null;
-  }
-
-  public Void visitSuperExpr(Expr.Super expr) {
-    if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword, "Cannot use 'super' outside of a class.");
-    } else if (currentClass != ClassType.SUBCLASS) {
-      Lox.error(expr.keyword, "Cannot use 'super' in a class with no superclass.");
-    } else {
-      resolveLocal(expr, expr.keyword);
-    }
-
-    return null;
-  }
-}
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+enum ClassType {
+  NONE,
+  CLASS,
+  SUBCLASS
+}
+
+public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  // Every local gets a slot in the frame of the call that declares it.
+  // Locals that a nested function refers to are captured: their slot holds a
+  // cell, and each function lists the cells it uses as its upvalues, so a
+  // closure keeps only those. Whether a local is captured is only known once
+  // its scope ends, so references from its own function are resolved then.
+  private static class Local {
+    final Function function;
+    final int frameSlot;
+    // The var, fn or class statement that declares it, if any.
+    Stmt declaration = null;
+    boolean defined = false;
+    boolean captured = false;
+    final List<Reference> references = new ArrayList<>();
+
+    Local(Function function, int frameSlot) {
+      this.function = function;
+      this.frameSlot = frameSlot;
+    }
+  }
+
+  private static class Reference {
+    final Expr expr;
+    // Set for the receiver of a super expression.
+    final boolean receiver;
+
+    Reference(Expr expr, boolean receiver) {
+      this.expr = expr;
+      this.receiver = receiver;
+    }
+  }
+
+  private static class Scope {
+    final Map<String, Local> locals = new LinkedHashMap<>();
+    final int frameStart;
+
+    Scope(int frameStart) {
+      this.frameStart = frameStart;
+    }
+  }
+
+  // Frame slots and upvalues of the function being resolved. Sibling blocks
+  // reuse frame slots.
+  private static class Function {
+    final Function enclosing;
+    int next = 0;
+    int size = 0;
+    final List<Local> upvalues = new ArrayList<>();
+
+    Function(Function enclosing) {
+      this.enclosing = enclosing;
+    }
+  }
+
+  private final Interpreter interpreter;
+  private final ErrorReporter errors;
+  private final Stack<Scope> scopes = new Stack<>();
+  private Function function = new Function(null);
+  private FunctionType currentFunction = FunctionType.NONE;
+  private ClassType currentClass = ClassType.NONE;
+
+  Resolver(Interpreter interpreter, ErrorReporter errors) {
+    this.interpreter = interpreter;
+    this.errors = errors;
+  }
+
+  public void resolve(List<Stmt> statements) {
+    resolveAll(statements);
+
+    // Top-level blocks keep their locals in the frame of the script.
+    interpreter.resolveScript(function.size);
+  }
+
+  private void resolveAll(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      resolve(statement);
+    }
+  }
+
+  private void resolve(Stmt statement) {
+    switch (statement.kind) {
+      case Stmt.BLOCK:
+        visitBlockStmt((Stmt.Block) statement);
+        break;
+      case Stmt.CLASS:
+        visitClassStmt((Stmt.Class) statement);
+        break;
+      case Stmt.EXPRESSION:
+        visitExpressionStmt((Stmt.Expression) statement);
+        break;
+      case Stmt.FUNCTION:
+        visitFunctionStmt((Stmt.Function) statement);
+        break;
+      case Stmt.IF:
+        visitIfStmt((Stmt.If) statement);
+        break;
+      case Stmt.RETURN:
+        visitReturnStmt((Stmt.Return) statement);
+        break;
+      case Stmt.VAR:
+        visitVarStmt((Stmt.Var) statement);
+        break;
+      case Stmt.WHILE:
+        visitWhileStmt((Stmt.While) statement);
+        break;
+
+      default:
+        throw new IllegalStateException("Unknown statement kind " + statement.kind + ".");
+    }
+  }
+
+  private void resolve(Expr expression) {
+    switch (expression.kind) {
+      case Expr.ASSIGN:
+        visitAssignExpr((Expr.Assign) expression);
+        break;
+      case Expr.BINARY:
+        visitBinaryExpr((Expr.Binary) expression);
+        break;
+      case Expr.CALL:
+        visitCallExpr((Expr.Call) expression);
+        break;
+      case Expr.GET:
+        visitGetExpr((Expr.Get) expression);
+        break;
+      case Expr.GROUPING:
+        visitGroupingExpr((Expr.Grouping) expression);
+        break;
+      case Expr.LITERAL:
+        visitLiteralExpr((Expr.Literal) expression);
+        break;
+      case Expr.LOGICAL:
+        visitLogicalExpr((Expr.Logical) expression);
+        break;
+      case Expr.SET:
+        visitSetExpr((Expr.Set) expression);
+        break;
+      case Expr.SUPER:
+        visitSuperExpr((Expr.Super) expression);
+        break;
+      case Expr.THIS:
+        visitThisExpr((Expr.This) expression);
+        break;
+      case Expr.UNARY:
+        visitUnaryExpr((Expr.Unary) expression);
+        break;
+      case Expr.VARIABLE:
+        visitVariableExpr((Expr.Variable) expression);
+        break;
+
+      default:
+        throw new IllegalStateException("Unknown expression kind " + expression.kind + ".");
+    }
+  }
+
+  private void beginScope() {
+    scopes.push(new Scope(function.next));
+  }
+
+  private void endScope() {
+    Scope scope = scopes.pop();
+
+    for (Local local : scope.locals.values()) {
+      int access = local.captured ? FrameLayout.CELL : FrameLayout.SLOT;
+
+      if (local.declaration != null)
+        resolveDeclaration(local.declaration, local.frameSlot, local.captured);
+
+      for (Reference reference : local.references) {
+        resolveReference(reference, access, local.frameSlot);
+      }
+    }
+
+    function.next = scope.frameStart;
+  }
+
+  // Records on the node how the interpreter reaches the variable. Nodes the
+  // Resolver doesn't reach keep access GLOBAL.
+  private static void resolveReference(Reference reference, int access, int index) {
+    Expr expr = reference.expr;
+
+    if (reference.receiver) {
+      ((Expr.Super) expr).receiverAccess = access;
+      ((Expr.Super) expr).receiverIndex = index;
+    } else if (expr instanceof Expr.Variable) {
+      ((Expr.Variable) expr).access = access;
+      ((Expr.Variable) expr).index = index;
+    } else if (expr instanceof Expr.Assign) {
+      ((Expr.Assign) expr).access = access;
+      ((Expr.Assign) expr).index = index;
+    } else if (expr instanceof Expr.This) {
+      ((Expr.This) expr).access = access;
+      ((Expr.This) expr).index = index;
+    } else {
+      ((Expr.Super) expr).access = access;
+      ((Expr.Super) expr).index = index;
+    }
+  }
+
+  private static void resolveDeclaration(Stmt declaration, int slot, boolean captured) {
+    if (declaration instanceof Stmt.Var) {
+      ((Stmt.Var) declaration).slot = slot;
+      ((Stmt.Var) declaration).captured = captured;
+    } else if (declaration instanceof Stmt.Function) {
+      ((Stmt.Function) declaration).slot = slot;
+      ((Stmt.Function) declaration).captured = captured;
+    } else {
+      ((Stmt.Class) declaration).slot = slot;
+      ((Stmt.Class) declaration).captured = captured;
+    }
+  }
+
+  private Local add(String name) {
+    Local local = new Local(function, function.next++);
+
+    function.size = Math.max(function.size, function.next);
+    scopes.peek().locals.put(name, local);
+
+    return local;
+  }
+
+  private Local declare(Token name) {
+    if (scopes.isEmpty()) {
+      return null;
+    }
+
+    Scope scope = scopes.peek();
+
+    if (scope.locals.containsKey(name.lexeme)) {
+      errors.error(name, "Variable with this name already declared in this scope.");
+
+      return null;
+    }
+
+    return add(name.lexeme);
+  }
+
+  // Declares the name of a var, fn or class statement, which learns its slot
+  // when the scope ends.
+  private void declare(Token name, Stmt declaration) {
+    Local local = declare(name);
+
+    if (local != null)
+      local.declaration = declaration;
+  }
+
+  private void define(Token name) {
+    if (scopes.isEmpty()) {
+      return;
+    }
+
+    scopes.peek().locals.get(name.lexeme).defined = true;
+  }
+
+  private Local defineSynthetic(String name) {
+    Local local = add(name);
+    local.defined = true;
+
+    return local;
+  }
+
+  private void resolveLocal(Expr expr, Token name) {
+    resolveLocal(expr, name.lexeme, false);
+  }
+
+  private void resolveLocal(Expr expr, String name, boolean receiver) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Local local = scopes.get(i).locals.get(name);
+
+      if (local == null)
+        continue;
+
+      Reference reference = new Reference(expr, receiver);
+
+      if (local.function == function) {
+        local.references.add(reference);
+      } else {
+        local.captured = true;
+        resolveReference(reference, FrameLayout.UPVALUE, upvalue(function, local));
+      }
+
+      return;
+    }
+  }
+
+  // The index of local among function's upvalues, adding it, and passing it
+  // down through every function in between, if it isn't there yet.
+  private static int upvalue(Function function, Local local) {
+    int index = function.upvalues.indexOf(local);
+
+    if (index >= 0)
+      return index;
+
+    if (function.enclosing != local.function)
+      upvalue(function.enclosing, local);
+
+    function.upvalues.add(local);
+
+    return function.upvalues.size() - 1;
+  }
+
+  private void resolveFunction(Stmt.Function declaration, FunctionType type) {
+    FunctionType enclosingFunction = currentFunction;
+    Function enclosingFrame = function;
+    currentFunction = type;
+    function = new Function(enclosingFrame);
+
+    beginScope();
+
+    // A method finds its receiver in the first slot of its own frame.
+    Local receiver = null;
+
+    if (type == FunctionType.METHOD)
+      receiver = defineSynthetic("this");
+
+    List<Local> parameters = new ArrayList<>();
+
+    for (Token param : declaration.params) {
+      declare(param);
+      define(param);
+
+      parameters.add(scopes.peek().locals.get(param.lexeme));
+    }
+
+    resolveAll(declaration.body);
+
+    endScope();
+
+    int[] slots = new int[parameters.size()];
+
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = parameters.get(i).frameSlot;
+    }
+
+    if (receiver != null)
+      parameters.add(receiver);
+
+    int count = function.upvalues.size();
+    int[] upvalueAccess = new int[count];
+    int[] upvalueIndex = new int[count];
+
+    for (int i = 0; i < count; i++) {
+      Local local = function.upvalues.get(i);
+
+      if (local.function == enclosingFrame) {
+        upvalueAccess[i] = FrameLayout.CELL;
+        upvalueIndex[i] = local.frameSlot;
+      } else {
+        upvalueAccess[i] = FrameLayout.UPVALUE;
+        upvalueIndex[i] = enclosingFrame.upvalues.indexOf(local);
+      }
+    }
+
+    int receiverSlot = receiver != null ? receiver.frameSlot : -1;
+
+    declaration.layout = new FrameLayout(function.size, receiverSlot, slots, cells(parameters),
+        upvalueAccess, upvalueIndex);
+
+    function = enclosingFrame;
+    currentFunction = enclosingFunction;
+  }
+
+  // The slots of the captured ones among locals.
+  private static int[] cells(List<Local> locals) {
+    int count = 0;
+
+    for (Local local : locals) {
+      if (local.captured)
+        count++;
+    }
+
+    int[] slots = new int[count];
+
+    for (Local local : locals) {
+      if (local.captured)
+        slots[--count] = local.frameSlot;
+    }
+
+    return slots;
+  }
+
+  // A block that declares nothing doesn't get a scope.
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    if (!declaresAnything(stmt.statements)) {
+      resolveAll(stmt.statements);
+
+      return null;
+    }
+
+    beginScope();
+
+    resolveAll(stmt.statements);
+
+    endScope();
+
+    return null;
+  }
+
+  private static boolean declaresAnything(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      if (statement instanceof Stmt.Var || statement instanceof Stmt.Function
+          || statement instanceof Stmt.Class)
+        return true;
+    }
+
+    return false;
+  }
+
+  public Void visitVarStmt(Stmt.Var stmt) {
+    declare(stmt.name, stmt);
+
+    if (stmt.initializer != null) {
+      resolve(stmt.initializer);
+    }
+
+    define(stmt.name);
+
+    return null;
+  }
+
+  public Void visitVariableExpr(Expr.Variable expr) {
+    if (!scopes.isEmpty() && scopes.peek().locals.containsKey(expr.name.lexeme)
+        && !scopes.peek().locals.get(expr.name.lexeme).defined) {
+      errors.error(expr.name, "Cannot read local variable in its own initializer.");
+    }
+
+    resolveLocal(expr, expr.name);
+
+    return null;
+  }
+
+  public Void visitAssignExpr(Expr.Assign expr) {
+    resolve(expr.value);
+
+    resolveLocal(expr, expr.name);
+
+    return null;
+  }
+
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    declare(stmt.name, stmt);
+    define(stmt.name);
+
+    resolveFunction(stmt, FunctionType.FUNCTION);
+
+    return null;
+  }
+
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    resolve(stmt.expression);
+
+    return null;
+  }
+
+  public Void visitIfStmt(Stmt.If stmt) {
+    resolve(stmt.condition);
+    resolve(stmt.thenBranch);
+
+    if (stmt.elseBranch != null) {
+      resolve(stmt.elseBranch);
+    }
+
+    return null;
+  }
+
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (currentFunction == FunctionType.NONE) {
+      errors.error(stmt.keyword, "Cannot return from top-level code.");
+    }
+
+    if (stmt.value != null) {
+      if (currentFunction == FunctionType.INITIALIZER) {
+        errors.error(stmt.keyword, "Cannot return a value from an initializer.");
+      }
+
+      resolve(stmt.value);
+    }
+
+    return null;
+  }
+
+  public Void visitWhileStmt(Stmt.While stmt) {
+    resolve(stmt.condition);
+    resolve(stmt.body);
+
+    return null;
+  }
+
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    resolve(expr.left);
+    resolve(expr.right);
+
+    return null;
+  }
+
+  public Void visitCallExpr(Expr.Call expr) {
+    resolve(expr.callee);
+
+    for (Expr argument : expr.arguments) {
+      resolve(argument);
+    }
+
+    return null;
+  }
+
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    resolve(expr.expression);
+
+    return null;
+  }
+
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    return null;
+  }
+
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    resolve(expr.left);
+    resolve(expr.right);
+
+    return null;
+  }
+
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    resolve(expr.right);
+
+    return null;
+  }
+
+  public Void visitClassStmt(Stmt.Class stmt) {
+    ClassType enclosingClass = currentClass;
+    currentClass = ClassType.CLASS;
+
+    declare(stmt.name, stmt);
+    define(stmt.name);
+
+    if (stmt.superclass != null) {
+      if (stmt.superclass.name.lexeme.equals(stmt.name.lexeme)) {
+        errors.error(stmt.name, "A class cannot inherit from itself.");
+      }
+
+      currentClass = ClassType.SUBCLASS;
+
+      resolve(stmt.superclass);
+
+      // Always kept in a cell, which the methods close over.
+      beginScope();
+
+      Local superclass = defineSynthetic("super");
+      superclass.captured = true;
+
+      stmt.superclassSlot = superclass.frameSlot;
+    }
+
+    for (Stmt.Function method : stmt.methods) {
+      FunctionType declaration = FunctionType.METHOD;
+
+      resolveFunction(method, declaration);
+    }
+
+    if (stmt.superclass != null) {
+      endScope();
+    }
+
+    currentClass = enclosingClass;
+
+    return null;
+  }
+
+  public Void visitGetExpr(Expr.Get expr) {
+    resolve(expr.object);
+
+    return null;
+  }
+
+  public Void visitSetExpr(Expr.Set expr) {
+    resolve(expr.value);
+    resolve(expr.object);
+
+    return null;
+  }
+
+  public Void visitThisExpr(Expr.This expr) {
+    if (currentClass == ClassType.NONE) {
+      errors.error(expr.keyword, "Cannot use 'this' outside of a class.");
+    } else {
+      resolveLocal(expr, expr.keyword);
+    }
+
+    return null;
+  }
+
+  public Void visitSuperExpr(Expr.Super expr) {
+    if (currentClass == ClassType.NONE) {
+      errors.error(expr.keyword, "Cannot use 'super' outside of a class.");
+    } else if (currentClass != ClassType.SUBCLASS) {
+      errors.error(expr.keyword, "Cannot use 'super' in a class with no superclass.");
+    } else {
+      resolveLocal(expr, expr.keyword);
+      resolveLocal(expr, "this", true);
+    }
+
+    return null;
+  }
+}
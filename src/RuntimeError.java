@@ -1,9 +1,9 @@
-public class RuntimeError extends RuntimeException {
-  final Token token;
-
-  RuntimeError(Token token, String message) {
-    super(message);
-
-    this.token = token;
-  }
-}
+public class RuntimeError extends RuntimeException {
+  final Token token;
+
+  RuntimeError(Token token, String message) {
+    super(message);
+
+    this.token = token;
+  }
+}
@@ -1,294 +1,330 @@
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-enum TokenType {
-  // Single-character tokens.
-  LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE,
-  COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR,
-
-  // One or two character tokens.
-  BANG, BANG_EQUAL,
-  EQUAL, EQUAL_EQUAL,
-  GREATER, GREATER_EQUAL,
-  LESS, LESS_EQUAL,
-
-  // Literals.
-  IDENTIFIER, STRING, NUMBER,
-
-  // Keywords.
-  AND, CLASS, ELSE, FALSE, FN, FOR, IF, NIL, OR,
-  RETURN, SUPER, THIS, TRUE, VAR, WHILE, EXTENDS,
-
-  EOF
-}
-
-class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
-  private int start = 0;
-  private int current = 0;
-  private int line = 1;
-  private static final Map<String, TokenType> keywords;
-
-  static {
-    keywords = new HashMap<>();
-    keywords.put("and", TokenType.AND);
-    keywords.put("class", TokenType.CLASS);
-    keywords.put("else", TokenType.ELSE);
-    keywords.put("false", TokenType.FALSE);
-    keywords.put("for", TokenType.FOR);
-    keywords.put("fn", TokenType.FN);
-    keywords.put("if", TokenType.IF);
-    keywords.put("nil", TokenType.NIL);
-    keywords.put("or", TokenType.OR);
-    keywords.put("return", TokenType.RETURN);
-    keywords.put("super", TokenType.SUPER);
-    keywords.put("this", TokenType.THIS);
-    keywords.put("true", TokenType.TRUE);
-    keywords.put("var", TokenType.VAR);
-    keywords.put("while", TokenType.WHILE);
-    keywords.put("extends", TokenType.EXTENDS);
-  }
-
-  Scanner(String source) {
-    this.source = source;
-  }
-
-  List<Token> scanTokens() {
-    while (current < source.length()) {
-      start = current;
-      scanToken();
-    }
-
-    tokens.add(new Token(TokenType.EOF, "", null, line));
-
-    return tokens;
-  }
-
-  private boolean isAtEnd() {
-    return current >= source.length();
-  }
-
-  private void scanToken() {
-    char c = advance();
-
-    switch (c) {
-      case '(':
-        addToken(TokenType.LEFT_PAREN);
-        break;
-      case ')':
-        addToken(TokenType.RIGHT_PAREN);
-        break;
-      case '{':
-        addToken(TokenType.LEFT_BRACE);
-        break;
-      case '}':
-        addToken(TokenType.RIGHT_BRACE);
-        break;
-      case ',':
-        addToken(TokenType.COMMA);
-        break;
-      case '.':
-        addToken(TokenType.DOT);
-        break;
-      case '-':
-        addToken(TokenType.MINUS);
-        break;
-      case '+':
-        addToken(TokenType.PLUS);
-        break;
-      case ';':
-        addToken(TokenType.SEMICOLON);
-        break;
-      case '*':
-        addToken(TokenType.STAR);
-        break;
-
-      case '!':
-        addToken(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
-        break;
-      case '=':
-        addToken(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
-        break;
-      case '<':
-        addToken(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
-        break;
-      case '>':
-        addToken(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
-        break;
-      case '/':
-        if (match('/')) {
-          lineComment();
-        } else if (match('*')) {
-          blockComment();
-        } else {
-          addToken(TokenType.SLASH);
-        }
-
-        break;
-
-      // Ignore whitespace.
-      case ' ':
-      case '\r':
-      case '\t':
-        break;
-
-      case '\n':
-        line++;
-        break;
-
-      case '"':
-        string();
-        break;
-
-      default:
-        if (isDigit(c)) {
-          number();
-        } else if (isAlpha(c)) {
-          identifier();
-        } else {
-          Lox.error(line, "Unexpected character.");
-        }
-
-        break;
-    }
-  }
-
-  private void lineComment() {
-    while (peek() != '\n' && !isAtEnd()) {
-      advance();
-    }
-  }
-
-  private void blockComment() {
-    while (peek() != '*' && peekNext() != '/' && !isAtEnd()) {
-      if (peek() == '\n') {
-        line++;
-      }
-
-      advance();
-    }
-
-    if (isAtEnd()) {
-      Lox.error(line, "Unterminated block comment.");
-
-      return;
-    }
-
-    // The closing */
-    advance();
-    advance();
-  }
-
-  private void identifier() {
-    while (isAlphaNumeric(peek())) {
-      advance();
-    }
-
-    String text = source.substring(start, current);
-
-    TokenType type = keywords.get(text);
-
-    if (type == null)
-      type = TokenType.IDENTIFIER;
-
-    addToken(type);
-  }
-
-  private boolean isAlphaNumeric(char c) {
-    return isAlpha(c) || isDigit(c);
-  }
-
-  private boolean isAlpha(char c) {
-    return (c >= 'a' && c <= 'z') ||
-        (c >= 'A' && c <= 'Z') ||
-        c == '_';
-  }
-
-  private void number() {
-    while (isDigit(peek())) {
-      advance();
-    }
-
-    if (peek() == '.' && isDigit(peekNext())) {
-      // Consume the "."
-      advance();
-
-      while (isDigit(peek()))
-        advance();
-    }
-
-    addToken(
-        TokenType.NUMBER,
-        Double.parseDouble(source.substring(start, current)));
-  }
-
-  private char peekNext() {
-    if (current + 1 >= source.length()) {
-      return '\0';
-    }
-
-    return source.charAt(current + 1);
-  }
-
-  private boolean isDigit(char c) {
-    return c >= '0' && c <= '9';
-  }
-
-  private void string() {
-    while (peek() != '"' && !isAtEnd()) {
-      if (peek() == '\n')
-        line++;
-
-      advance();
-    }
-
-    if (isAtEnd()) {
-      Lox.error(line, "Unterminated string.");
-      return;
-    }
-
-    // The closing quote
-    advance();
-
-    String value = source.substring(start + 1, current - 1);
-
-    addToken(TokenType.STRING, value);
-  }
-
-  private char peek() {
-    if (isAtEnd()) {
-      return '\0';
-    }
-
-    return source.charAt(current);
-  }
-
-  private char advance() {
-    return source.charAt(current++);
-  }
-
-  private boolean match(char expected) {
-    if (isAtEnd())
-      return false;
-    if (source.charAt(current) != expected)
-      return false;
-
-    current++;
-
-    return true;
-
-  }
-
-  private void addToken(TokenType type) {
-    addToken(type, null);
-  }
-
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-
-    tokens.add(new Token(type, text, literal, line));
-  }
-}
+enum TokenType {
+  // Single-character tokens.
+  LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE,
+  COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR,
+
+  // One or two character tokens.
+  BANG, BANG_EQUAL,
+  EQUAL, EQUAL_EQUAL,
+  GREATER, GREATER_EQUAL,
+  LESS, LESS_EQUAL,
+
+  // Literals.
+  IDENTIFIER, STRING, NUMBER,
+
+  // Keywords.
+  AND, CLASS, ELSE, FALSE, FN, FOR, IF, NIL, OR,
+  RETURN, SUPER, THIS, TRUE, VAR, WHILE, EXTENDS,
+
+  EOF
+}
+
+class Scanner {
+  private final String source;
+  private final ErrorReporter errors;
+  private final Tokens tokens;
+  private int start = 0;
+  private int current = 0;
+  private int line = 1;
+
+  Scanner(String source) {
+    this(source, Lox.errors);
+  }
+
+  Scanner(String source, ErrorReporter errors) {
+    this.source = source;
+    this.errors = errors;
+    this.tokens = new Tokens(source);
+  }
+
+  Tokens scanTokens() {
+    while (current < source.length()) {
+      start = current;
+      scanToken();
+    }
+
+    tokens.add(TokenType.EOF, current, current, line);
+
+    return tokens;
+  }
+
+  private boolean isAtEnd() {
+    return current >= source.length();
+  }
+
+  private void scanToken() {
+    char c = advance();
+
+    switch (c) {
+      case '(':
+        addToken(TokenType.LEFT_PAREN);
+        break;
+      case ')':
+        addToken(TokenType.RIGHT_PAREN);
+        break;
+      case '{':
+        addToken(TokenType.LEFT_BRACE);
+        break;
+      case '}':
+        addToken(TokenType.RIGHT_BRACE);
+        break;
+      case ',':
+        addToken(TokenType.COMMA);
+        break;
+      case '.':
+        addToken(TokenType.DOT);
+        break;
+      case '-':
+        addToken(TokenType.MINUS);
+        break;
+      case '+':
+        addToken(TokenType.PLUS);
+        break;
+      case ';':
+        addToken(TokenType.SEMICOLON);
+        break;
+      case '*':
+        addToken(TokenType.STAR);
+        break;
+
+      case '!':
+        addToken(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
+        break;
+      case '=':
+        addToken(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
+        break;
+      case '<':
+        addToken(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
+        break;
+      case '>':
+        addToken(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
+        break;
+      case '/':
+        if (match('/')) {
+          lineComment();
+        } else if (match('*')) {
+          blockComment();
+        } else {
+          addToken(TokenType.SLASH);
+        }
+
+        break;
+
+      // Ignore whitespace.
+      case ' ':
+      case '\r':
+      case '\t':
+        break;
+
+      case '\n':
+        line++;
+        break;
+
+      case '"':
+        string();
+        break;
+
+      default:
+        if (isDigit(c)) {
+          number();
+        } else if (isAlpha(c)) {
+          identifier();
+        } else {
+          errors.error(line, "Unexpected character.");
+        }
+
+        break;
+    }
+  }
+
+  private void lineComment() {
+    while (peek() != '\n' && !isAtEnd()) {
+      advance();
+    }
+  }
+
+  private void blockComment() {
+    while (peek() != '*' && peekNext() != '/' && !isAtEnd()) {
+      if (peek() == '\n') {
+        line++;
+      }
+
+      advance();
+    }
+
+    if (isAtEnd()) {
+      errors.error(line, "Unterminated block comment.");
+
+      return;
+    }
+
+    // The closing */
+    advance();
+    advance();
+  }
+
+  private void identifier() {
+    while (isAlphaNumeric(peek())) {
+      advance();
+    }
+
+    addToken(identifierType());
+  }
+
+  // Tells keywords from identifiers by walking the name's characters in
+  // place, so no String is made for it.
+  private TokenType identifierType() {
+    switch (source.charAt(start)) {
+      case 'a':
+        return checkKeyword(1, "nd", TokenType.AND);
+      case 'c':
+        return checkKeyword(1, "lass", TokenType.CLASS);
+      case 'e':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'l':
+              return checkKeyword(2, "se", TokenType.ELSE);
+            case 'x':
+              return checkKeyword(2, "tends", TokenType.EXTENDS);
+          }
+        }
+
+        break;
+      case 'f':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'a':
+              return checkKeyword(2, "lse", TokenType.FALSE);
+            case 'n':
+              return checkKeyword(2, "", TokenType.FN);
+            case 'o':
+              return checkKeyword(2, "r", TokenType.FOR);
+          }
+        }
+
+        break;
+      case 'i':
+        return checkKeyword(1, "f", TokenType.IF);
+      case 'n':
+        return checkKeyword(1, "il", TokenType.NIL);
+      case 'o':
+        return checkKeyword(1, "r", TokenType.OR);
+      case 'r':
+        return checkKeyword(1, "eturn", TokenType.RETURN);
+      case 's':
+        return checkKeyword(1, "uper", TokenType.SUPER);
+      case 't':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'h':
+              return checkKeyword(2, "is", TokenType.THIS);
+            case 'r':
+              return checkKeyword(2, "ue", TokenType.TRUE);
+          }
+        }
+
+        break;
+      case 'v':
+        return checkKeyword(1, "ar", TokenType.VAR);
+      case 'w':
+        return checkKeyword(1, "hile", TokenType.WHILE);
+    }
+
+    return TokenType.IDENTIFIER;
+  }
+
+  private TokenType checkKeyword(int offset, String rest, TokenType type) {
+    if (current - start == offset + rest.length()
+        && source.regionMatches(start + offset, rest, 0, rest.length()))
+      return type;
+
+    return TokenType.IDENTIFIER;
+  }
+
+  private boolean isAlphaNumeric(char c) {
+    return isAlpha(c) || isDigit(c);
+  }
+
+  private boolean isAlpha(char c) {
+    return (c >= 'a' && c <= 'z') ||
+        (c >= 'A' && c <= 'Z') ||
+        c == '_';
+  }
+
+  private void number() {
+    while (isDigit(peek())) {
+      advance();
+    }
+
+    if (peek() == '.' && isDigit(peekNext())) {
+      // Consume the "."
+      advance();
+
+      while (isDigit(peek()))
+        advance();
+    }
+
+    addToken(TokenType.NUMBER);
+  }
+
+  private char peekNext() {
+    if (current + 1 >= source.length()) {
+      return '\0';
+    }
+
+    return source.charAt(current + 1);
+  }
+
+  private boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private void string() {
+    while (peek() != '"' && !isAtEnd()) {
+      if (peek() == '\n')
+        line++;
+
+      advance();
+    }
+
+    if (isAtEnd()) {
+      errors.error(line, "Unterminated string.");
+      return;
+    }
+
+    // The closing quote
+    advance();
+
+    addToken(TokenType.STRING);
+  }
+
+  private char peek() {
+    if (isAtEnd()) {
+      return '\0';
+    }
+
+    return source.charAt(current);
+  }
+
+  private char advance() {
+    return source.charAt(current++);
+  }
+
+  private boolean match(char expected) {
+    if (isAtEnd())
+      return false;
+    if (source.charAt(current) != expected)
+      return false;
+
+    current++;
+
+    return true;
+
+  }
+
+  // Tokens only records where the token is; its lexeme and literal are
+  // made if the parser asks for it.
+  private void addToken(TokenType type) {
+    tokens.add(type, start, current, line);
+  }
+}
@@ -0,0 +1,282 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Scripts that were already scanned, parsed, resolved and optimized, kept as
+// FlatAst files in a directory so that running one again can skip the front
+// end. A script's file is named by a hash of its source and VERSION, so an
+// edited script or a newer interpreter just misses the cache. Files that
+// can't be read are treated as misses too, and failing to write one only
+// costs the next run its head start.
+//
+// A file is MAGIC and VERSION, then the program's root and frame size, its
+// strings, constants, tokens, layouts, the number of property caches and
+// last the code, which is read straight out of the mapped file.
+final class ScriptCache {
+  private static final int MAGIC = 0x4c4f5843; // "LOXC".
+  // Bump whenever the encoding, the front end or TokenType changes.
+  private static final int VERSION = 1;
+
+  // Constant tags.
+  private static final byte NIL = 0;
+  private static final byte TRUE = 1;
+  private static final byte FALSE = 2;
+  private static final byte NUMBER = 3;
+  private static final byte STRING = 4;
+
+  private static final TokenType[] TYPES = TokenType.values();
+
+  private final Path directory;
+
+  ScriptCache(Path directory) {
+    this.directory = directory;
+  }
+
+  // The cached program for source, or null if there isn't a usable one.
+  FlatAst load(String source) {
+    Path path = path(source);
+
+    if (!Files.isRegularFile(path))
+      return null;
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+        return null;
+
+      return read(buffer);
+    } catch (IOException | RuntimeException error) {
+      // Damaged, most likely cut short.
+      return null;
+    }
+  }
+
+  void store(String source, FlatAst program) {
+    Path temporary = null;
+
+    try {
+      Files.createDirectories(directory);
+
+      // Written aside and moved into place, so that a script started while
+      // another run is writing its file never maps half of it.
+      temporary = Files.createTempFile(directory, "script", ".tmp");
+
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        write(out, program);
+      }
+
+      Files.move(temporary, path(source), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException error) {
+      // Run without a cache.
+      if (temporary != null)
+        temporary.toFile().delete();
+    }
+  }
+
+  private Path path(String source) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+      digest.update(Integer.toString(VERSION).getBytes(StandardCharsets.UTF_8));
+      digest.update(source.getBytes(StandardCharsets.UTF_8));
+
+      StringBuilder name = new StringBuilder();
+
+      for (byte b : digest.digest()) {
+        name.append(Character.forDigit((b >> 4) & 0xf, 16));
+        name.append(Character.forDigit(b & 0xf, 16));
+      }
+
+      return directory.resolve(name.append(".loxc").toString());
+    } catch (NoSuchAlgorithmException error) {
+      // Every Java platform has SHA-256.
+      throw new IllegalStateException(error);
+    }
+  }
+
+  private static void write(DataOutputStream out, FlatAst program) throws IOException {
+    out.writeInt(program.root);
+    out.writeInt(program.frameSize);
+
+    // Lexemes repeat a lot, once per use of a name, so the strings are
+    // written once each and referred to by index.
+    Map<String, Integer> strings = new HashMap<>();
+
+    for (Object constant : program.constants) {
+      if (constant instanceof String)
+        string(strings, (String) constant);
+    }
+
+    for (Token token : program.tokens) {
+      string(strings, token.lexeme);
+
+      if (token.literal instanceof String)
+        string(strings, (String) token.literal);
+    }
+
+    String[] table = new String[strings.size()];
+
+    for (Map.Entry<String, Integer> entry : strings.entrySet()) {
+      table[entry.getValue()] = entry.getKey();
+    }
+
+    out.writeInt(table.length);
+
+    for (String string : table) {
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    out.writeInt(program.constants.length);
+
+    for (Object constant : program.constants) {
+      writeConstant(out, strings, constant);
+    }
+
+    out.writeInt(program.tokens.length);
+
+    for (Token token : program.tokens) {
+      out.writeByte(token.type.ordinal());
+      out.writeInt(strings.get(token.lexeme));
+      writeConstant(out, strings, token.literal);
+      out.writeInt(token.line);
+    }
+
+    out.writeInt(program.layouts.length);
+
+    for (FrameLayout layout : program.layouts) {
+      out.writeInt(layout.frameSize);
+      out.writeInt(layout.receiver);
+      writeInts(out, layout.parameters);
+      writeInts(out, layout.cells);
+      writeInts(out, layout.upvalueAccess);
+      writeInts(out, layout.upvalueIndex);
+    }
+
+    out.writeInt(program.caches);
+    writeInts(out, program.code);
+  }
+
+  private static void string(Map<String, Integer> strings, String string) {
+    if (!strings.containsKey(string))
+      strings.put(string, strings.size());
+  }
+
+  // Literals are the only constants the parser and the Optimizer make.
+  private static void writeConstant(DataOutputStream out, Map<String, Integer> strings,
+      Object constant) throws IOException {
+    if (constant == null) {
+      out.writeByte(NIL);
+    } else if (constant instanceof Boolean) {
+      out.writeByte((Boolean) constant ? TRUE : FALSE);
+    } else if (constant instanceof Double) {
+      out.writeByte(NUMBER);
+      out.writeDouble((Double) constant);
+    } else if (constant instanceof String) {
+      out.writeByte(STRING);
+      out.writeInt(strings.get(constant));
+    } else {
+      throw new IllegalStateException("Unknown constant " + constant + ".");
+    }
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    out.writeInt(values.length);
+
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  private static FlatAst read(ByteBuffer buffer) {
+    int root = buffer.getInt();
+    int frameSize = buffer.getInt();
+    String[] strings = new String[buffer.getInt()];
+
+    for (int i = 0; i < strings.length; i++) {
+      byte[] bytes = new byte[buffer.getInt()];
+
+      buffer.get(bytes);
+      strings[i] = new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    Object[] constants = new Object[buffer.getInt()];
+
+    for (int i = 0; i < constants.length; i++) {
+      constants[i] = readConstant(buffer, strings);
+    }
+
+    Token[] tokens = new Token[buffer.getInt()];
+
+    for (int i = 0; i < tokens.length; i++) {
+      TokenType type = TYPES[buffer.get()];
+      String lexeme = strings[buffer.getInt()];
+      Object literal = readConstant(buffer, strings);
+
+      tokens[i] = new Token(type, lexeme, literal, buffer.getInt());
+    }
+
+    FrameLayout[] layouts = new FrameLayout[buffer.getInt()];
+
+    for (int i = 0; i < layouts.length; i++) {
+      int layoutFrameSize = buffer.getInt();
+      int receiver = buffer.getInt();
+
+      layouts[i] = new FrameLayout(layoutFrameSize, receiver, readInts(buffer), readInts(buffer),
+          readInts(buffer), readInts(buffer));
+    }
+
+    int caches = buffer.getInt();
+
+    return new FlatAst(readInts(buffer), root, frameSize, constants, tokens, layouts, caches);
+  }
+
+  private static Object readConstant(ByteBuffer buffer, String[] strings) {
+    byte tag = buffer.get();
+
+    switch (tag) {
+      case NIL:
+        return null;
+      case TRUE:
+        return true;
+      case FALSE:
+        return false;
+      case NUMBER:
+        return buffer.getDouble();
+      case STRING:
+        return strings[buffer.getInt()];
+
+      default:
+        throw new IllegalStateException("Unknown constant tag " + tag + ".");
+    }
+  }
+
+  private static int[] readInts(ByteBuffer buffer) {
+    int[] values = new int[buffer.getInt()];
+    IntBuffer ints = buffer.asIntBuffer();
+
+    ints.get(values);
+    buffer.position(buffer.position() + values.length * Integer.BYTES);
+
+    return values;
+  }
+}
@@ -0,0 +1,44 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// Describes the field layout shared by every instance that had the same
+// fields added in the same order. Each class has its own empty root shape,
+// so a shape also identifies the class and an inline cache can guard on the
+// shape alone. Adding a field moves an instance along a transition to a child
+// shape, which is created once and then shared.
+//
+// Shapes belong to the classes of one interpreter, so only the thread
+// running it ever sees them and nothing here is synchronized.
+final class Shape {
+  final LoxClass loxClass;
+  final int size;
+  private final Map<String, Integer> slots;
+  private final Map<String, Shape> transitions = new HashMap<>();
+
+  Shape(LoxClass loxClass) {
+    this.loxClass = loxClass;
+    this.size = 0;
+    this.slots = new HashMap<>();
+  }
+
+  private Shape(Shape parent, String name) {
+    this.loxClass = parent.loxClass;
+    this.size = parent.size + 1;
+    this.slots = new HashMap<>(parent.slots);
+    this.slots.put(name, parent.size);
+  }
+
+  // Returns -1 when the shape has no field with that name.
+  int slot(String name) {
+    Integer slot = slots.get(name);
+
+    if (slot == null)
+      return -1;
+
+    return slot;
+  }
+
+  Shape with(String name) {
+    return transitions.computeIfAbsent(name, key -> new Shape(this, key));
+  }
+}
@@ -1,145 +1,182 @@
-import java.util.List;
-
-abstract class Stmt {
-  interface Visitor<R> {
-    R visitBlockStmt(Block stmt);
-
-    R visitClassStmt(Class stmt);
-
-    R visitExpressionStmt(Expression stmt);
-
-    R visitFunctionStmt(Function stmt);
-
-    R visitIfStmt(If stmt);
-
-    R visitReturnStmt(Return stmt);
-
-    R visitVarStmt(Var stmt);
-
-    R visitWhileStmt(While stmt);
-  }
-
-  static class Block extends Stmt {
-    Block(List<Stmt> statements) {
-      this.statements = statements;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitBlockStmt(this);
-    }
-
-    final List<Stmt> statements;
-  }
-
-  static class Class extends Stmt {
-    Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
-      this.name = name;
-      this.superclass = superclass;
-      this.methods = methods;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitClassStmt(this);
-    }
-
-    final Token name;
-    final Expr.Variable superclass;
-    final List<Stmt.Function> methods;
-  }
-
-  static class Expression extends Stmt {
-    Expression(Expr expression) {
-      this.expression = expression;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitExpressionStmt(this);
-    }
-
-    final Expr expression;
-  }
-
-  static class Function extends Stmt {
-    Function(Token name, List<Token> params, List<Stmt> body) {
-      this.name = name;
-      this.params = params;
-      this.body = body;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitFunctionStmt(this);
-    }
-
-    final Token name;
-    final List<Token> params;
-    final List<Stmt> body;
-  }
-
-  static class If extends Stmt {
-    If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
-      this.condition = condition;
-      this.thenBranch = thenBranch;
-      this.elseBranch = elseBranch;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitIfStmt(this);
-    }
-
-    final Expr condition;
-    final Stmt thenBranch;
-    final Stmt elseBranch;
-  }
-
-  static class Return extends Stmt {
-    Return(Token keyword, Expr value) {
-      this.keyword = keyword;
-      this.value = value;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitReturnStmt(this);
-    }
-
-    final Token keyword;
-    final Expr value;
-  }
-
-  static class Var extends Stmt {
-    Var(Token name, Expr initializer) {
-      this.name = name;
-      this.initializer = initializer;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitVarStmt(this);
-    }
-
-    final Token name;
-    final Expr initializer;
-  }
-
-  static class While extends Stmt {
-    While(Expr condition, Stmt body) {
-      this.condition = condition;
-      this.body = body;
-    }
-
-    @Override
-    <R> R accept(Visitor<R> visitor) {
-      return visitor.visitWhileStmt(this);
-    }
-
-    final Expr condition;
-    final Stmt body;
-  }
-
-  abstract <R> R accept(Visitor<R> visitor);
-}
+import java.util.List;
+
+abstract sealed class Stmt {
+  // The kind of each node class, to switch on.
+  static final int BLOCK = 0;
+  static final int CLASS = 1;
+  static final int EXPRESSION = 2;
+  static final int FUNCTION = 3;
+  static final int IF = 4;
+  static final int RETURN = 5;
+  static final int VAR = 6;
+  static final int WHILE = 7;
+
+  interface Visitor<R> {
+    R visitBlockStmt(Block stmt);
+
+    R visitClassStmt(Class stmt);
+
+    R visitExpressionStmt(Expression stmt);
+
+    R visitFunctionStmt(Function stmt);
+
+    R visitIfStmt(If stmt);
+
+    R visitReturnStmt(Return stmt);
+
+    R visitVarStmt(Var stmt);
+
+    R visitWhileStmt(While stmt);
+  }
+
+  // Which of the classes below this node is, as one of the constants above.
+  final int kind;
+
+  private Stmt(int kind) {
+    this.kind = kind;
+  }
+
+  static final class Block extends Stmt {
+    Block(List<Stmt> statements) {
+      super(BLOCK);
+      this.statements = statements;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitBlockStmt(this);
+    }
+
+    final List<Stmt> statements;
+  }
+
+  static final class Class extends Stmt {
+    Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
+      super(CLASS);
+      this.name = name;
+      this.superclass = superclass;
+      this.methods = methods;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitClassStmt(this);
+    }
+
+    final Token name;
+    final Expr.Variable superclass;
+    final List<Stmt.Function> methods;
+
+    int slot = FrameLayout.GLOBAL;
+    boolean captured;
+    int superclassSlot = -1;
+  }
+
+  static final class Expression extends Stmt {
+    Expression(Expr expression) {
+      super(EXPRESSION);
+      this.expression = expression;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitExpressionStmt(this);
+    }
+
+    final Expr expression;
+  }
+
+  static final class Function extends Stmt {
+    Function(Token name, List<Token> params, List<Stmt> body) {
+      super(FUNCTION);
+      this.name = name;
+      this.params = params;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitFunctionStmt(this);
+    }
+
+    final Token name;
+    final List<Token> params;
+    final List<Stmt> body;
+
+    int slot = FrameLayout.GLOBAL;
+    boolean captured;
+    FrameLayout layout;
+    JitCompiler.Profile profile;
+  }
+
+  static final class If extends Stmt {
+    If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+      super(IF);
+      this.condition = condition;
+      this.thenBranch = thenBranch;
+      this.elseBranch = elseBranch;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIfStmt(this);
+    }
+
+    final Expr condition;
+    final Stmt thenBranch;
+    final Stmt elseBranch;
+  }
+
+  static final class Return extends Stmt {
+    Return(Token keyword, Expr value) {
+      super(RETURN);
+      this.keyword = keyword;
+      this.value = value;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitReturnStmt(this);
+    }
+
+    final Token keyword;
+    final Expr value;
+  }
+
+  static final class Var extends Stmt {
+    Var(Token name, Expr initializer) {
+      super(VAR);
+      this.name = name;
+      this.initializer = initializer;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitVarStmt(this);
+    }
+
+    final Token name;
+    final Expr initializer;
+
+    int slot = FrameLayout.GLOBAL;
+    boolean captured;
+  }
+
+  static final class While extends Stmt {
+    While(Expr condition, Stmt body) {
+      super(WHILE);
+      this.condition = condition;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitWhileStmt(this);
+    }
+
+    final Expr condition;
+    final Stmt body;
+  }
+
+  abstract <R> R accept(Visitor<R> visitor);
+}
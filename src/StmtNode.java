@@ -0,0 +1,296 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// Executable statement nodes built once by NodeCompiler.
+abstract class StmtNode {
+  abstract Completion execute(Environment environment);
+
+  static Completion executeAll(StmtNode[] statements, Environment environment) {
+    for (StmtNode statement : statements) {
+      Completion completion = statement.execute(environment);
+
+      if (completion != Completion.NORMAL)
+        return completion;
+    }
+
+    return Completion.NORMAL;
+  }
+
+  // Gives a captured local its cell, before creating any closure that
+  // refers to it.
+  static void declare(Environment environment, int slot, boolean captured) {
+    if (captured)
+      environment.defineCell(slot, null);
+  }
+
+  // Defines a declaration where the Resolver put it.
+  static void define(Environment environment, Environment globals, int slot, boolean captured,
+      String name, Object value) {
+    if (slot == FrameLayout.GLOBAL)
+      globals.define(name, value);
+    else if (captured)
+      environment.assignAt(FrameLayout.CELL, slot, value);
+    else
+      environment.defineLocal(slot, value);
+  }
+
+  static final class Expression extends StmtNode implements ExprNode.Parent {
+    private ExprNode expression;
+
+    Expression(ExprNode expression) {
+      this.expression = ExprNode.adopt(this, expression);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (expression == child)
+        expression = replacement;
+    }
+
+    Completion execute(Environment environment) {
+      expression.evaluateVoid(environment);
+
+      return Completion.NORMAL;
+    }
+  }
+
+  static final class Var extends StmtNode implements ExprNode.Parent {
+    private final String name;
+    private final Environment globals;
+    private final int slot;
+    private final boolean captured;
+    private ExprNode initializer;
+    // Set once the initializer produces something other than a number, after
+    // which values are no longer stored unboxed. Cells and globals always
+    // hold them boxed.
+    private boolean boxed;
+
+    Var(String name, Environment globals, int slot, boolean captured, ExprNode initializer) {
+      this.name = name;
+      this.globals = globals;
+      this.slot = slot;
+      this.captured = captured;
+      this.boxed = captured || slot == FrameLayout.GLOBAL;
+      this.initializer = ExprNode.adopt(this, initializer);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (initializer == child)
+        initializer = replacement;
+    }
+
+    Completion execute(Environment environment) {
+      if (initializer == null) {
+        store(environment, null);
+
+        return Completion.NORMAL;
+      }
+
+      if (!boxed) {
+        try {
+          double value = initializer.evaluateDouble(environment);
+
+          environment.assignNumber(slot, value);
+
+          return Completion.NORMAL;
+        } catch (ExprNode.UnexpectedType error) {
+          boxed = true;
+          store(environment, error.value);
+
+          return Completion.NORMAL;
+        }
+      }
+
+      store(environment, initializer.evaluate(environment));
+
+      return Completion.NORMAL;
+    }
+
+    private void store(Environment environment, Object value) {
+      declare(environment, slot, captured);
+      define(environment, globals, slot, captured, name, value);
+    }
+  }
+
+  // Blocks need nothing at runtime: their locals already have frame slots.
+  static final class Block extends StmtNode {
+    private final StmtNode[] statements;
+
+    Block(StmtNode[] statements) {
+      this.statements = statements;
+    }
+
+    Completion execute(Environment environment) {
+      return executeAll(statements, environment);
+    }
+  }
+
+  static final class If extends StmtNode implements ExprNode.Parent {
+    private ExprNode condition;
+    private final StmtNode thenBranch;
+    private final StmtNode elseBranch;
+
+    If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+      this.condition = ExprNode.adopt(this, condition);
+      this.thenBranch = thenBranch;
+      this.elseBranch = elseBranch;
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (condition == child)
+        condition = replacement;
+    }
+
+    Completion execute(Environment environment) {
+      if (Interpreter.isTruthy(condition.evaluate(environment)))
+        return thenBranch.execute(environment);
+      else if (elseBranch != null)
+        return elseBranch.execute(environment);
+
+      return Completion.NORMAL;
+    }
+  }
+
+  static final class While extends StmtNode implements ExprNode.Parent {
+    private ExprNode condition;
+    private final StmtNode body;
+
+    While(ExprNode condition, StmtNode body) {
+      this.condition = ExprNode.adopt(this, condition);
+      this.body = body;
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (condition == child)
+        condition = replacement;
+    }
+
+    Completion execute(Environment environment) {
+      while (Interpreter.isTruthy(condition.evaluate(environment))) {
+        Completion completion = body.execute(environment);
+
+        if (completion != Completion.NORMAL)
+          return completion;
+      }
+
+      return Completion.NORMAL;
+    }
+  }
+
+  static final class Return extends StmtNode implements ExprNode.Parent {
+    private final Interpreter interpreter;
+    private ExprNode value;
+
+    Return(Interpreter interpreter, ExprNode value) {
+      this.interpreter = interpreter;
+      this.value = ExprNode.adopt(this, value);
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (value == child)
+        value = replacement;
+    }
+
+    Completion execute(Environment environment) {
+      if (value == null)
+        return interpreter.returnWith(null);
+
+      return value.evaluateReturn(interpreter, environment);
+    }
+  }
+
+  static final class Function extends StmtNode {
+    private final Stmt.Function declaration;
+    private final StmtNode[] body;
+    private final FrameLayout layout;
+    private final Environment globals;
+    private final int slot;
+    private final boolean captured;
+    private final JitCompiler.Profile profile = new JitCompiler.Profile();
+
+    Function(Stmt.Function declaration, StmtNode[] body, FrameLayout layout, Environment globals,
+        int slot, boolean captured) {
+      this.declaration = declaration;
+      this.body = body;
+      this.layout = layout;
+      this.globals = globals;
+      this.slot = slot;
+      this.captured = captured;
+    }
+
+    // Creates a closure over the cells it uses from frame.
+    LoxFunction instantiate(Environment frame, FunctionType type) {
+      return new LoxFunction(declaration, frame.capture(layout), layout, type, body, profile);
+    }
+
+    Completion execute(Environment environment) {
+      declare(environment, slot, captured);
+
+      LoxFunction function = instantiate(environment, FunctionType.FUNCTION);
+
+      define(environment, globals, slot, captured, declaration.name.lexeme, function);
+
+      return Completion.NORMAL;
+    }
+  }
+
+  static final class Class extends StmtNode implements ExprNode.Parent {
+    private final Token name;
+    private final Environment globals;
+    private final int slot;
+    private final boolean captured;
+    private ExprNode superclass;
+    private final Token superclassName;
+    // Frame slot of the cell the methods find the superclass in.
+    private final int superclassSlot;
+    private final Function[] methods;
+
+    Class(Token name, Environment globals, int slot, boolean captured, ExprNode superclass,
+        Token superclassName, int superclassSlot, Function[] methods) {
+      this.name = name;
+      this.globals = globals;
+      this.slot = slot;
+      this.captured = captured;
+      this.superclass = ExprNode.adopt(this, superclass);
+      this.superclassName = superclassName;
+      this.superclassSlot = superclassSlot;
+      this.methods = methods;
+    }
+
+    public void replaceChild(ExprNode child, ExprNode replacement) {
+      if (superclass == child)
+        superclass = replacement;
+    }
+
+    Completion execute(Environment environment) {
+      Object superclassValue = null;
+
+      if (superclass != null) {
+        superclassValue = superclass.evaluate(environment);
+
+        if (!(superclassValue instanceof LoxClass)) {
+          throw new RuntimeError(superclassName, "Superclass must be a class.");
+        }
+
+        environment.defineCell(superclassSlot, superclassValue);
+      }
+
+      declare(environment, slot, captured);
+
+      Map<String, LoxFunction> functions = new HashMap<>();
+
+      for (Function method : methods) {
+        String methodName = method.declaration.name.lexeme;
+
+        FunctionType type = methodName.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+
+        functions.put(methodName, method.instantiate(environment, type));
+      }
+
+      LoxClass loxClass = new LoxClass(name.lexeme, (LoxClass) superclassValue, functions);
+
+      define(environment, globals, slot, captured, name.lexeme, loxClass);
+
+      return Completion.NORMAL;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+import java.util.Arrays;
+
+// The scanner's output: the type, position and line of each token in
+// parallel arrays pointing into the source, rather than a Token object with
+// its own lexeme per token. The parser only turns the tokens it keeps into
+// Tokens, which is when their lexemes and literals are made.
+final class Tokens {
+  private static final TokenType[] TYPES = TokenType.values();
+  // The powers of ten a number with up to 15 digits can be divided by
+  // exactly.
+  private static final double[] POWERS_OF_TEN = new double[16];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private final String source;
+  private final Names names = new Names();
+  private byte[] types;
+  private int[] starts;
+  private int[] lengths;
+  private int[] lines;
+  private int count = 0;
+
+  Tokens(String source) {
+    this.source = source;
+
+    // About one token per four characters of code.
+    int capacity = Math.max(16, source.length() / 4);
+
+    types = new byte[capacity];
+    starts = new int[capacity];
+    lengths = new int[capacity];
+    lines = new int[capacity];
+  }
+
+  void add(TokenType type, int start, int end, int line) {
+    if (count == types.length) {
+      int capacity = count * 2;
+
+      types = Arrays.copyOf(types, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      lines = Arrays.copyOf(lines, capacity);
+    }
+
+    types[count] = (byte) type.ordinal();
+    starts[count] = start;
+    lengths[count] = end - start;
+    lines[count] = line;
+    count++;
+  }
+
+  int size() {
+    return count;
+  }
+
+  TokenType type(int index) {
+    return TYPES[types[index]];
+  }
+
+  boolean contains(TokenType type) {
+    byte ordinal = (byte) type.ordinal();
+
+    for (int i = 0; i < count; i++) {
+      if (types[i] == ordinal)
+        return true;
+    }
+
+    return false;
+  }
+
+  // A new Token for the token at index. Identifiers and keywords come from
+  // the table, so every occurrence of one shares a single String.
+  Token token(int index) {
+    TokenType type = type(index);
+    int start = starts[index];
+    int end = start + lengths[index];
+    String lexeme;
+    Object literal = null;
+
+    switch (type) {
+      case IDENTIFIER:
+        lexeme = names.name(source, start, end);
+        break;
+      case NUMBER:
+        lexeme = source.substring(start, end);
+        literal = number(start, end);
+        break;
+      case STRING:
+        lexeme = source.substring(start, end);
+        literal = source.substring(start + 1, end - 1);
+        break;
+
+      default:
+        lexeme = isKeyword(type) ? names.name(source, start, end) : source.substring(start, end);
+        break;
+    }
+
+    return new Token(type, lexeme, literal, lines[index]);
+  }
+
+  private static boolean isKeyword(TokenType type) {
+    return type.compareTo(TokenType.AND) >= 0 && type != TokenType.EOF;
+  }
+
+  // Reads the digits in place. With at most 15 of them both the digits and
+  // the power of ten they are divided by are exact doubles, so the one
+  // division rounds the same as parseDouble. Longer numbers go to it.
+  private double number(int start, int end) {
+    long digits = 0;
+    int count = 0;
+    int decimals = 0;
+
+    for (int i = start; i < end; i++) {
+      char c = source.charAt(i);
+
+      if (c == '.') {
+        decimals = end - i - 1;
+        continue;
+      }
+
+      if (++count > 15)
+        return Double.parseDouble(source.substring(start, end));
+
+      digits = digits * 10 + (c - '0');
+    }
+
+    return digits / POWERS_OF_TEN[decimals];
+  }
+
+  // Identifiers and keywords by their text, found straight from a region of
+  // the source so that looking one up allocates nothing unless it is new.
+  private static final class Names {
+    private String[] keys = new String[64];
+    private int count = 0;
+
+    String name(String source, int start, int end) {
+      int slot = find(source, start, end);
+
+      if (keys[slot] != null)
+        return keys[slot];
+
+      String name = source.substring(start, end);
+
+      keys[slot] = name;
+      count++;
+
+      // Kept at most half full.
+      if (count * 2 > keys.length)
+        grow();
+
+      return name;
+    }
+
+    // The slot holding the name, or the empty slot it would go in.
+    private int find(String source, int start, int end) {
+      int length = end - start;
+      int hash = 0;
+
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + source.charAt(i);
+      }
+
+      int mask = keys.length - 1;
+      int slot = (hash ^ (hash >>> 16)) & mask;
+
+      for (;;) {
+        String key = keys[slot];
+
+        if (key == null
+            || (key.length() == length && source.regionMatches(start, key, 0, length)))
+          return slot;
+
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    private void grow() {
+      String[] oldKeys = keys;
+
+      keys = new String[oldKeys.length * 2];
+
+      for (String key : oldKeys) {
+        if (key != null)
+          keys[find(key, 0, key.length())] = key;
+      }
+    }
+  }
+}
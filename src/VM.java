@@ -0,0 +1,747 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Stack-based virtual machine that runs chunks produced by BytecodeCompiler.
+// It mirrors the observable behaviour of the tree-walking Interpreter.
+class VM {
+  // Room a frame is given on the stack beyond its locals, for the operands
+  // and arguments of the expression it is in the middle of.
+  private static final int TEMPORARIES = 256;
+
+  private static class CallFrame {
+    Obj.Closure closure;
+    int ip;
+    int base;
+  }
+
+  // Pushed in place of the receiver by GET_METHOD when the callee turned out
+  // to be a field, so CALL_METHOD knows it has nothing to bind.
+  private static final Object NO_RECEIVER = new Object();
+
+  // Grown as calls need it.
+  private Object[] stack = new Object[64 * TEMPORARIES];
+  private int sp = 0;
+  // One for the script and one per call the Interpreter's maxDepth allows,
+  // each made the first time that depth is reached.
+  private final CallFrame[] frames;
+  private int frameCount = 0;
+  private final Map<String, Object> globals = new HashMap<>();
+  private Obj.Upvalue openUpvalues = null;
+
+  VM(int maxDepth) {
+    frames = new CallFrame[maxDepth + 1];
+
+    globals.put("clock", new Obj.Native(0, arguments -> (double) System.currentTimeMillis() / 1000.0));
+
+    globals.put("print", new Obj.Native(1, arguments -> {
+      System.out.println(Interpreter.stringify(arguments[0]));
+
+      return null;
+    }));
+  }
+
+  public void interpret(List<Stmt> statements) {
+    Obj.Function script = new BytecodeCompiler().compile(statements);
+
+    // Stop if the chunk could not be compiled.
+    if (Lox.errors.hadError)
+      return;
+
+    try {
+      execute(script);
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  public void interpretExpr(Expr expression) {
+    Obj.Function script = new BytecodeCompiler().compileExpr(expression);
+
+    if (Lox.errors.hadError)
+      return;
+
+    try {
+      Object value = execute(script);
+
+      System.out.println(Interpreter.stringify(value));
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  private Object execute(Obj.Function script) {
+    Obj.Closure closure = new Obj.Closure(script);
+
+    try {
+      push(closure);
+      callClosure(closure, 0, false);
+
+      return run();
+    } finally {
+      sp = 0;
+      frameCount = 0;
+      openUpvalues = null;
+    }
+  }
+
+  private void push(Object value) {
+    stack[sp++] = value;
+  }
+
+  private Object run() {
+    CallFrame frame = frames[frameCount - 1];
+    byte[] code = frame.closure.function.chunk.code;
+    Object[] constants = frame.closure.function.constants;
+    int ip = frame.ip;
+
+    for (;;) {
+      switch (code[ip++]) {
+        case OpCode.CONSTANT:
+          stack[sp++] = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          break;
+        case OpCode.NIL:
+          stack[sp++] = null;
+          break;
+        case OpCode.TRUE:
+          stack[sp++] = true;
+          break;
+        case OpCode.FALSE:
+          stack[sp++] = false;
+          break;
+        case OpCode.POP:
+          sp--;
+          break;
+
+        case OpCode.GET_LOCAL:
+          stack[sp++] = stack[frame.base + (code[ip++] & 0xff)];
+          break;
+        case OpCode.SET_LOCAL:
+          stack[frame.base + (code[ip++] & 0xff)] = stack[sp - 1];
+          break;
+        case OpCode.GET_LOCAL_LONG:
+          stack[sp++] = stack[frame.base + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff))];
+          ip += 2;
+          break;
+        case OpCode.SET_LOCAL_LONG:
+          stack[frame.base + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff))] = stack[sp - 1];
+          ip += 2;
+          break;
+        case OpCode.GET_GLOBAL: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          Object value = globals.get(name);
+
+          if (value == null) {
+            frame.ip = ip;
+
+            if (globals.containsKey(name))
+              throw error("Uninitialized variable '" + name + "'.");
+
+            throw error("Undefined variable '" + name + "'.");
+          }
+
+          stack[sp++] = value;
+          break;
+        }
+        case OpCode.DEFINE_GLOBAL: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          globals.put(name, stack[--sp]);
+          break;
+        }
+        case OpCode.SET_GLOBAL: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          if (!globals.containsKey(name)) {
+            frame.ip = ip;
+
+            throw error("Undefined variable '" + name + "'.");
+          }
+
+          globals.put(name, stack[sp - 1]);
+          break;
+        }
+        case OpCode.GET_UPVALUE: {
+          Obj.Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+
+          stack[sp++] = upvalue.open ? stack[upvalue.slot] : upvalue.closed;
+          break;
+        }
+        case OpCode.SET_UPVALUE: {
+          Obj.Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+
+          if (upvalue.open) {
+            stack[upvalue.slot] = stack[sp - 1];
+          } else {
+            upvalue.closed = stack[sp - 1];
+          }
+          break;
+        }
+        case OpCode.GET_UPVALUE_LONG: {
+          Obj.Upvalue upvalue =
+              frame.closure.upvalues[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          stack[sp++] = upvalue.open ? stack[upvalue.slot] : upvalue.closed;
+          break;
+        }
+        case OpCode.SET_UPVALUE_LONG: {
+          Obj.Upvalue upvalue =
+              frame.closure.upvalues[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          if (upvalue.open) {
+            stack[upvalue.slot] = stack[sp - 1];
+          } else {
+            upvalue.closed = stack[sp - 1];
+          }
+          break;
+        }
+        case OpCode.GET_PROPERTY: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          Object object = stack[sp - 1];
+
+          if (!(object instanceof Obj.Instance)) {
+            frame.ip = ip;
+
+            throw error("Only instances have properties.");
+          }
+
+          Obj.Instance instance = (Obj.Instance) object;
+          Object value = instance.fields.get(name);
+
+          if (value != null || instance.fields.containsKey(name)) {
+            stack[sp - 1] = value;
+            break;
+          }
+
+          Obj.Closure method = instance.klass.methods.get(name);
+
+          if (method == null) {
+            frame.ip = ip;
+
+            throw error("Undefined property '" + name + "'.");
+          }
+
+          stack[sp - 1] = new Obj.BoundMethod(instance, method);
+          break;
+        }
+        case OpCode.SET_PROPERTY: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          Object object = stack[sp - 2];
+
+          if (!(object instanceof Obj.Instance)) {
+            frame.ip = ip;
+
+            throw error("Only instances have fields.");
+          }
+
+          Object value = stack[--sp];
+
+          ((Obj.Instance) object).fields.put(name, value);
+          stack[sp - 1] = value;
+          break;
+        }
+        case OpCode.GET_SUPER: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          Obj.Class superclass = (Obj.Class) stack[--sp];
+          Obj.Closure method = superclass.methods.get(name);
+
+          if (method == null) {
+            frame.ip = ip;
+
+            throw error("Undefined property '" + name + "'.");
+          }
+
+          stack[sp - 1] = new Obj.BoundMethod(stack[sp - 1], method);
+          break;
+        }
+
+        case OpCode.EQUAL: {
+          Object b = stack[--sp];
+
+          stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+          break;
+        }
+        case OpCode.NOT_EQUAL: {
+          Object b = stack[--sp];
+
+          stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+          break;
+        }
+        case OpCode.GREATER: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+
+          if (!(a instanceof Double && b instanceof Double)) {
+            frame.ip = ip;
+
+            throw error("Operands must be numbers.");
+          }
+
+          stack[sp - 1] = (double) a > (double) b;
+          break;
+        }
+        case OpCode.GREATER_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+
+          if (!(a instanceof Double && b instanceof Double)) {
+            frame.ip = ip;
+
+            throw error("Operands must be numbers.");
+          }
+
+          stack[sp - 1] = (double) a >= (double) b;
+          break;
+        }
+        case OpCode.LESS: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+
+          if (!(a instanceof Double && b instanceof Double)) {
+            frame.ip = ip;
+
+            throw error("Operands must be numbers.");
+          }
+
+          stack[sp - 1] = (double) a < (double) b;
+          break;
+        }
+        case OpCode.LESS_EQUAL: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+
+          if (!(a instanceof Double && b instanceof Double)) {
+            frame.ip = ip;
+
+            throw error("Operands must be numbers.");
+          }
+
+          stack[sp - 1] = (double) a <= (double) b;
+          break;
+        }
+        case OpCode.ADD: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+
+          if (a instanceof Double && b instanceof Double) {
+            stack[sp - 1] = (double) a + (double) b;
+          } else if (a instanceof String && b instanceof String) {
+            stack[sp - 1] = (String) a + (String) b;
+          } else {
+            frame.ip = ip;
+
+            throw error("Operands must be two numbers or two strings.");
+          }
+          break;
+        }
+        case OpCode.SUBTRACT: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+
+          if (!(a instanceof Double && b instanceof Double)) {
+            frame.ip = ip;
+
+            throw error("Operands must be numbers.");
+          }
+
+          stack[sp - 1] = (double) a - (double) b;
+          break;
+        }
+        case OpCode.MULTIPLY: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+
+          if (!(a instanceof Double && b instanceof Double)) {
+            frame.ip = ip;
+
+            throw error("Operands must be numbers.");
+          }
+
+          stack[sp - 1] = (double) a * (double) b;
+          break;
+        }
+        case OpCode.DIVIDE: {
+          Object b = stack[--sp];
+          Object a = stack[sp - 1];
+
+          if (!(a instanceof Double && b instanceof Double)) {
+            frame.ip = ip;
+
+            throw error("Operands must be numbers.");
+          }
+
+          stack[sp - 1] = (double) a / (double) b;
+          break;
+        }
+        case OpCode.NOT:
+          stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+          break;
+        case OpCode.NEGATE: {
+          Object a = stack[sp - 1];
+
+          if (!(a instanceof Double)) {
+            frame.ip = ip;
+
+            throw error("Operand must be a number.");
+          }
+
+          stack[sp - 1] = -(double) a;
+          break;
+        }
+
+        case OpCode.JUMP:
+          ip += (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+          break;
+        case OpCode.JUMP_IF_FALSE:
+          if (Interpreter.isTruthy(stack[sp - 1])) {
+            ip += 2;
+          } else {
+            ip += (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+          }
+          break;
+        case OpCode.LOOP:
+          ip -= (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) - 2;
+          break;
+
+        case OpCode.CALL:
+        case OpCode.TAIL_CALL: {
+          boolean tail = code[ip - 1] == OpCode.TAIL_CALL;
+          int argCount = code[ip++] & 0xff;
+
+          frame.ip = ip;
+          callValue(stack[sp - 1 - argCount], argCount, tail);
+
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.constants;
+          ip = frame.ip;
+          break;
+        }
+        case OpCode.GET_METHOD: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          Object object = stack[sp - 1];
+
+          if (!(object instanceof Obj.Instance)) {
+            frame.ip = ip;
+
+            throw error("Only instances have properties.");
+          }
+
+          Obj.Instance instance = (Obj.Instance) object;
+          Object value = instance.fields.get(name);
+
+          if (value != null || instance.fields.containsKey(name)) {
+            stack[sp - 1] = value;
+            stack[sp++] = NO_RECEIVER;
+            break;
+          }
+
+          Obj.Closure method = instance.klass.methods.get(name);
+
+          if (method == null) {
+            frame.ip = ip;
+
+            throw error("Undefined property '" + name + "'.");
+          }
+
+          stack[sp++] = method;
+          break;
+        }
+        case OpCode.GET_SUPER_METHOD: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          Obj.Class superclass = (Obj.Class) stack[sp - 1];
+          Obj.Closure method = superclass.methods.get(name);
+
+          if (method == null) {
+            frame.ip = ip;
+
+            throw error("Undefined property '" + name + "'.");
+          }
+
+          stack[sp - 1] = method;
+          break;
+        }
+        case OpCode.CALL_METHOD:
+        case OpCode.TAIL_CALL_METHOD: {
+          boolean tail = code[ip - 1] == OpCode.TAIL_CALL_METHOD;
+          int argCount = code[ip++] & 0xff;
+          int receiverSlot = sp - argCount - 2;
+          Object method = stack[receiverSlot + 1];
+
+          // Close the gap between the receiver and its arguments.
+          System.arraycopy(stack, receiverSlot + 2, stack, receiverSlot + 1, argCount);
+          sp--;
+
+          frame.ip = ip;
+
+          if (method == NO_RECEIVER) {
+            callValue(stack[receiverSlot], argCount, tail);
+          } else {
+            callClosure((Obj.Closure) method, argCount, tail);
+          }
+
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.constants;
+          ip = frame.ip;
+          break;
+        }
+        case OpCode.CLOSURE: {
+          Obj.Function function = (Obj.Function) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          Obj.Closure closure = new Obj.Closure(function);
+
+          for (int i = 0; i < closure.upvalues.length; i++) {
+            boolean isLocal = code[ip] == 1;
+            int index = ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+            ip += 3;
+
+            if (isLocal) {
+              closure.upvalues[i] = captureUpvalue(frame.base + index);
+            } else {
+              closure.upvalues[i] = frame.closure.upvalues[index];
+            }
+          }
+
+          stack[sp++] = closure;
+          break;
+        }
+        case OpCode.CLOSE_UPVALUE:
+          closeUpvalues(sp - 1);
+          sp--;
+          break;
+        case OpCode.RETURN: {
+          Object result = stack[--sp];
+
+          closeUpvalues(frame.base);
+          frameCount--;
+
+          if (frameCount == 0) {
+            sp = 0;
+
+            return result;
+          }
+
+          sp = frame.base;
+          stack[sp++] = result;
+
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.constants;
+          ip = frame.ip;
+          break;
+        }
+
+        case OpCode.CLASS: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          stack[sp++] = new Obj.Class(name);
+          break;
+        }
+        case OpCode.INHERIT: {
+          Object superclass = stack[sp - 2];
+
+          if (!(superclass instanceof Obj.Class)) {
+            frame.ip = ip;
+
+            throw error("Superclass must be a class.");
+          }
+
+          // Classes are immutable once declared, so inherited methods can be
+          // copied down instead of searched for at every call.
+          Obj.Class subclass = (Obj.Class) stack[sp - 1];
+
+          subclass.methods.putAll(((Obj.Class) superclass).methods);
+          subclass.initializer = ((Obj.Class) superclass).initializer;
+          break;
+        }
+        case OpCode.METHOD: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+
+          Obj.Closure method = (Obj.Closure) stack[--sp];
+          Obj.Class klass = (Obj.Class) stack[sp - 1];
+
+          klass.methods.put(name, method);
+
+          if (name.equals("init")) {
+            klass.initializer = method;
+          }
+          break;
+        }
+
+        default:
+          throw new IllegalStateException("Unknown opcode " + code[ip - 1] + ".");
+      }
+    }
+  }
+
+  // A tail call to a Lox function reuses the running frame. Classes and
+  // natives are called as usual, like the tree-walker's returnCall().
+  private void callValue(Object callee, int argCount, boolean tail) {
+    if (callee instanceof Obj.Closure) {
+      callClosure((Obj.Closure) callee, argCount, tail);
+
+      return;
+    }
+
+    if (callee instanceof Obj.BoundMethod) {
+      Obj.BoundMethod bound = (Obj.BoundMethod) callee;
+
+      stack[sp - argCount - 1] = bound.receiver;
+      callClosure(bound.method, argCount, tail);
+
+      return;
+    }
+
+    if (callee instanceof Obj.Class) {
+      Obj.Class klass = (Obj.Class) callee;
+
+      stack[sp - argCount - 1] = new Obj.Instance(klass);
+
+      if (klass.initializer != null) {
+        callClosure(klass.initializer, argCount, false);
+      } else if (argCount != 0) {
+        throw error("Expected 0 arguments but got " + argCount + ".");
+      }
+
+      return;
+    }
+
+    if (callee instanceof Obj.Native) {
+      Obj.Native function = (Obj.Native) callee;
+
+      if (argCount != function.arity) {
+        throw error("Expected " + function.arity + " arguments but got " + argCount + ".");
+      }
+
+      Object[] arguments = new Object[argCount];
+      System.arraycopy(stack, sp - argCount, arguments, 0, argCount);
+
+      Object result = function.function.call(arguments);
+
+      sp -= argCount + 1;
+      stack[sp++] = result;
+
+      return;
+    }
+
+    throw error("Can only call functions and classes.");
+  }
+
+  private void callClosure(Obj.Closure closure, int argCount, boolean tail) {
+    if (argCount != closure.function.arity) {
+      throw error("Expected " + closure.function.arity + " arguments but got " + argCount + ".");
+    }
+
+    if (tail) {
+      tailCall(closure, argCount);
+
+      return;
+    }
+
+    if (frameCount == frames.length) {
+      throw error("Stack overflow.");
+    }
+
+    int base = sp - argCount - 1;
+
+    if (base + closure.function.slots + TEMPORARIES > stack.length) {
+      growStack(base + closure.function.slots + TEMPORARIES);
+    }
+
+    CallFrame frame = frames[frameCount];
+
+    if (frame == null) {
+      frame = frames[frameCount] = new CallFrame();
+    }
+
+    frameCount++;
+    frame.closure = closure;
+    frame.ip = 0;
+    frame.base = base;
+  }
+
+  // The callee and its arguments move down over the returning function's
+  // slots, once its captured locals are closed, and it takes over the frame.
+  private void tailCall(Obj.Closure closure, int argCount) {
+    CallFrame frame = frames[frameCount - 1];
+
+    closeUpvalues(frame.base);
+    System.arraycopy(stack, sp - argCount - 1, stack, frame.base, argCount + 1);
+    sp = frame.base + argCount + 1;
+
+    if (frame.base + closure.function.slots + TEMPORARIES > stack.length) {
+      growStack(frame.base + closure.function.slots + TEMPORARIES);
+    }
+
+    frame.closure = closure;
+    frame.ip = 0;
+  }
+
+  private void growStack(int size) {
+    stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+  }
+
+  private Obj.Upvalue captureUpvalue(int slot) {
+    Obj.Upvalue previous = null;
+    Obj.Upvalue upvalue = openUpvalues;
+
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+
+    if (upvalue != null && upvalue.slot == slot) {
+      return upvalue;
+    }
+
+    Obj.Upvalue created = new Obj.Upvalue(slot, upvalue);
+
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+
+    return created;
+  }
+
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      Obj.Upvalue upvalue = openUpvalues;
+
+      upvalue.closed = stack[upvalue.slot];
+      upvalue.open = false;
+
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  private RuntimeError error(String message) {
+    CallFrame frame = frames[frameCount - 1];
+    int line = frame.closure.function.chunk.getLine(frame.ip - 1);
+
+    return new RuntimeError(new Token(TokenType.EOF, "", null, line), message);
+  }
+}
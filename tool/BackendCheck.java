@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs small programs that once behaved differently on some backend through
+// every backend, and checks that each prints what it should. Every run is a
+// new JVM started with this one's class path, so build it along with the
+// interpreter:
+//
+//   javac -d out src/*.java tool/BackendCheck.java
+//   java -cp out BackendCheck
+//
+// It prints each program and backend that fails and exits with 1, or prints
+// "ok".
+public class BackendCheck {
+  private static final String[] BACKENDS = { null, "--nodes", "--vm", "--flat" };
+
+  // Name, source and expected output.
+  private static final String[][] PROGRAMS = {
+    // A node rewritten by a recursive call while an outer call of the same
+    // function is still evaluating it.
+    {
+      "recursive operand",
+      "fn f(n) { if (n == 0) return 0; return (f(n - 1) + 1) - n; }\n"
+          + "print(f(3));\n",
+      "-3\n"
+    },
+    {
+      "recursive operand of a product",
+      "fn f(n) { if (n == 0) return 0; return (f(n - 1) + 1) * 10 - n; }\n"
+          + "print(f(3));\n",
+      "987\n"
+    },
+    {
+      "recursive equality under or",
+      "fn f(n) { if (n == 0) return 0; return (f(n - 1) == 0) or n; }\n"
+          + "print(f(3));\n",
+      "3\n"
+    },
+    {
+      "recursive initializer",
+      "fn f(n) { if (n == 0) return 0; var x = (f(n - 1) + 1) - n; return x; }\n"
+          + "print(f(3));\n",
+      "-3\n"
+    },
+    {
+      "recursive assignment",
+      "fn f(n) { var x = 0; if (n == 0) return 0; return (x = f(n - 1)) + 1 - n; }\n"
+          + "print(f(3));\n",
+      "-3\n"
+    },
+    // An initializer returns its instance, but still makes the call it
+    // returns.
+    {
+      "initializer returning a call",
+      "fn f() { print(\"called\"); return 1; }\n"
+          + "class A { init() { return f(); } }\n"
+          + "print(A());\n",
+      "called\nA instance\n"
+    },
+    {
+      "printed functions",
+      "fn f() {}\n"
+          + "class A { m() {} }\n"
+          + "print(f); print(A().m); print(clock); print(A);\n",
+      "<fn f>\n<fn m>\n<native fn>\nA\n"
+    },
+  };
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int failures = 0;
+
+    for (String[] program : PROGRAMS) {
+      Path script = Files.createTempFile("check", ".lox");
+
+      try {
+        Files.write(script, program[1].getBytes(StandardCharsets.UTF_8));
+
+        for (String backend : BACKENDS) {
+          String output = run(backend, script);
+
+          if (!output.equals(program[2])) {
+            System.out.println("Failed: " + program[0] + " on "
+                + (backend == null ? "the tree-walker" : backend) + ", expected:\n"
+                + program[2] + "got:\n" + output);
+            failures++;
+          }
+        }
+      } finally {
+        Files.delete(script);
+      }
+    }
+
+    if (failures > 0)
+      System.exit(1);
+
+    System.out.println("ok");
+  }
+
+  private static String run(String backend, Path script)
+      throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+
+    command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("Lox");
+
+    if (backend != null)
+      command.add(backend);
+
+    command.add(script.toString());
+
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+
+    process.waitFor();
+
+    return output.replace("\r\n", "\n");
+  }
+}
@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compares the two ways of dispatching on a syntax tree node: through
+// accept() and a Visitor, and with a switch on the node's kind. Both walk
+// the same parsed scripts, visiting every node, so the difference is the
+// cost of dispatch. Build it along with the interpreter:
+//
+//   javac -d out src/*.java tool/DispatchBenchmark.java
+//   java -cp out DispatchBenchmark script.lox...
+public class DispatchBenchmark {
+  private static final int WARMUP_ROUNDS = 50;
+  private static final int ROUNDS = 50;
+  // Each round walks the scripts enough times to take a measurable while.
+  private static final int WALKS = 200;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("Usage: dispatch_benchmark <script>...");
+      System.exit(64);
+    }
+
+    List<Stmt> statements = new ArrayList<>();
+
+    for (String path : args) {
+      String source = new String(Files.readAllBytes(Paths.get(path)));
+      List<Stmt> parsed = new Parser(new Scanner(source).scanTokens()).parse();
+
+      if (parsed == null)
+        System.exit(65);
+
+      statements.addAll(parsed);
+    }
+
+    Counter counter = new Counter();
+    int nodes = counter.countAll(statements);
+
+    if (countAll(statements) != nodes)
+      throw new IllegalStateException("The two walks disagree.");
+
+    long visitor = Long.MAX_VALUE;
+    long kinds = Long.MAX_VALUE;
+
+    // Alternate the two so that neither gets a warmer machine.
+    for (int i = 0; i < WARMUP_ROUNDS + ROUNDS; i++) {
+      long start = System.nanoTime();
+
+      for (int j = 0; j < WALKS; j++) {
+        counter.countAll(statements);
+      }
+
+      long middle = System.nanoTime();
+
+      for (int j = 0; j < WALKS; j++) {
+        countAll(statements);
+      }
+
+      long end = System.nanoTime();
+
+      if (i >= WARMUP_ROUNDS) {
+        visitor = Math.min(visitor, middle - start);
+        kinds = Math.min(kinds, end - middle);
+      }
+    }
+
+    System.out.printf("%d nodes, best of %d rounds of %d walks%n", nodes, ROUNDS, WALKS);
+    System.out.printf("  accept() and Visitor: %.2f ns/node%n", (double) visitor / nodes / WALKS);
+    System.out.printf("  switch on kind:       %.2f ns/node%n", (double) kinds / nodes / WALKS);
+  }
+
+  private static int countAll(List<? extends Stmt> statements) {
+    int count = 0;
+
+    for (Stmt statement : statements) {
+      count += count(statement);
+    }
+
+    return count;
+  }
+
+  private static int countAllExprs(List<Expr> expressions) {
+    int count = 0;
+
+    for (Expr expression : expressions) {
+      count += count(expression);
+    }
+
+    return count;
+  }
+
+  private static int count(Stmt statement) {
+    if (statement == null)
+      return 0;
+
+    switch (statement.kind) {
+      case Stmt.BLOCK:
+        return 1 + countAll(((Stmt.Block) statement).statements);
+      case Stmt.CLASS: {
+        Stmt.Class stmt = (Stmt.Class) statement;
+
+        return 1 + count(stmt.superclass) + countAll(stmt.methods);
+      }
+      case Stmt.EXPRESSION:
+        return 1 + count(((Stmt.Expression) statement).expression);
+      case Stmt.FUNCTION:
+        return 1 + countAll(((Stmt.Function) statement).body);
+      case Stmt.IF: {
+        Stmt.If stmt = (Stmt.If) statement;
+
+        return 1 + count(stmt.condition) + count(stmt.thenBranch) + count(stmt.elseBranch);
+      }
+      case Stmt.RETURN:
+        return 1 + count(((Stmt.Return) statement).value);
+      case Stmt.VAR:
+        return 1 + count(((Stmt.Var) statement).initializer);
+      case Stmt.WHILE: {
+        Stmt.While stmt = (Stmt.While) statement;
+
+        return 1 + count(stmt.condition) + count(stmt.body);
+      }
+
+      default:
+        throw new IllegalStateException("Unknown statement kind " + statement.kind + ".");
+    }
+  }
+
+  private static int count(Expr expression) {
+    if (expression == null)
+      return 0;
+
+    switch (expression.kind) {
+      case Expr.ASSIGN:
+        return 1 + count(((Expr.Assign) expression).value);
+      case Expr.BINARY: {
+        Expr.Binary expr = (Expr.Binary) expression;
+
+        return 1 + count(expr.left) + count(expr.right);
+      }
+      case Expr.CALL: {
+        Expr.Call expr = (Expr.Call) expression;
+
+        return 1 + count(expr.callee) + countAllExprs(expr.arguments);
+      }
+      case Expr.GET:
+        return 1 + count(((Expr.Get) expression).object);
+      case Expr.GROUPING:
+        return 1 + count(((Expr.Grouping) expression).expression);
+      case Expr.LOGICAL: {
+        Expr.Logical expr = (Expr.Logical) expression;
+
+        return 1 + count(expr.left) + count(expr.right);
+      }
+      case Expr.SET: {
+        Expr.Set expr = (Expr.Set) expression;
+
+        return 1 + count(expr.object) + count(expr.value);
+      }
+      case Expr.UNARY:
+        return 1 + count(((Expr.Unary) expression).right);
+      case Expr.LITERAL:
+      case Expr.SUPER:
+      case Expr.THIS:
+      case Expr.VARIABLE:
+        return 1;
+
+      default:
+        throw new IllegalStateException("Unknown expression kind " + expression.kind + ".");
+    }
+  }
+
+  private static class Counter implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+    int countAll(List<? extends Stmt> statements) {
+      int count = 0;
+
+      for (Stmt statement : statements) {
+        count += count(statement);
+      }
+
+      return count;
+    }
+
+    private int countAllExprs(List<Expr> expressions) {
+      int count = 0;
+
+      for (Expr expression : expressions) {
+        count += count(expression);
+      }
+
+      return count;
+    }
+
+    private int count(Stmt statement) {
+      return statement == null ? 0 : statement.accept(this);
+    }
+
+    private int count(Expr expression) {
+      return expression == null ? 0 : expression.accept(this);
+    }
+
+    public Integer visitBlockStmt(Stmt.Block stmt) {
+      return 1 + countAll(stmt.statements);
+    }
+
+    public Integer visitClassStmt(Stmt.Class stmt) {
+      return 1 + count(stmt.superclass) + countAll(stmt.methods);
+    }
+
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
+      return 1 + count(stmt.expression);
+    }
+
+    public Integer visitFunctionStmt(Stmt.Function stmt) {
+      return 1 + countAll(stmt.body);
+    }
+
+    public Integer visitIfStmt(Stmt.If stmt) {
+      return 1 + count(stmt.condition) + count(stmt.thenBranch) + count(stmt.elseBranch);
+    }
+
+    public Integer visitReturnStmt(Stmt.Return stmt) {
+      return 1 + count(stmt.value);
+    }
+
+    public Integer visitVarStmt(Stmt.Var stmt) {
+      return 1 + count(stmt.initializer);
+    }
+
+    public Integer visitWhileStmt(Stmt.While stmt) {
+      return 1 + count(stmt.condition) + count(stmt.body);
+    }
+
+    public Integer visitAssignExpr(Expr.Assign expr) {
+      return 1 + count(expr.value);
+    }
+
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+      return 1 + count(expr.left) + count(expr.right);
+    }
+
+    public Integer visitCallExpr(Expr.Call expr) {
+      return 1 + count(expr.callee) + countAllExprs(expr.arguments);
+    }
+
+    public Integer visitGetExpr(Expr.Get expr) {
+      return 1 + count(expr.object);
+    }
+
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+      return 1 + count(expr.expression);
+    }
+
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+      return 1;
+    }
+
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+      return 1 + count(expr.left) + count(expr.right);
+    }
+
+    public Integer visitSetExpr(Expr.Set expr) {
+      return 1 + count(expr.object) + count(expr.value);
+    }
+
+    public Integer visitSuperExpr(Expr.Super expr) {
+      return 1;
+    }
+
+    public Integer visitThisExpr(Expr.This expr) {
+      return 1;
+    }
+
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+      return 1 + count(expr.right);
+    }
+
+    public Integer visitVariableExpr(Expr.Variable expr) {
+      return 1;
+    }
+  }
+}
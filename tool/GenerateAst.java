@@ -1,110 +1,172 @@
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Arrays;
-import java.util.List;
-
-public class GenerateAst {
-  public static void main(String[] args) throws IOException {
-    if (args.length != 1) {
-      System.err.println("Usage: generate_ast <output directory>");
-      System.exit(1);
-    }
-
-    String outputDir = args[0];
-
-    System.out.println("Generating AST classes in " + outputDir);
-
-    defineAst(outputDir, "Expr", Arrays.asList(
-        "Assign   : Token name, Expr value",
-        "Binary   : Expr left, Token operator, Expr right",
-        "Call     : Expr callee, Token paren, List<Expr> arguments",
-        "Get      : Expr object, Token name",
-        "Grouping : Expr expression",
-        "Literal  : Object value",
-        "Logical  : Expr left, Token operator, Expr right",
-        "Set      : Expr object, Token name, Expr value",
-        "Super    : Token keyword, Token method",
-        "This     : Token keyword",
-        "Unary    : Token operator, Expr right",
-        "Variable : Token name"));
-
-    defineAst(outputDir, "Stmt", Arrays.asList(
-        "Block      : List<Stmt> statements",
-        "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
-        "Expression : Expr expression",
-        "Function   : Token name, List<Token> params, List<Stmt> body",
-        "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
-        "Return     : Token keyword, Expr value",
-        "Var        : Token name, Expr initializer",
-        "While      : Expr condition, Stmt body"));
-  }
-
-  private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
-    String path = outputDir + "/" + baseName + ".java";
-    PrintWriter writer = new PrintWriter(path, "UTF-8");
-
-    writer.println("import java.util.List;");
-    writer.println();
-    writer.println("abstract class " + baseName + " {");
-
-    defineVisitor(writer, baseName, types);
-
-    // The AST classes.
-    for (String type : types) {
-      String className = type.split(":")[0].trim(); // "className : ..."
-      String fields = type.split(":")[1].trim(); // "... : fields"
-
-      defineType(writer, baseName, className, fields);
-    }
-
-    writer.println();
-    writer.println("  abstract <R> R accept(Visitor<R> visitor);");
-
-    writer.println("}");
-    writer.close();
-  }
-
-  private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
-    writer.println("  interface Visitor<R> {");
-
-    for (String type : types) {
-      String typeName = type.split(":")[0].trim(); // "typeName : ..."
-      writer.println("    R visit" + typeName + baseName + "(" + typeName + " " + baseName.toLowerCase() + ");");
-    }
-
-    writer.println("  }");
-  }
-
-  private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
-    writer.println("");
-    writer.println("  static class " + className + " extends " + baseName + " {");
-
-    // Constructor.
-    writer.println("    " + className + "(" + fieldList + ") {");
-
-    // Store parameters in fields.
-    String[] fields = fieldList.split(", ");
-
-    for (String field : fields) {
-      String name = field.split(" ")[1]; // "type name"
-      writer.println("      this." + name + " = " + name + ";");
-    }
-
-    writer.println("    }");
-
-    // Visitor pattern.
-    writer.println();
-    writer.println("    @Override");
-    writer.println("    <R> R accept(Visitor<R> visitor) {");
-    writer.println("      return visitor.visit" + className + baseName + "(this);");
-    writer.println("    }");
-
-    // Fields.
-    writer.println();
-    for (String field : fields) {
-      writer.println("    final " + field + ";");
-    }
-
-    writer.println("  }");
-  }
-}
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+public class GenerateAst {
+  // With --sealed the base class is sealed, the node classes are final and
+  // each node carries an integer kind, so that an interpreter can dispatch
+  // on it with a switch instead of through accept().
+  private static boolean sealed = false;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 2 && args[0].equals("--sealed")) {
+      sealed = true;
+    } else if (args.length != 1) {
+      System.err.println("Usage: generate_ast [--sealed] <output directory>");
+      System.exit(1);
+    }
+
+    String outputDir = args[args.length - 1];
+
+    System.out.println("Generating AST classes in " + outputDir);
+
+    defineAst(outputDir, "Expr", Arrays.asList(
+        "Assign   : Token name, Expr value | int access = FrameLayout.GLOBAL, int index",
+        "Binary   : Expr left, Token operator, Expr right",
+        "Call     : Expr callee, Token paren, List<Expr> arguments",
+        "Get      : Expr object, Token name | PropertyCache cache = new PropertyCache()",
+        "Grouping : Expr expression",
+        "Literal  : Object value",
+        "Logical  : Expr left, Token operator, Expr right",
+        "Set      : Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache()",
+        "Super    : Token keyword, Token method"
+            + " | int access, int index, int receiverAccess, int receiverIndex",
+        "This     : Token keyword | int access, int index",
+        "Unary    : Token operator, Expr right",
+        "Variable : Token name | int access = FrameLayout.GLOBAL, int index"));
+
+    defineAst(outputDir, "Stmt", Arrays.asList(
+        "Block      : List<Stmt> statements",
+        "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods"
+            + " | int slot = FrameLayout.GLOBAL, boolean captured, int superclassSlot = -1",
+        "Expression : Expr expression",
+        "Function   : Token name, List<Token> params, List<Stmt> body"
+            + " | int slot = FrameLayout.GLOBAL, boolean captured, FrameLayout layout,"
+            + " JitCompiler.Profile profile",
+        "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
+        "Return     : Token keyword, Expr value",
+        "Var        : Token name, Expr initializer"
+            + " | int slot = FrameLayout.GLOBAL, boolean captured",
+        "While      : Expr condition, Stmt body"));
+  }
+
+  private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
+    String path = outputDir + "/" + baseName + ".java";
+    PrintWriter writer = new PrintWriter(path, "UTF-8");
+
+    writer.println("import java.util.List;");
+    writer.println();
+    if (sealed) {
+      writer.println("abstract sealed class " + baseName + " {");
+
+      defineKinds(writer, types);
+    } else {
+      writer.println("abstract class " + baseName + " {");
+    }
+
+    defineVisitor(writer, baseName, types);
+
+    if (sealed) {
+      writer.println();
+      writer.println("  // Which of the classes below this node is, as one of the constants above.");
+      writer.println("  final int kind;");
+      writer.println();
+      writer.println("  private " + baseName + "(int kind) {");
+      writer.println("    this.kind = kind;");
+      writer.println("  }");
+    }
+
+    // The AST classes.
+    for (String type : types) {
+      String className = type.split(":")[0].trim(); // "className : ..."
+      String fields = type.split(":")[1].trim(); // "... : fields"
+
+      defineType(writer, baseName, className, fields);
+    }
+
+    writer.println();
+    writer.println("  abstract <R> R accept(Visitor<R> visitor);");
+
+    writer.println("}");
+    writer.close();
+  }
+
+  private static void defineKinds(PrintWriter writer, List<String> types) {
+    writer.println("  // The kind of each node class, to switch on.");
+
+    for (int i = 0; i < types.size(); i++) {
+      String typeName = types.get(i).split(":")[0].trim();
+      writer.println("  static final int " + typeName.toUpperCase() + " = " + i + ";");
+    }
+
+    writer.println();
+  }
+
+  private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
+    writer.println("  interface Visitor<R> {");
+
+    for (String type : types) {
+      String typeName = type.split(":")[0].trim(); // "typeName : ..."
+      writer.println("    R visit" + typeName + baseName + "(" + typeName + " " + baseName.toLowerCase() + ");");
+    }
+
+    writer.println("  }");
+  }
+
+  private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    // Fields after a "|" are not constructor parameters but mutable state the
+    // interpreter keeps on the node, such as inline caches and where the
+    // Resolver put a variable.
+    String[] state = new String[0];
+
+    if (fieldList.contains("|")) {
+      state = fieldList.split("\\|")[1].trim().split(", ");
+      fieldList = fieldList.split("\\|")[0].trim();
+    }
+
+    writer.println("");
+    writer.println("  static " + (sealed ? "final " : "") + "class " + className + " extends " + baseName
+        + " {");
+
+    // Constructor.
+    writer.println("    " + className + "(" + fieldList + ") {");
+
+    if (sealed) {
+      writer.println("      super(" + className.toUpperCase() + ");");
+    }
+
+    // Store parameters in fields.
+    String[] fields = fieldList.split(", ");
+
+    for (String field : fields) {
+      String name = field.split(" ")[1]; // "type name"
+      writer.println("      this." + name + " = " + name + ";");
+    }
+
+    writer.println("    }");
+
+    // Visitor pattern.
+    writer.println();
+    writer.println("    @Override");
+    writer.println("    <R> R accept(Visitor<R> visitor) {");
+    writer.println("      return visitor.visit" + className + baseName + "(this);");
+    writer.println("    }");
+
+    // Fields.
+    writer.println();
+    for (String field : fields) {
+      writer.println("    final " + field + ";");
+    }
+
+    if (state.length > 0) {
+      writer.println();
+    }
+
+    for (String field : state) {
+      writer.println("    " + field + ";");
+    }
+
+    writer.println("  }");
+  }
+}
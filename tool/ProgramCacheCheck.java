@@ -0,0 +1,94 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Checks ProgramCache's hits, misses and evictions at capacities 1 and 2,
+// and that a source with errors is kept along with its messages. It needs
+// the interpreter's classes, so build it along with them:
+//
+//   javac -d out src/*.java tool/ProgramCacheCheck.java
+//   java -cp out ProgramCacheCheck
+//
+// It prints the first check that fails and exits with 1, or prints "ok".
+public class ProgramCacheCheck {
+  private static final String A = "var a = 1;";
+  private static final String B = "var b = 2;";
+  private static final String C = "var c = 3;";
+  private static final String BROKEN = "var = 1;";
+
+  public static void main(String[] args) {
+    capacityOne();
+    capacityTwo();
+    errors();
+
+    System.out.println("ok");
+  }
+
+  private static void capacityOne() {
+    ProgramCache cache = new ProgramCache(1);
+    FlatAst a = compile(cache, A);
+
+    check(a != null, "A compiles");
+    check(compile(cache, A) == a, "A hits");
+    counts(cache, 1, 1, 1, 0);
+
+    check(compile(cache, B) != null, "B compiles");
+    counts(cache, 1, 1, 2, 1);
+
+    check(compile(cache, A) != a, "A was evicted by B");
+    counts(cache, 1, 1, 3, 2);
+  }
+
+  private static void capacityTwo() {
+    ProgramCache cache = new ProgramCache(2);
+    FlatAst a = compile(cache, A);
+    FlatAst b = compile(cache, B);
+
+    counts(cache, 2, 0, 2, 0);
+
+    // Using A makes B the least recently used, so C evicts B.
+    check(compile(cache, A) == a, "A hits");
+    compile(cache, C);
+    counts(cache, 2, 1, 3, 1);
+
+    check(compile(cache, A) == a, "A was kept");
+    check(compile(cache, B) != b, "B was evicted by C");
+    counts(cache, 2, 2, 4, 2);
+  }
+
+  private static void errors() {
+    ProgramCache cache = new ProgramCache(2);
+    List<String> first = new ArrayList<>();
+    List<String> second = new ArrayList<>();
+
+    check(cache.compile(BROKEN, first) == null, "a source with errors has no program");
+    check(!first.isEmpty(), "its errors are reported");
+    check(!Lox.errors.hadError, "its errors don't go to the command line's reporter");
+
+    check(cache.compile(BROKEN, second) == null, "it still has no program");
+    check(second.equals(first), "its errors are reported again");
+    counts(cache, 1, 1, 1, 0);
+  }
+
+  private static FlatAst compile(ProgramCache cache, String source) {
+    List<String> errors = new ArrayList<>();
+    FlatAst program = cache.compile(source, errors);
+
+    check(errors.isEmpty(), "no errors in " + source);
+
+    return program;
+  }
+
+  private static void counts(ProgramCache cache, int size, long hits, long misses,
+      long evictions) {
+    check(cache.size() == size && cache.hits() == hits && cache.misses() == misses
+        && cache.evictions() == evictions, "expected " + size + " sources, " + hits
+        + " hits, " + misses + " misses, " + evictions + " evictions, got " + cache);
+  }
+
+  private static void check(boolean condition, String description) {
+    if (!condition) {
+      System.out.println("Failed: " + description + ".");
+      System.exit(1);
+    }
+  }
+}
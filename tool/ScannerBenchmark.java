@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// Measures how many tokens per second the Scanner produces. It needs the
+// interpreter's classes, so build it along with them:
+//
+//   javac -d out src/*.java tool/ScannerBenchmark.java
+//   java -cp out ScannerBenchmark [file.lox]
+//
+// Without a file it scans a generated program mixing keywords,
+// identifiers, numbers and strings.
+public class ScannerBenchmark {
+  private static final int WARMUP_ROUNDS = 20;
+  private static final int ROUNDS = 20;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length > 1) {
+      System.err.println("Usage: scanner_benchmark [file]");
+      System.exit(64);
+    }
+
+    String source = args.length == 1
+        ? new String(Files.readAllBytes(Paths.get(args[0])))
+        : generate(20000);
+
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      scan(source);
+    }
+
+    long best = Long.MAX_VALUE;
+    int count = 0;
+
+    for (int i = 0; i < ROUNDS; i++) {
+      long start = System.nanoTime();
+
+      count = scan(source);
+
+      best = Math.min(best, System.nanoTime() - start);
+    }
+
+    System.out.printf("%d characters, %d tokens, best of %d rounds: %.2f ms, %.1f M tokens/s%n",
+        source.length(), count, ROUNDS, best / 1e6, count / (best / 1e3));
+  }
+
+  private static int scan(String source) {
+    return new Scanner(source).scanTokens().size();
+  }
+
+  private static String generate(int functions) {
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < functions; i++) {
+      builder.append("class Shape").append(i).append(" extends Base {\n");
+      builder.append("  area(width, height) {\n");
+      builder.append("    var total = 0;\n");
+      builder.append("    for (var index = 0; index < width; index = index + 1) {\n");
+      builder.append("      if (index == nil or total > 1024.5 and !false) return this.scale * 3.25;\n");
+      builder.append("      while (true) total = super.area(height, \"cell\" ) - 17;\n");
+      builder.append("    }\n");
+      builder.append("    // Returns the area.\n");
+      builder.append("    return total;\n");
+      builder.append("  }\n");
+      builder.append("}\n");
+      builder.append("fn helper").append(i).append("(a, b) { print a + b / 2; }\n");
+    }
+
+    return builder.toString();
+  }
+}